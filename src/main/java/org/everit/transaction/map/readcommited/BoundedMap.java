@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongBiFunction;
+
+import org.everit.transaction.map.readcommited.internal.StripedReadBuffer;
+
+/**
+ * {@link Map} decorator with bounded capacity that can be used as the committed state of a
+ * {@link ReadCommitedTransactionalMap}. When the total weight of the entries exceeds the maximum,
+ * entries are evicted based on an {@link EvictionPolicy}. As the map is only modified during
+ * committing a transaction, only committed entries are evicted; the changes of active transactions
+ * are never affected.
+ *
+ * <p>
+ * The class relies on the locking of {@link ReadCommitedTransactionalMap}: the modifying functions
+ * are called while the write lock is held, while {@link #get(Object)} is called by several
+ * readers in parallel. Reads do not update the eviction policy directly; they are recorded into a
+ * lock-free striped buffer that is drained by the next write. If the buffer of a reader thread is
+ * full, the access is not recorded.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class BoundedMap<K, V> implements Map<K, V> {
+
+  /**
+   * Notified about the evicted entries or <code>null</code>.
+   */
+  protected BiConsumer<? super K, ? super V> evictionListener;
+
+  protected final EvictionPolicy<K> evictionPolicy;
+
+  protected final long maximumWeight;
+
+  protected final StripedReadBuffer<K> readBuffer = new StripedReadBuffer<>();
+
+  protected long weight;
+
+  protected final ToLongBiFunction<? super K, ? super V> weigher;
+
+  protected final Map<K, V> wrapped;
+
+  /**
+   * Constructor of a map that can store a maximum number of entries.
+   *
+   * @param wrapped
+   *          The map that stores the entries.
+   * @param maximumSize
+   *          The maximum number of entries.
+   * @param evictionPolicy
+   *          The policy that selects the entries to evict.
+   */
+  public BoundedMap(final Map<K, V> wrapped, final long maximumSize,
+      final EvictionPolicy<K> evictionPolicy) {
+    this(wrapped, maximumSize, (key, value) -> 1, evictionPolicy);
+  }
+
+  /**
+   * Constructor of a map that limits the total weight of its entries.
+   *
+   * @param wrapped
+   *          The map that stores the entries.
+   * @param maximumWeight
+   *          The maximum total weight of the entries.
+   * @param weigher
+   *          Calculates the weight of an entry. Must return the same weight for an entry every
+   *          time it is called.
+   * @param evictionPolicy
+   *          The policy that selects the entries to evict.
+   */
+  public BoundedMap(final Map<K, V> wrapped, final long maximumWeight,
+      final ToLongBiFunction<? super K, ? super V> weigher,
+      final EvictionPolicy<K> evictionPolicy) {
+    if (maximumWeight < 0) {
+      throw new IllegalArgumentException("Maximum weight must not be negative: " + maximumWeight);
+    }
+    this.wrapped = Objects.requireNonNull(wrapped);
+    this.maximumWeight = maximumWeight;
+    this.weigher = Objects.requireNonNull(weigher);
+    this.evictionPolicy = Objects.requireNonNull(evictionPolicy);
+    for (Entry<K, V> entry : wrapped.entrySet()) {
+      evictionPolicy.recordInsertion(entry.getKey());
+      weight += weigher.applyAsLong(entry.getKey(), entry.getValue());
+    }
+    evictIfNecessary();
+  }
+
+  @Override
+  public void clear() {
+    readBuffer.drainTo((key) -> {
+    });
+    wrapped.clear();
+    evictionPolicy.clear();
+    weight = 0;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return wrapped.containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+    return wrapped.containsValue(value);
+  }
+
+  /**
+   * Passes the accesses recorded by the readers to the eviction policy.
+   */
+  protected void drainReadBuffer() {
+    readBuffer.drainTo(evictionPolicy::recordAccess);
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return Collections.unmodifiableSet(wrapped.entrySet());
+  }
+
+  /**
+   * Evicts entries until the total weight is not greater than the maximum weight.
+   */
+  protected void evictIfNecessary() {
+    while (weight > maximumWeight) {
+      K key = evictionPolicy.evict();
+      if (key == null) {
+        return;
+      }
+      if (wrapped.containsKey(key)) {
+        V value = wrapped.remove(key);
+        weight -= weigher.applyAsLong(key, value);
+        if (evictionListener != null) {
+          evictionListener.accept(key, value);
+        }
+      }
+    }
+  }
+
+  @Override
+  public V get(final Object key) {
+    V value = wrapped.get(key);
+    if (value != null && key != null) {
+      @SuppressWarnings("unchecked")
+      K typedKey = (K) key;
+      readBuffer.offer(typedKey);
+    }
+    return value;
+  }
+
+  public long getMaximumWeight() {
+    return maximumWeight;
+  }
+
+  public long getWeight() {
+    return weight;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return wrapped.isEmpty();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return Collections.unmodifiableSet(wrapped.keySet());
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+    drainReadBuffer();
+    V oldValue;
+    if (wrapped.containsKey(key)) {
+      oldValue = wrapped.put(key, value);
+      weight -= weigher.applyAsLong(key, oldValue);
+      evictionPolicy.recordAccess(key);
+    } else {
+      oldValue = wrapped.put(key, value);
+      evictionPolicy.recordInsertion(key);
+    }
+    weight += weigher.applyAsLong(key, value);
+    evictIfNecessary();
+    return oldValue;
+  }
+
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+    for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public V remove(final Object key) {
+    if (!wrapped.containsKey(key)) {
+      return null;
+    }
+    drainReadBuffer();
+    V oldValue = wrapped.remove(key);
+    @SuppressWarnings("unchecked")
+    K typedKey = (K) key;
+    weight -= weigher.applyAsLong(typedKey, oldValue);
+    evictionPolicy.recordRemoval(key);
+    return oldValue;
+  }
+
+  /**
+   * Sets the listener that is notified about each evicted entry. The listener is called while the
+   * entry is evicted, so it runs within the write lock of the {@link ReadCommitedTransactionalMap}.
+   * The committed state of {@link ReadCommitedTransactionalMap} registers itself to keep its
+   * secondary indexes consistent with the evictions.
+   *
+   * @param evictionListener
+   *          The listener or <code>null</code>.
+   */
+  public void setEvictionListener(final BiConsumer<? super K, ? super V> evictionListener) {
+    this.evictionListener = evictionListener;
+  }
+
+  @Override
+  public int size() {
+    return wrapped.size();
+  }
+
+  @Override
+  public Collection<V> values() {
+    return Collections.unmodifiableCollection(wrapped.values());
+  }
+}
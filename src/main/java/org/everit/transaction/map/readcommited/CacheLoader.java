@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads the values of the keys that are missing from the committed state of a
+ * {@link ReadCommitedTransactionalMap}. The loaded values are installed into the committed state
+ * directly, without a write transaction.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+@FunctionalInterface
+public interface CacheLoader<K, V> {
+
+  /**
+   * Loads the value of a key.
+   *
+   * @param key
+   *          The key that was not found in the committed state.
+   * @return The value of the key or <code>null</code> if the key does not have a value.
+   */
+  V load(K key);
+
+  /**
+   * Loads the values of several keys. The default implementation calls {@link #load(Object)} for
+   * each key; implementations backed by a database should override it to do a bulk query.
+   *
+   * @param keys
+   *          The keys that were not found in the committed state.
+   * @return The loaded values. Keys that do not have a value should be left out of the result.
+   */
+  default Map<K, V> loadAll(final Collection<? extends K> keys) {
+    Map<K, V> result = new HashMap<>();
+    for (K key : keys) {
+      V value = load(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable description of the changes that a transaction applied to the committed state of a
+ * {@link ReadCommitedTransactionalMap}.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public final class ChangeRecord<K, V> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final boolean cleared;
+
+  private final Map<K, V> puts;
+
+  private final Set<K> removes;
+
+  private final long sequence;
+
+  private final long timestamp;
+
+  /**
+   * Constructor. The passed collections must not be modified after calling the constructor.
+   *
+   * @param sequence
+   *          The sequence number of the commit.
+   * @param timestamp
+   *          The time of the commit in milliseconds since the epoch.
+   * @param cleared
+   *          Whether the map was cleared before applying the puts.
+   * @param removes
+   *          The removed keys.
+   * @param puts
+   *          The put entries.
+   */
+  public ChangeRecord(final long sequence, final long timestamp, final boolean cleared,
+      final Set<K> removes, final Map<K, V> puts) {
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.cleared = cleared;
+    this.removes = Collections.unmodifiableSet(removes);
+    this.puts = Collections.unmodifiableMap(puts);
+  }
+
+  /**
+   * The entries that were put into the map.
+   */
+  public Map<K, V> getPuts() {
+    return puts;
+  }
+
+  /**
+   * The keys that were removed from the map. Empty if the map was cleared.
+   */
+  public Set<K> getRemoves() {
+    return removes;
+  }
+
+  /**
+   * The sequence number of the commit. Each commit that changes the map gets the next number.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * The time of the commit in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Whether the map was cleared before the puts were applied.
+   */
+  public boolean isCleared() {
+    return cleared;
+  }
+
+  @Override
+  public String toString() {
+    return "ChangeRecord [sequence=" + sequence + ", cleared=" + cleared + ", removes=" + removes
+        + ", puts=" + puts + "]";
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+/**
+ * Subscription of a consumer to the {@link ChangeRecord}s of a {@link ReadCommitedTransactionalMap}.
+ */
+public interface ChangeSubscription extends AutoCloseable {
+
+  /**
+   * What should happen when the buffer of the subscription is full because the consumer is slower
+   * than the committing transactions.
+   */
+  enum OverflowStrategy {
+
+    /**
+     * The committing threads wait for free space in the buffer before they acquire the write lock
+     * of the map, so the commits slow down to the pace of the consumer while readers and the
+     * running commit are not blocked.
+     */
+    BACKPRESSURE,
+
+    /**
+     * The subscription is dropped: the consumer does not get any more records.
+     */
+    DROP_CONSUMER
+  }
+
+  /**
+   * Stops the delivery of the records. Records that are in the buffer are not delivered anymore.
+   */
+  @Override
+  void close();
+
+  /**
+   * Whether the subscription was dropped because the buffer was full or the consumer threw an
+   * exception.
+   */
+  boolean isDropped();
+}
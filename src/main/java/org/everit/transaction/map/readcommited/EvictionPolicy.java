@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+/**
+ * Decides which committed entry should be evicted from a {@link BoundedMap}. The functions of the
+ * policy are called only while the write lock of the committed state is held, so implementations
+ * do not have to be thread-safe.
+ *
+ * @param <K>
+ *          Type of the keys.
+ */
+public interface EvictionPolicy<K> {
+
+  /**
+   * Forgets all keys.
+   */
+  void clear();
+
+  /**
+   * Selects the key of the entry that should be evicted and forgets it.
+   *
+   * @return The key of the entry that should be evicted or <code>null</code> if the policy does not
+   *         know any key.
+   */
+  K evict();
+
+  /**
+   * Records that an entry was read or its value was replaced. Keys that are not known by the policy
+   * should be ignored.
+   *
+   * @param key
+   *          The key of the entry.
+   */
+  void recordAccess(K key);
+
+  /**
+   * Records that a new entry was put into the map.
+   *
+   * @param key
+   *          The key of the entry.
+   */
+  void recordInsertion(K key);
+
+  /**
+   * Records that an entry was removed from the map.
+   *
+   * @param key
+   *          The key of the entry.
+   */
+  void recordRemoval(Object key);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+/**
+ * The lock that protects the committed state of a {@link ReadCommitedTransactionalMap}.
+ */
+public enum LockStrategy {
+
+  /**
+   * A non-fair {@link java.util.concurrent.locks.ReentrantReadWriteLock}. Every read acquires the
+   * read lock.
+   */
+  READ_WRITE,
+
+  /**
+   * A {@link java.util.concurrent.locks.StampedLock}. The lookups of single keys
+   * ({@link java.util.Map#get(Object)} and {@link java.util.Map#containsKey(Object)}) read the
+   * committed state without locking and validate the stamp afterwards. They retry under the read
+   * lock only if a write interleaved with them, so they cost almost nothing while no commit is
+   * running. The lock is not reentrant: commit listeners must not read the map while they are
+   * called within the write lock.
+   */
+  STAMPED
+}
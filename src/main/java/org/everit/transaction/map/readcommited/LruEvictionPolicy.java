@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * {@link EvictionPolicy} that evicts the least recently used entry.
+ *
+ * @param <K>
+ *          Type of the keys.
+ */
+public class LruEvictionPolicy<K> implements EvictionPolicy<K> {
+
+  /**
+   * The keys from the least recently used to the most recently used one.
+   */
+  protected final LinkedHashSet<K> accessOrder = new LinkedHashSet<>();
+
+  @Override
+  public void clear() {
+    accessOrder.clear();
+  }
+
+  @Override
+  public K evict() {
+    Iterator<K> iterator = accessOrder.iterator();
+    if (!iterator.hasNext()) {
+      return null;
+    }
+    K key = iterator.next();
+    iterator.remove();
+    return key;
+  }
+
+  @Override
+  public void recordAccess(final K key) {
+    if (accessOrder.remove(key)) {
+      accessOrder.add(key);
+    }
+  }
+
+  @Override
+  public void recordInsertion(final K key) {
+    accessOrder.remove(key);
+    accessOrder.add(key);
+  }
+
+  @Override
+  public void recordRemoval(final Object key) {
+    accessOrder.remove(key);
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Validates the changes of a transaction of a {@link ReadCommitedTransactionalMap} before they are
+ * committed. The hook runs on the committing thread before any key is reserved and before the
+ * write lock is acquired, so it may block, but it must not modify the map.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+@FunctionalInterface
+public interface PreCommitHook<K, V> {
+
+  /**
+   * Validates the changes of a transaction. The commit or the prepare is rejected by throwing an
+   * exception, which is passed to the caller; the transaction stays active and unchanged, so it
+   * can be modified or rolled back.
+   *
+   * @param transaction
+   *          The transaction that is committed or prepared.
+   * @param cleared
+   *          Whether the transaction cleared the map before the puts.
+   * @param removes
+   *          The read-only view of the keys that the transaction removed.
+   * @param puts
+   *          The read-only view of the entries that the transaction put.
+   */
+  void validate(Object transaction, boolean cleared, Set<K> removes, Map<K, V> puts);
+}
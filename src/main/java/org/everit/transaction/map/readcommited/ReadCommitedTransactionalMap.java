@@ -15,16 +15,37 @@
  */
 package org.everit.transaction.map.readcommited;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import org.everit.transaction.map.TransactionalMap;
+import org.everit.transaction.map.readcommited.ChangeSubscription.OverflowStrategy;
+import org.everit.transaction.map.readcommited.internal.IndexTable;
 import org.everit.transaction.map.readcommited.internal.MapTxContext;
+import org.everit.transaction.map.readcommited.internal.PostCommitHookDispatcher;
 import org.everit.transaction.map.readcommited.internal.RWLockedMap;
+import org.everit.transaction.map.readcommited.internal.ReadThroughLoader;
+import org.everit.transaction.map.readcommited.internal.RingBufferChangePublisher;
+import org.everit.transaction.map.readcommited.internal.SnapshotFormat;
 
 /**
  * Transactional wrapper for {@link Map} interface that does all modification only during commiting
@@ -39,6 +60,10 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
 
   protected ThreadLocal<MapTxContext<K, V>> activeTx = new ThreadLocal<>();
 
+  protected final ReadThroughLoader<K, V> loader;
+
+  protected final List<PreCommitHook<K, V>> preCommitHooks = new CopyOnWriteArrayList<>();
+
   protected final Map<Object, MapTxContext<K, V>> suspendedTXContexts = new ConcurrentHashMap<>();
 
   protected final RWLockedMap<K, V> wrapped;
@@ -50,13 +75,151 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
    *          The Map that should is managed by this class.
    */
   public ReadCommitedTransactionalMap(final Map<K, V> wrapped) {
-    if (wrapped != null) {
-      this.wrapped = new RWLockedMap<>(wrapped);
+    this(wrapped, null);
+  }
+
+  /**
+   * Constructor of a read-through map. When {@link #get(Object)} or {@link #getAll(Collection)}
+   * does not find a key, the value is loaded by the cache loader and installed into the committed
+   * state without a write transaction. Concurrent loads of the same key are done only once.
+   *
+   * @param wrapped
+   *          The Map that should is managed by this class.
+   * @param cacheLoader
+   *          The loader of the missing values or <code>null</code> if read-through loading should
+   *          not be used.
+   */
+  public ReadCommitedTransactionalMap(final Map<K, V> wrapped,
+      final CacheLoader<K, V> cacheLoader) {
+    this(wrapped, cacheLoader, LockStrategy.READ_WRITE);
+  }
+
+  /**
+   * Constructor of a map whose committed state is protected by a specific kind of lock.
+   *
+   * @param wrapped
+   *          The Map that should is managed by this class.
+   * @param cacheLoader
+   *          The loader of the missing values or <code>null</code> if read-through loading should
+   *          not be used.
+   * @param lockStrategy
+   *          The lock that protects the committed state.
+   */
+  public ReadCommitedTransactionalMap(final Map<K, V> wrapped,
+      final CacheLoader<K, V> cacheLoader, final LockStrategy lockStrategy) {
+    this.wrapped = createRWLockedMap((wrapped != null) ? wrapped : new HashMap<>(),
+        Objects.requireNonNull(lockStrategy));
+    if (cacheLoader != null) {
+      this.loader = new ReadThroughLoader<>(cacheLoader, this.wrapped);
     } else {
-      this.wrapped = new RWLockedMap<>(new HashMap<>());
+      this.loader = null;
     }
   }
 
+  /**
+   * Registers a secondary index that finds entries by an attribute of their values. The index is
+   * filled with the committed entries and it is updated within the write lock by every later
+   * write, so it is always consistent with the committed state.
+   *
+   * @param indexFunction
+   *          Calculates the index key of a value. Must return the same index key for a value every
+   *          time it is called. Entries whose index key is <code>null</code> are not indexed.
+   * @return The index that can be passed to {@link #getByIndex(SecondaryIndex, Object)}.
+   */
+  public <I> SecondaryIndex<K, V, I> addIndex(
+      final Function<? super V, ? extends I> indexFunction) {
+    IndexTable<K, V, I> indexTable = new IndexTable<>(indexFunction);
+    wrapped.addIndex(indexTable);
+    return new SecondaryIndex<>(indexTable);
+  }
+
+  /**
+   * Registers a hook that is called with the {@link ChangeRecord} of each commit that changes the
+   * map, including the modifications outside of transactions. The records are collected while the
+   * write lock is held and each of them is passed to the hook in a separate task that is submitted
+   * to the executor after the write lock is released, so a slow hook does not delay the commits.
+   * The tasks might run concurrently and in any order; use
+   * {@link #subscribeChanges(Consumer, int, OverflowStrategy, Executor)} if the records are
+   * needed in commit order. If the hook throws an exception or the executor rejects a task, the
+   * exception is passed to the uncaught exception handler of the thread and the hook stays
+   * registered.
+   *
+   * @param hook
+   *          The hook.
+   * @param executor
+   *          The executor that runs the tasks that call the hook.
+   * @return The subscription that can be used to unregister the hook.
+   */
+  public ChangeSubscription addPostCommitHook(final Consumer<? super ChangeRecord<K, V>> hook,
+      final Executor executor) {
+    return addPostCommitHook(hook, executor, PostCommitHookDispatcher::reportUncaught, false);
+  }
+
+  /**
+   * Registers a hook like {@link #addPostCommitHook(Consumer, Executor)} with a custom handling of
+   * the failures.
+   *
+   * @param hook
+   *          The hook.
+   * @param executor
+   *          The executor that runs the tasks that call the hook.
+   * @param failureHandler
+   *          Called with the record and the exception if the hook throws an exception or the
+   *          executor rejects the task of a record. It is called on the thread of the task or, if
+   *          the task is rejected, on the committing thread after the commit is done.
+   * @param dropOnFailure
+   *          Whether the hook should not be called anymore after the first failure. The
+   *          subscription reports the hook as dropped then.
+   * @return The subscription that can be used to unregister the hook.
+   */
+  public ChangeSubscription addPostCommitHook(final Consumer<? super ChangeRecord<K, V>> hook,
+      final Executor executor,
+      final BiConsumer<? super ChangeRecord<K, V>, ? super RuntimeException> failureHandler,
+      final boolean dropOnFailure) {
+    PostCommitHookDispatcher<K, V> dispatcher = new PostCommitHookDispatcher<>(wrapped,
+        Objects.requireNonNull(hook), Objects.requireNonNull(executor),
+        Objects.requireNonNull(failureHandler), dropOnFailure);
+    wrapped.addCommitListener(dispatcher);
+    return dispatcher;
+  }
+
+  /**
+   * Registers a hook that validates the changes of each transaction before it is prepared or, if
+   * it is not prepared, before it is committed. Transactions that did not change anything are not
+   * validated. The hooks run on the committing thread in the order of their registration.
+   *
+   * @param hook
+   *          The hook.
+   */
+  public void addPreCommitHook(final PreCommitHook<K, V> hook) {
+    preCommitHooks.add(Objects.requireNonNull(hook));
+  }
+
+  /**
+   * Attaches a follower to this map. The current committed state is copied within the write lock
+   * and shipped to the follower as the first record; after that, the ordered batches of the
+   * commits are shipped by tasks that run on the executor. If the buffer of the follower is full,
+   * the committing threads wait for free space before acquiring the write lock. If the transport
+   * fails, no more batches are shipped to it.
+   *
+   * @param transport
+   *          The transport that ships the batches to the follower.
+   * @param bufferCapacity
+   *          The maximum number of records that are buffered for the follower.
+   * @param executor
+   *          The executor that runs the tasks that call the transport.
+   * @return The subscription that can be used to detach the follower.
+   */
+  public ChangeSubscription addReplica(final ReplicationTransport<K, V> transport,
+      final int bufferCapacity, final Executor executor) {
+    Objects.requireNonNull(transport);
+    RingBufferChangePublisher<K, V> publisher = new RingBufferChangePublisher<>(wrapped,
+        transport::send, bufferCapacity, OverflowStrategy.BACKPRESSURE,
+        Objects.requireNonNull(executor));
+    wrapped.addCommitListenerWithSnapshot(publisher);
+    return publisher;
+  }
+
   @Override
   public void clear() {
     coalesceActiveTxOrWrapped().clear();
@@ -73,10 +236,41 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
     if (mapTXContext == null) {
       throw new IllegalStateException("There is no active transaction to commit");
     }
+    if (!mapTXContext.isPrepared()) {
+      runPreCommitHooks(mapTXContext);
+    }
     mapTXContext.commit();
     setActiveTx(null);
   }
 
+  /**
+   * Computes the value of a key atomically. Outside of transactions the function is called within
+   * the write lock of the committed state, so it should be fast and it must not access this map.
+   * Within a transaction the result is stored in the transaction.
+   */
+  @Override
+  public V compute(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return coalesceActiveTxOrWrapped().compute(key, remappingFunction);
+  }
+
+  /**
+   * Computes the value of a missing key atomically. See {@link #compute(Object, BiFunction)}.
+   */
+  @Override
+  public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+    return coalesceActiveTxOrWrapped().computeIfAbsent(key, mappingFunction);
+  }
+
+  /**
+   * Computes the value of an existing key atomically. See {@link #compute(Object, BiFunction)}.
+   */
+  @Override
+  public V computeIfPresent(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return coalesceActiveTxOrWrapped().computeIfPresent(key, remappingFunction);
+  }
+
   @Override
   public boolean containsKey(final Object key) {
     return coalesceActiveTxOrWrapped().containsKey(key);
@@ -88,7 +282,32 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
   }
 
   protected MapTxContext<K, V> createMapTxContext(final Object transaction) {
-    return new MapTxContext<K, V>(wrapped, transaction);
+    return new MapTxContext<K, V>(wrapped, transaction, loader);
+  }
+
+  /**
+   * Creates the committed state. Called from the constructor, so it must not use the fields of
+   * subclasses.
+   *
+   * @param wrapped
+   *          The Map that should is managed by this class.
+   * @param lockStrategy
+   *          The lock that protects the committed state.
+   * @return The committed state.
+   */
+  protected RWLockedMap<K, V> createRWLockedMap(final Map<K, V> wrapped,
+      final LockStrategy lockStrategy) {
+    return new RWLockedMap<>(wrapped, lockStrategy);
+  }
+
+  /**
+   * Starts counting the committed entries per value, so that {@link #containsValue(Object)} runs in
+   * constant time outside of transactions and in time proportional to the number of changes
+   * within a transaction, instead of iterating all entries. The counts are updated by every write
+   * within the write lock.
+   */
+  public void enableValueCountIndex() {
+    wrapped.enableValueCountIndex();
   }
 
   @Override
@@ -96,15 +315,130 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
     return coalesceActiveTxOrWrapped().entrySet();
   }
 
+  /**
+   * Removes the entries whose time-to-live passed from the committed state. Expired entries are
+   * treated as absent by lookups and are removed by the writes anyway; this function is useful to
+   * free the memory of a map that is not written for a long time.
+   */
+  public void expireEntries() {
+    wrapped.expireEntries();
+  }
+
+  /**
+   * Writes the committed state to a channel in a compact binary format. The committed entries are
+   * copied within the read lock and they are encoded after the lock is released, so commits are
+   * blocked only for the time of the copy and not while the snapshot is written. The state of the
+   * active transaction is not exported and the time-to-live of the entries is not kept.
+   *
+   * @param channel
+   *          The channel to write to, e.g. a {@link java.nio.channels.FileChannel}. It is not
+   *          closed.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @return The commit sequence of the exported state.
+   * @throws IOException
+   *           if the channel cannot be written.
+   */
+  public long exportSnapshot(final WritableByteChannel channel,
+      final SnapshotCodec<? super K> keyCodec, final SnapshotCodec<? super V> valueCodec)
+      throws IOException {
+    Objects.requireNonNull(channel);
+    Objects.requireNonNull(keyCodec);
+    Objects.requireNonNull(valueCodec);
+    ChangeRecord<K, V> snapshot = wrapped.snapshot();
+    SnapshotFormat.write(snapshot, channel, keyCodec, valueCodec);
+    return snapshot.getSequence();
+  }
+
   @Override
   public V get(final Object key) {
-    return coalesceActiveTxOrWrapped().get(key);
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext != null) {
+      return txContext.get(key);
+    }
+    V value = wrapped.get(key);
+    if (value == null && loader != null) {
+      value = loader.load(key);
+    }
+    return value;
+  }
+
+  /**
+   * Returns the values of several keys. The active transaction is resolved once and the committed
+   * values are read within one read lock acquisition. If there is a cache loader, the keys that are
+   * not found are loaded with one {@link CacheLoader#loadAll(Collection)} call.
+   *
+   * @param keys
+   *          The keys.
+   * @return The keys that have a value and their values.
+   */
+  public Map<K, V> getAll(final Collection<? extends K> keys) {
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext != null) {
+      return txContext.getAll(keys);
+    }
+    Map<K, V> result = wrapped.getAll(keys);
+    if (loader != null && result.size() < keys.size()) {
+      List<K> missingKeys = new ArrayList<>();
+      for (K key : keys) {
+        if (!result.containsKey(key)) {
+          missingKeys.add(key);
+        }
+      }
+      if (!missingKeys.isEmpty()) {
+        result.putAll(loader.loadAll(missingKeys));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the entries whose values have a specific index key. Within a transaction, the changes
+   * of the transaction are applied on the committed entries of the index; otherwise the committed
+   * entries are returned.
+   *
+   * @param index
+   *          An index of this map.
+   * @param indexKey
+   *          The index key.
+   * @return The matching entries in an unmodifiable map.
+   * @throws IllegalArgumentException
+   *           if the index is not registered on this map.
+   */
+  public <I> Map<K, V> getByIndex(final SecondaryIndex<K, V, I> index, final I indexKey) {
+    IndexTable<K, V, I> indexTable = index.getIndexTable();
+    Objects.requireNonNull(indexKey);
+    MapTxContext<K, V> txContext = getActiveTx();
+    Map<K, V> result = (txContext != null) ? txContext.getByIndex(indexTable, indexKey)
+        : wrapped.getByIndex(indexTable, indexKey);
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Returns the sequence number of the last change of the committed state. The followers can be
+   * compared to it to calculate their lag.
+   */
+  public long getCommitSequence() {
+    return wrapped.getCommitSequence();
   }
 
   protected MapTxContext<K, V> getActiveTx() {
     return activeTx.get();
   }
 
+  private MapTxContext<K, V> getSavepointTx(final Savepoint savepoint) {
+    Objects.requireNonNull(savepoint);
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null
+        || !Objects.equals(txContext.getTransaction(), savepoint.getTransaction())) {
+      throw new IllegalStateException(
+          "Savepoint does not belong to the active associated transaction");
+    }
+    return txContext;
+  }
+
   @Override
   public Object getAssociatedTransaction() {
     MapTxContext<K, V> txContext = getActiveTx();
@@ -114,6 +448,45 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
     return txContext.getTransaction();
   }
 
+  /**
+   * Replaces the committed state with the entries of a snapshot that was written by
+   * {@link #exportSnapshot(WritableByteChannel, SnapshotCodec, SnapshotCodec)}. The entries are
+   * decoded into a new store and the indexes are built without holding any lock; the new store
+   * is installed in one step, like when the map is cleared with a store factory. The new store is
+   * created by the factory that is set with {@link #setClearStoreFactory(Supplier)}, or it is a
+   * {@link HashMap} if there is no factory and the current store is a {@link HashMap} too. The
+   * changes of the active transactions are kept.
+   *
+   * @param channel
+   *          The channel to read from. It is not closed and it might be read further than the end
+   *          of the snapshot.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @return The commit sequence that the exported state had.
+   * @throws IOException
+   *           if the channel cannot be read or it does not contain a snapshot. The committed
+   *           state is not changed in that case.
+   * @throws IllegalStateException
+   *           if there is no store factory and the current store is not a {@link HashMap}, e.g.
+   *           it is a {@link BoundedMap}, or if a prepared transaction reserved any key.
+   */
+  public long importSnapshot(final ReadableByteChannel channel,
+      final SnapshotCodec<? extends K> keyCodec, final SnapshotCodec<? extends V> valueCodec)
+      throws IOException {
+    Objects.requireNonNull(channel);
+    Objects.requireNonNull(keyCodec);
+    Objects.requireNonNull(valueCodec);
+    Map<K, V> newStore = wrapped.createEmptyStore();
+    if (!newStore.isEmpty()) {
+      throw new IllegalStateException("The store factory must create empty maps");
+    }
+    long exportedCommitSequence = SnapshotFormat.read(channel, keyCodec, valueCodec, newStore);
+    wrapped.replaceStore(newStore);
+    return exportedCommitSequence;
+  }
+
   @Override
   public boolean isEmpty() {
     return coalesceActiveTxOrWrapped().isEmpty();
@@ -124,21 +497,139 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
     return coalesceActiveTxOrWrapped().keySet();
   }
 
+  /**
+   * Merges a value into the value of a key atomically. See {@link #compute(Object, BiFunction)}.
+   */
+  @Override
+  public V merge(final K key, final V value,
+      final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    return coalesceActiveTxOrWrapped().merge(key, value, remappingFunction);
+  }
+
+  /**
+   * Prepares the active transaction for a two-phase commit. The keys that the transaction modifies
+   * (or the whole map if the transaction cleared it) are reserved without blocking the readers of
+   * the map, so a subsequent {@link #commitTransaction()} cannot fail due to other transactions
+   * and it applies the changes within a short critical section. Other transactions that try to
+   * prepare or commit changes on the reserved keys fail with {@link IllegalStateException} until
+   * the prepared transaction is committed or rolled back, and so do the writes of the reserved
+   * keys outside of transactions. If other transactions are being
+   * committed, the preparation waits until they finish. A prepared transaction cannot be modified
+   * anymore.
+   *
+   * @throws IllegalStateException
+   *           if there is no active transaction, the transaction is already prepared or any of the
+   *           keys is reserved by another transaction.
+   */
+  public void prepareTransaction() {
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
+      throw new IllegalStateException("There is no active transaction to prepare");
+    }
+    if (!txContext.isPrepared()) {
+      runPreCommitHooks(txContext);
+    }
+    txContext.prepare();
+  }
+
   @Override
   public V put(final K key, final V value) {
     return coalesceActiveTxOrWrapped().put(key, value);
   }
 
+  /**
+   * Puts an entry that is removed automatically when its time-to-live passes. Within a transaction
+   * the time-to-live starts when the transaction is committed. Lookups never return expired
+   * entries, but {@link #size()} might count them until they are removed: if there are change
+   * subscribers or the write lock is busy, that happens at the next write or at
+   * {@link #expireEntries()}.
+   *
+   * @param key
+   *          The key.
+   * @param value
+   *          The value.
+   * @param timeToLive
+   *          The time-to-live of the entry.
+   * @param timeUnit
+   *          The unit of the time-to-live.
+   * @return The previous value of the key.
+   */
+  public V put(final K key, final V value, final long timeToLive, final TimeUnit timeUnit) {
+    if (timeToLive < 0) {
+      throw new IllegalArgumentException("Time-to-live must not be negative: " + timeToLive);
+    }
+    long timeToLiveNanos = timeUnit.toNanos(timeToLive);
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext != null) {
+      return txContext.put(key, value, timeToLiveNanos);
+    }
+    return wrapped.put(key, value, timeToLiveNanos);
+  }
+
   @Override
   public void putAll(final Map<? extends K, ? extends V> m) {
     coalesceActiveTxOrWrapped().putAll(m);
   }
 
+  @Override
+  public V putIfAbsent(final K key, final V value) {
+    return coalesceActiveTxOrWrapped().putIfAbsent(key, value);
+  }
+
+  /**
+   * Releases a savepoint of the active transaction and all savepoints that were set after it. The
+   * changes that were done after the savepoint are kept.
+   *
+   * @param savepoint
+   *          The savepoint.
+   * @throws IllegalStateException
+   *           if the savepoint does not belong to the active transaction or it was already
+   *           released.
+   */
+  public void releaseSavepoint(final Savepoint savepoint) {
+    getSavepointTx(savepoint).releaseSavepoint(savepoint.getId());
+  }
+
   @Override
   public V remove(final Object key) {
     return coalesceActiveTxOrWrapped().remove(key);
   }
 
+  @Override
+  public boolean remove(final Object key, final Object value) {
+    return coalesceActiveTxOrWrapped().remove(key, value);
+  }
+
+  /**
+   * Unregisters a secondary index. The index cannot be queried anymore.
+   *
+   * @param index
+   *          An index of this map.
+   */
+  public void removeIndex(final SecondaryIndex<K, V, ?> index) {
+    wrapped.removeIndex(index.getIndexTable());
+  }
+
+  @Override
+  public V replace(final K key, final V value) {
+    return coalesceActiveTxOrWrapped().replace(key, value);
+  }
+
+  @Override
+  public boolean replace(final K key, final V oldValue, final V newValue) {
+    return coalesceActiveTxOrWrapped().replace(key, oldValue, newValue);
+  }
+
+  /**
+   * Unregisters a hook that was registered by {@link #addPreCommitHook(PreCommitHook)}.
+   *
+   * @param hook
+   *          The hook.
+   */
+  public void removePreCommitHook(final PreCommitHook<K, V> hook) {
+    preCommitHooks.remove(hook);
+  }
+
   @Override
   public void resumeTransaction(final Object transaction) {
     Objects.requireNonNull(transaction);
@@ -155,23 +646,116 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
 
   @Override
   public void rollbackTransaction() {
-    if (getActiveTx() == null) {
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
       throw new IllegalStateException("No active associated transaction to rollback.");
     }
+    txContext.rollback();
     setActiveTx(null);
   }
 
+  /**
+   * Rolls back the changes of the active transaction that were done after a savepoint. The
+   * savepoints that were set after the savepoint are released, while the savepoint itself can be
+   * used again.
+   *
+   * @param savepoint
+   *          The savepoint.
+   * @throws IllegalStateException
+   *           if the savepoint does not belong to the active transaction or it was already
+   *           released.
+   */
+  public void rollbackToSavepoint(final Savepoint savepoint) {
+    getSavepointTx(savepoint).rollbackToSavepoint(savepoint.getId());
+  }
+
+  /**
+   * Passes the changes of a transaction to the pre-commit hooks unless it did not change anything.
+   */
+  private void runPreCommitHooks(final MapTxContext<K, V> txContext) {
+    if (txContext.isReadOnly()) {
+      return;
+    }
+    for (PreCommitHook<K, V> hook : preCommitHooks) {
+      txContext.validate(hook);
+    }
+  }
+
   protected void setActiveTx(final MapTxContext<K, V> mapContext) {
     activeTx.set(mapContext);
   }
 
+  /**
+   * Switches the committed store to generation swapping on clear. If a factory is set, clearing
+   * the map or committing a transaction that cleared the map populates a new store from the
+   * factory without blocking the readers and replaces the previous store in one step; the
+   * previous store is left for the garbage collector. This fits the pattern of reloading the whole
+   * content of big maps.
+   *
+   * @param clearStoreFactory
+   *          The factory that creates new empty stores or <code>null</code> to clear the store in
+   *          place, which is the default.
+   */
+  public void setClearStoreFactory(final Supplier<? extends Map<K, V>> clearStoreFactory) {
+    wrapped.setClearStoreFactory(clearStoreFactory);
+  }
+
+  /**
+   * Sets the source of the current time that the time-to-live of the entries is measured with,
+   * for example to control the time in tests. Must be set before any entry with time-to-live is
+   * put. The default is {@link System#nanoTime()}.
+   *
+   * @param ticker
+   *          Returns the current time in nanoseconds.
+   */
+  public void setTicker(final LongSupplier ticker) {
+    wrapped.setTicker(ticker);
+  }
+
+  /**
+   * Sets a savepoint in the active transaction. Until the savepoint is released, each change of
+   * the transaction is recorded in an undo log, so rolling back to the savepoint costs only as
+   * much as the changes that were done after it.
+   *
+   * @return The savepoint.
+   * @throws IllegalStateException
+   *           if there is no active transaction.
+   */
+  public Savepoint setSavepoint() {
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
+      throw new IllegalStateException("There is no active associated transaction to set savepoint");
+    }
+    return new Savepoint(txContext.getTransaction(), txContext.setSavepoint());
+  }
+
   @Override
   public int size() {
     return coalesceActiveTxOrWrapped().size();
   }
 
+  /**
+   * Starts a transaction that does not modify the map. The modifying methods throw an
+   * {@link IllegalStateException} within the transaction. Reads of a transaction go straight to
+   * the committed state until the first change, so a read-only transaction reads as fast as a
+   * non-transactional caller.
+   *
+   * @param transaction
+   *          The transaction.
+   * @throws IllegalStateException
+   *           if there is an active transaction or the transaction is suspended.
+   */
+  public void startReadOnlyTransaction(final Object transaction) {
+    MapTxContext<K, V> txContext = startTransactionContext(transaction);
+    txContext.declareReadOnly();
+  }
+
   @Override
   public void startTransaction(final Object transaction) {
+    startTransactionContext(transaction);
+  }
+
+  private MapTxContext<K, V> startTransactionContext(final Object transaction) {
     if (getActiveTx() != null) {
       throw new IllegalStateException(
           "Cannot start new transaction when there is an associated active transaction");
@@ -180,7 +764,37 @@ public class ReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V
       throw new IllegalStateException(
           "Transaction is already associated to Map in suspended state");
     }
-    setActiveTx(createMapTxContext(transaction));
+    MapTxContext<K, V> txContext = createMapTxContext(transaction);
+    setActiveTx(txContext);
+    return txContext;
+  }
+
+  /**
+   * Subscribes a consumer to the changes of the committed state. Each commit that changes the map
+   * is published as a {@link ChangeRecord}; read-only commits are not published. The records are
+   * put into a bounded lock-free ring buffer while the write lock is held and they are passed to
+   * the consumer in commit order by tasks that run on the executor, so the consumer never runs
+   * within the write lock.
+   *
+   * @param consumer
+   *          The consumer of the records.
+   * @param bufferCapacity
+   *          The maximum number of records that are buffered for the consumer.
+   * @param overflowStrategy
+   *          What should happen if the buffer is full.
+   * @param executor
+   *          The executor that runs the tasks that call the consumer.
+   * @return The subscription that can be used to stop the delivery.
+   */
+  public ChangeSubscription subscribeChanges(final Consumer<? super ChangeRecord<K, V>> consumer,
+      final int bufferCapacity, final OverflowStrategy overflowStrategy,
+      final Executor executor) {
+    Objects.requireNonNull(consumer);
+    RingBufferChangePublisher<K, V> publisher = new RingBufferChangePublisher<>(wrapped,
+        (batch) -> batch.forEach(consumer), bufferCapacity,
+        Objects.requireNonNull(overflowStrategy), Objects.requireNonNull(executor));
+    wrapped.addCommitListener(publisher);
+    return publisher;
   }
 
   /**
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.everit.transaction.map.readcommited.internal.MapTxContext;
+import org.everit.transaction.map.readcommited.internal.MergedNavigableMap;
+import org.everit.transaction.map.readcommited.internal.NavigableMapTxContext;
+import org.everit.transaction.map.readcommited.internal.RWLockedMap;
+import org.everit.transaction.map.readcommited.internal.RWLockedNavigableMap;
+
+/**
+ * A {@link ReadCommitedTransactionalMap} that keeps its keys in order. The committed state is a
+ * {@link ConcurrentNavigableMap} and the overlay of the transactions is sorted in the same order,
+ * so range queries, navigation and ordered iteration within a transaction merge the two on the fly
+ * and stream the entries in key order. The views are read-only and they reflect the later changes
+ * of the map.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class ReadCommitedTransactionalNavigableMap<K, V> extends ReadCommitedTransactionalMap<K, V>
+    implements NavigableMap<K, V> {
+
+  /**
+   * The view of the committed state that is used outside of transactions.
+   */
+  protected final NavigableMap<K, V> committedView;
+
+  /**
+   * Constructor of a map that orders its keys by their natural ordering.
+   */
+  public ReadCommitedTransactionalNavigableMap() {
+    this(new ConcurrentSkipListMap<>());
+  }
+
+  /**
+   * Constructor of a map that orders its keys by a comparator.
+   *
+   * @param comparator
+   *          The comparator of the keys.
+   */
+  public ReadCommitedTransactionalNavigableMap(final Comparator<? super K> comparator) {
+    this(new ConcurrentSkipListMap<>(comparator));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The Map that should is managed by this class.
+   */
+  public ReadCommitedTransactionalNavigableMap(final ConcurrentNavigableMap<K, V> wrapped) {
+    this(wrapped, null);
+  }
+
+  /**
+   * Constructor of a read-through map.
+   *
+   * @param wrapped
+   *          The Map that should is managed by this class.
+   * @param cacheLoader
+   *          The loader of the missing values or <code>null</code> if read-through loading should
+   *          not be used.
+   */
+  public ReadCommitedTransactionalNavigableMap(final ConcurrentNavigableMap<K, V> wrapped,
+      final CacheLoader<K, V> cacheLoader) {
+    super(Objects.requireNonNull(wrapped), cacheLoader);
+    RWLockedNavigableMap<K, V> store = getNavigableStore();
+    committedView = new MergedNavigableMap<>(store::getNavigableStore, store::getEmptyMap,
+        (key) -> false);
+  }
+
+  @Override
+  public Entry<K, V> ceilingEntry(final K key) {
+    return view().ceilingEntry(key);
+  }
+
+  @Override
+  public K ceilingKey(final K key) {
+    return view().ceilingKey(key);
+  }
+
+  @Override
+  public Comparator<? super K> comparator() {
+    return getNavigableStore().comparator();
+  }
+
+  @Override
+  protected MapTxContext<K, V> createMapTxContext(final Object transaction) {
+    return new NavigableMapTxContext<>(getNavigableStore(), transaction, loader);
+  }
+
+  @Override
+  protected RWLockedMap<K, V> createRWLockedMap(final Map<K, V> wrapped,
+      final LockStrategy lockStrategy) {
+    return new RWLockedNavigableMap<>((ConcurrentNavigableMap<K, V>) wrapped, lockStrategy);
+  }
+
+  @Override
+  public NavigableSet<K> descendingKeySet() {
+    return view().descendingKeySet();
+  }
+
+  @Override
+  public NavigableMap<K, V> descendingMap() {
+    return view().descendingMap();
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return view().entrySet();
+  }
+
+  @Override
+  public Entry<K, V> firstEntry() {
+    return view().firstEntry();
+  }
+
+  @Override
+  public K firstKey() {
+    return view().firstKey();
+  }
+
+  @Override
+  public Entry<K, V> floorEntry(final K key) {
+    return view().floorEntry(key);
+  }
+
+  @Override
+  public K floorKey(final K key) {
+    return view().floorKey(key);
+  }
+
+  private RWLockedNavigableMap<K, V> getNavigableStore() {
+    return (RWLockedNavigableMap<K, V>) wrapped;
+  }
+
+  @Override
+  public SortedMap<K, V> headMap(final K toKey) {
+    return view().headMap(toKey);
+  }
+
+  @Override
+  public NavigableMap<K, V> headMap(final K toKey, final boolean inclusive) {
+    return view().headMap(toKey, inclusive);
+  }
+
+  @Override
+  public Entry<K, V> higherEntry(final K key) {
+    return view().higherEntry(key);
+  }
+
+  @Override
+  public K higherKey(final K key) {
+    return view().higherKey(key);
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return view().navigableKeySet();
+  }
+
+  @Override
+  public Entry<K, V> lastEntry() {
+    return view().lastEntry();
+  }
+
+  @Override
+  public K lastKey() {
+    return view().lastKey();
+  }
+
+  @Override
+  public Entry<K, V> lowerEntry(final K key) {
+    return view().lowerEntry(key);
+  }
+
+  @Override
+  public K lowerKey(final K key) {
+    return view().lowerKey(key);
+  }
+
+  @Override
+  public NavigableSet<K> navigableKeySet() {
+    return view().navigableKeySet();
+  }
+
+  private Entry<K, V> poll(final boolean first) {
+    while (true) {
+      Entry<K, V> entry = (first) ? firstEntry() : lastEntry();
+      if (entry == null) {
+        return null;
+      }
+      // Outside of transactions another thread might remove the entry in the meantime
+      V value = remove(entry.getKey());
+      if (value != null) {
+        return new SimpleImmutableEntry<>(entry.getKey(), value);
+      }
+    }
+  }
+
+  @Override
+  public Entry<K, V> pollFirstEntry() {
+    return poll(true);
+  }
+
+  @Override
+  public Entry<K, V> pollLastEntry() {
+    return poll(false);
+  }
+
+  @Override
+  public NavigableMap<K, V> subMap(final K fromKey, final boolean fromInclusive, final K toKey,
+      final boolean toInclusive) {
+    return view().subMap(fromKey, fromInclusive, toKey, toInclusive);
+  }
+
+  @Override
+  public SortedMap<K, V> subMap(final K fromKey, final K toKey) {
+    return view().subMap(fromKey, toKey);
+  }
+
+  @Override
+  public SortedMap<K, V> tailMap(final K fromKey) {
+    return view().tailMap(fromKey);
+  }
+
+  @Override
+  public NavigableMap<K, V> tailMap(final K fromKey, final boolean inclusive) {
+    return view().tailMap(fromKey, inclusive);
+  }
+
+  @Override
+  public Collection<V> values() {
+    return view().values();
+  }
+
+  /**
+   * Returns the ordered view of the active transaction or of the committed state if there is no
+   * active transaction.
+   *
+   * @return The view.
+   */
+  protected NavigableMap<K, V> view() {
+    MapTxContext<K, V> txContext = getActiveTx();
+    if (txContext != null) {
+      return ((NavigableMapTxContext<K, V>) txContext).navigableView();
+    }
+    return committedView;
+  }
+}
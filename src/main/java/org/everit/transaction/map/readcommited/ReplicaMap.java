@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Read-only follower of a primary {@link ReadCommitedTransactionalMap}. The follower applies the
+ * commit batches of the primary in sequence order and serves reads without locking. The records of
+ * a batch are applied to a copy of the entries that is published with one volatile write, so the
+ * changes of one commit are made visible at the same time and readers only dereference the
+ * current immutable map. The collection views show the entries that were applied when the view
+ * was requested. Records that arrive out of order are buffered until the missing records arrive.
+ * The follower can be used directly as an in-process {@link ReplicationTransport}.
+ *
+ * <p>
+ * Null keys and values are not supported.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class ReplicaMap<K, V> implements Map<K, V>, ReplicationTransport<K, V> {
+
+  /**
+   * The sequence of the last applied commit or -1 if the follower did not get the initial state
+   * yet.
+   */
+  protected volatile long appliedSequence = -1;
+
+  /**
+   * The commit time of the last applied record on the primary.
+   */
+  protected volatile long appliedTimestamp;
+
+  /**
+   * The applied entries. The map is never modified after it is published; applying records
+   * replaces it with a modified copy.
+   */
+  protected volatile Map<K, V> entries = Collections.emptyMap();
+
+  /**
+   * Records that arrived before some previous record. Accessed only while the monitor of this
+   * object is held.
+   */
+  protected final NavigableMap<Long, ChangeRecord<K, V>> pendingRecords = new TreeMap<>();
+
+  /**
+   * The commit time of the latest record that arrived from the primary.
+   */
+  protected volatile long receivedTimestamp;
+
+  protected volatile long replicationLagMillis;
+
+  /**
+   * Applies a batch of records of the primary. Records that were already applied are ignored.
+   *
+   * @param batch
+   *          The records.
+   */
+  public synchronized void apply(final List<ChangeRecord<K, V>> batch) {
+    for (ChangeRecord<K, V> changeRecord : batch) {
+      receivedTimestamp = Math.max(receivedTimestamp, changeRecord.getTimestamp());
+      if (appliedSequence < 0 || changeRecord.getSequence() > appliedSequence) {
+        pendingRecords.put(changeRecord.getSequence(), changeRecord);
+      }
+    }
+    applyPendingRecords();
+  }
+
+  private void applyPendingRecords() {
+    if (appliedSequence < 0) {
+      // The initial state is the latest cleared record as it describes the full state
+      Long initialSequence = null;
+      for (ChangeRecord<K, V> changeRecord : pendingRecords.descendingMap().values()) {
+        if (changeRecord.isCleared()) {
+          initialSequence = changeRecord.getSequence();
+          break;
+        }
+      }
+      if (initialSequence == null) {
+        return;
+      }
+      pendingRecords.headMap(initialSequence, false).clear();
+    }
+
+    Map<K, V> nextEntries = null;
+    long lastSequence = appliedSequence;
+    ChangeRecord<K, V> lastRecord = null;
+    Iterator<ChangeRecord<K, V>> iterator = pendingRecords.values().iterator();
+    while (iterator.hasNext()) {
+      ChangeRecord<K, V> changeRecord = iterator.next();
+      long sequence = changeRecord.getSequence();
+      if (sequence != lastSequence + 1 && !(lastSequence < 0 && changeRecord.isCleared())) {
+        break;
+      }
+      iterator.remove();
+      if (changeRecord.isCleared()) {
+        nextEntries = new HashMap<>();
+      } else if (nextEntries == null) {
+        nextEntries = new HashMap<>(entries);
+      }
+      applyRecord(changeRecord, nextEntries);
+      lastSequence = sequence;
+      lastRecord = changeRecord;
+    }
+    if (lastRecord == null) {
+      return;
+    }
+    entries = Collections.unmodifiableMap(nextEntries);
+    appliedSequence = lastSequence;
+    appliedTimestamp = lastRecord.getTimestamp();
+    replicationLagMillis = System.currentTimeMillis() - lastRecord.getTimestamp();
+  }
+
+  private void applyRecord(final ChangeRecord<K, V> changeRecord, final Map<K, V> nextEntries) {
+    for (K key : changeRecord.getRemoves()) {
+      nextEntries.remove(key);
+    }
+    nextEntries.putAll(changeRecord.getPuts());
+  }
+
+  @Override
+  public void clear() {
+    throw new UnsupportedOperationException("Replica is read-only");
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return entries.containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+    return entries.containsValue(value);
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return entries.entrySet();
+  }
+
+  @Override
+  public V get(final Object key) {
+    return entries.get(key);
+  }
+
+  /**
+   * The sequence number of the last commit of the primary that is applied on this follower or -1
+   * if the initial state of the primary has not arrived yet.
+   */
+  public long getAppliedSequence() {
+    return appliedSequence;
+  }
+
+  /**
+   * The number of records that arrived but cannot be applied until a previous record arrives.
+   */
+  public synchronized int getPendingRecordCount() {
+    return pendingRecords.size();
+  }
+
+  /**
+   * The time between committing the last applied record on the primary and applying it on this
+   * follower in milliseconds. If newer records arrived that cannot be applied yet, the lag is the
+   * time since the last applied record was committed, so it grows while the follower waits. Based
+   * on the clocks of the primary and the follower.
+   */
+  public long getReplicationLagMillis() {
+    long lag = replicationLagMillis;
+    long applied = appliedTimestamp;
+    if (appliedSequence >= 0 && receivedTimestamp > applied) {
+      lag = Math.max(lag, System.currentTimeMillis() - applied);
+    }
+    return lag;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return entries.keySet();
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+    throw new UnsupportedOperationException("Replica is read-only");
+  }
+
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+    throw new UnsupportedOperationException("Replica is read-only");
+  }
+
+  @Override
+  public V remove(final Object key) {
+    throw new UnsupportedOperationException("Replica is read-only");
+  }
+
+  @Override
+  public void send(final List<ChangeRecord<K, V>> batch) {
+    apply(batch);
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  @Override
+  public Collection<V> values() {
+    return entries.values();
+  }
+}
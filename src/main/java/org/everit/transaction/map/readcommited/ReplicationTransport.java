@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.List;
+
+/**
+ * Ships the ordered commit batches of a primary {@link ReadCommitedTransactionalMap} to a follower.
+ * A {@link ReplicaMap} is itself an in-process transport; {@link TcpReplicationTransport} ships the
+ * batches to a {@link TcpReplicationReceiver} over a socket.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+@FunctionalInterface
+public interface ReplicationTransport<K, V> extends AutoCloseable {
+
+  @Override
+  default void close() {
+  }
+
+  /**
+   * Ships a batch of records. The batches are passed in commit order by one thread at a time. If
+   * the function throws an exception, no more batches are passed to the transport.
+   *
+   * @param batch
+   *          The records of consecutive commits.
+   */
+  void send(List<ChangeRecord<K, V>> batch);
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+/**
+ * A point within a transaction that the changes of the transaction can be rolled back to without
+ * rolling back the whole transaction.
+ */
+public final class Savepoint {
+
+  private final long id;
+
+  private final Object transaction;
+
+  Savepoint(final Object transaction, final long id) {
+    this.transaction = transaction;
+    this.id = id;
+  }
+
+  long getId() {
+    return id;
+  }
+
+  /**
+   * Returns the transaction that the savepoint belongs to.
+   *
+   * @return The transaction.
+   */
+  public Object getTransaction() {
+    return transaction;
+  }
+
+  @Override
+  public String toString() {
+    return "Savepoint [id=" + id + ", transaction=" + transaction + "]";
+  }
+}
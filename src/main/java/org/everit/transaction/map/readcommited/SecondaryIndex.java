@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import org.everit.transaction.map.readcommited.internal.IndexTable;
+
+/**
+ * A secondary index of a {@link ReadCommitedTransactionalMap} that finds the entries by an
+ * attribute of their values. Created by {@link ReadCommitedTransactionalMap#addIndex(
+ * java.util.function.Function)} and queried by
+ * {@link ReadCommitedTransactionalMap#getByIndex(SecondaryIndex, Object)}.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ * @param <I>
+ *          Type of the index keys.
+ */
+public final class SecondaryIndex<K, V, I> {
+
+  private final IndexTable<K, V, I> indexTable;
+
+  SecondaryIndex(final IndexTable<K, V, I> indexTable) {
+    this.indexTable = indexTable;
+  }
+
+  IndexTable<K, V, I> getIndexTable() {
+    return indexTable;
+  }
+
+  /**
+   * Calculates the index key of a value.
+   *
+   * @param value
+   *          The value.
+   * @return The index key or <code>null</code> if the value is not indexed.
+   */
+  public I indexKeyOf(final V value) {
+    return indexTable.indexKeyOf(value);
+  }
+}
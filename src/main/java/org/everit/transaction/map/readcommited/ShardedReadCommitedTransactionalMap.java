@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.everit.transaction.map.TransactionalMap;
+import org.everit.transaction.map.readcommited.internal.RWLockedMap;
+import org.everit.transaction.map.readcommited.internal.ShardedTxContext;
+
+/**
+ * Transactional map that partitions the keys by their hash codes across independent segments.
+ * Each segment has its own committed state and lock, so writes and commits that touch disjoint
+ * segments do not block each other. A transaction spans all segments: its changes are kept
+ * separately for each segment that it modifies and the commit locks only those segments, in the
+ * order of their indexes, while the changes of all of them are applied.
+ *
+ * <p>
+ * Functions that work on all entries ({@link #size()}, {@link #entrySet()}, {@link #clear()}
+ * outside of transactions, etc.) visit the segments one after the other, so they do not see the
+ * committed state of all segments at the same point in time. The returned collections are
+ * unmodifiable snapshots.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class ShardedReadCommitedTransactionalMap<K, V> implements TransactionalMap<K, V> {
+
+  protected ThreadLocal<ShardedTxContext<K, V>> activeTx = new ThreadLocal<>();
+
+  protected final RWLockedMap<K, V>[] segments;
+
+  protected final Map<Object, ShardedTxContext<K, V>> suspendedTXContexts =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Constructor of a map whose segments are {@link HashMap}s.
+   *
+   * @param segmentCount
+   *          The number of segments.
+   */
+  public ShardedReadCommitedTransactionalMap(final int segmentCount) {
+    this(segmentCount, HashMap::new, LockStrategy.READ_WRITE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param segmentCount
+   *          The number of segments.
+   * @param storeFactory
+   *          Creates the empty committed store of each segment.
+   * @param lockStrategy
+   *          The lock that protects the committed state of each segment.
+   * @throws IllegalArgumentException
+   *           if the number of segments is not positive.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public ShardedReadCommitedTransactionalMap(final int segmentCount,
+      final Supplier<? extends Map<K, V>> storeFactory, final LockStrategy lockStrategy) {
+    if (segmentCount < 1) {
+      throw new IllegalArgumentException("Segment count must be positive: " + segmentCount);
+    }
+    Objects.requireNonNull(storeFactory);
+    Objects.requireNonNull(lockStrategy);
+    segments = new RWLockedMap[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new RWLockedMap<>(storeFactory.get(), lockStrategy);
+    }
+  }
+
+  /**
+   * Clears the map. Outside of transactions the segments are cleared one after the other.
+   */
+  @Override
+  public void clear() {
+    for (int i = 0; i < segments.length; i++) {
+      writeSegment(i).clear();
+    }
+  }
+
+  @Override
+  public void commitTransaction() {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
+      throw new IllegalStateException("There is no active transaction to commit");
+    }
+    txContext.commit();
+    setActiveTx(null);
+  }
+
+  @Override
+  public V compute(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return writeSegment(segmentIndex(key)).compute(key, remappingFunction);
+  }
+
+  @Override
+  public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+    return writeSegment(segmentIndex(key)).computeIfAbsent(key, mappingFunction);
+  }
+
+  @Override
+  public V computeIfPresent(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return writeSegment(segmentIndex(key)).computeIfPresent(key, remappingFunction);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return readSegment(segmentIndex(key)).containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+    for (int i = 0; i < segments.length; i++) {
+      if (readSegment(i).containsValue(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return Collections.unmodifiableMap(snapshot()).entrySet();
+  }
+
+  @Override
+  public V get(final Object key) {
+    return readSegment(segmentIndex(key)).get(key);
+  }
+
+  protected ShardedTxContext<K, V> getActiveTx() {
+    return activeTx.get();
+  }
+
+  /**
+   * Returns the values of several keys. The keys are grouped by their segments and the read locks
+   * of the segments are acquired in the order of their indexes. The committed values are read
+   * while all of the read locks are held, so the result never contains a part of a commit.
+   *
+   * @param keys
+   *          The keys.
+   * @return The keys that have a value and their values.
+   */
+  public Map<K, V> getAll(final Collection<? extends K> keys) {
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    List<K>[] keysBySegment = new List[segments.length];
+    for (K key : keys) {
+      int segmentIndex = segmentIndex(key);
+      if (keysBySegment[segmentIndex] == null) {
+        keysBySegment[segmentIndex] = new ArrayList<>();
+      }
+      keysBySegment[segmentIndex].add(key);
+    }
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    Map<K, V> result = new HashMap<>();
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    Collection<? extends K>[] committedKeysBySegment = new Collection[segments.length];
+    for (int i = 0; i < segments.length; i++) {
+      if (keysBySegment[i] != null) {
+        committedKeysBySegment[i] = (txContext != null)
+            ? txContext.getChangedValues(i, keysBySegment[i], result) : keysBySegment[i];
+      }
+    }
+    readCommittedLocked(committedKeysBySegment, 0, result);
+    return result;
+  }
+
+  @Override
+  public Object getAssociatedTransaction() {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
+      return null;
+    }
+    return txContext.getTransaction();
+  }
+
+  public int getSegmentCount() {
+    return segments.length;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (int i = 0; i < segments.length; i++) {
+      if (!readSegment(i).isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return Collections.unmodifiableSet(snapshot().keySet());
+  }
+
+  @Override
+  public V merge(final K key, final V value,
+      final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    return writeSegment(segmentIndex(key)).merge(key, value, remappingFunction);
+  }
+
+  /**
+   * Prepares the active transaction for a two-phase commit. The keys that the transaction modifies
+   * are reserved in each modified segment in the order of their indexes. See
+   * {@link ReadCommitedTransactionalMap#prepareTransaction()}.
+   *
+   * @throws IllegalStateException
+   *           if there is no active transaction, the transaction is already prepared or any of the
+   *           keys is reserved by another transaction.
+   */
+  public void prepareTransaction() {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
+      throw new IllegalStateException("There is no active transaction to prepare");
+    }
+    txContext.prepare();
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+    return writeSegment(segmentIndex(key)).put(key, value);
+  }
+
+  /**
+   * Puts several entries. The entries are grouped by their segments, so outside of transactions
+   * the write lock of each segment is acquired once.
+   */
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    Map<K, V>[] entriesBySegment = new Map[segments.length];
+    for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      int segmentIndex = segmentIndex(entry.getKey());
+      if (entriesBySegment[segmentIndex] == null) {
+        entriesBySegment[segmentIndex] = new HashMap<>();
+      }
+      entriesBySegment[segmentIndex].put(entry.getKey(), entry.getValue());
+    }
+    for (int i = 0; i < segments.length; i++) {
+      if (entriesBySegment[i] != null) {
+        writeSegment(i).putAll(entriesBySegment[i]);
+      }
+    }
+  }
+
+  @Override
+  public V putIfAbsent(final K key, final V value) {
+    return writeSegment(segmentIndex(key)).putIfAbsent(key, value);
+  }
+
+  private void readCommittedLocked(final Collection<? extends K>[] keysBySegment,
+      final int fromIndex, final Map<K, V> result) {
+    for (int i = fromIndex; i < segments.length; i++) {
+      if (keysBySegment[i] != null && !keysBySegment[i].isEmpty()) {
+        Lock readLock = segments[i].getReadWriteLock().readLock();
+        readLock.lock();
+        try {
+          segments[i].getAllLocked(keysBySegment[i], result);
+          readCommittedLocked(keysBySegment, i + 1, result);
+        } finally {
+          readLock.unlock();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the state of a segment that is visible for the current thread.
+   */
+  protected Map<K, V> readSegment(final int segmentIndex) {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    return (txContext != null) ? txContext.readSegment(segmentIndex) : segments[segmentIndex];
+  }
+
+  @Override
+  public V remove(final Object key) {
+    return writeSegment(segmentIndex(key)).remove(key);
+  }
+
+  @Override
+  public boolean remove(final Object key, final Object value) {
+    return writeSegment(segmentIndex(key)).remove(key, value);
+  }
+
+  @Override
+  public V replace(final K key, final V value) {
+    return writeSegment(segmentIndex(key)).replace(key, value);
+  }
+
+  @Override
+  public boolean replace(final K key, final V oldValue, final V newValue) {
+    return writeSegment(segmentIndex(key)).replace(key, oldValue, newValue);
+  }
+
+  @Override
+  public void resumeTransaction(final Object transaction) {
+    Objects.requireNonNull(transaction);
+    if (getActiveTx() != null) {
+      throw new IllegalStateException(
+          "Cannot resume transaction when there is another active associated transaction");
+    }
+    ShardedTxContext<K, V> txContext = suspendedTXContexts.remove(transaction);
+    if (txContext == null) {
+      throw new IllegalStateException("There is no such suspended associated transaction");
+    }
+    setActiveTx(txContext);
+  }
+
+  @Override
+  public void rollbackTransaction() {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
+      throw new IllegalStateException("No active associated transaction to rollback.");
+    }
+    txContext.rollback();
+    setActiveTx(null);
+  }
+
+  /**
+   * Returns the index of the segment that holds a key. The bits of the hash code are spread, so
+   * hash codes that differ only in their upper bits are distributed as well.
+   */
+  protected int segmentIndex(final Object key) {
+    int hash = Objects.hashCode(key);
+    hash ^= (hash >>> 16);
+    return Math.floorMod(hash, segments.length);
+  }
+
+  protected void setActiveTx(final ShardedTxContext<K, V> txContext) {
+    activeTx.set(txContext);
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < segments.length; i++) {
+      size += readSegment(i).size();
+    }
+    return size;
+  }
+
+  /**
+   * Copies the visible entries of each segment while the read lock of that segment is held.
+   */
+  private Map<K, V> snapshot() {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    Map<K, V> snapshot = new HashMap<>();
+    for (int i = 0; i < segments.length; i++) {
+      snapshot.putAll((txContext != null) ? txContext.copySegment(i) : segments[i].copyEntries());
+    }
+    return snapshot;
+  }
+
+  /**
+   * Starts a transaction that does not modify the map. See
+   * {@link ReadCommitedTransactionalMap#startReadOnlyTransaction(Object)}.
+   *
+   * @param transaction
+   *          The transaction.
+   * @throws IllegalStateException
+   *           if there is an active transaction or the transaction is suspended.
+   */
+  public void startReadOnlyTransaction(final Object transaction) {
+    startTransaction(transaction, true);
+  }
+
+  @Override
+  public void startTransaction(final Object transaction) {
+    startTransaction(transaction, false);
+  }
+
+  private void startTransaction(final Object transaction, final boolean readOnly) {
+    if (getActiveTx() != null) {
+      throw new IllegalStateException(
+          "Cannot start new transaction when there is an associated active transaction");
+    }
+    if (suspendedTXContexts.containsKey(transaction)) {
+      throw new IllegalStateException(
+          "Transaction is already associated to Map in suspended state");
+    }
+    setActiveTx(new ShardedTxContext<>(segments, transaction, readOnly));
+  }
+
+  @Override
+  public void suspendTransaction() {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    if (txContext == null) {
+      throw new IllegalStateException("There is no active associated transaction to suspend");
+    }
+    suspendedTXContexts.put(txContext.getTransaction(), txContext);
+    setActiveTx(null);
+  }
+
+  @Override
+  public Collection<V> values() {
+    return Collections.unmodifiableCollection(snapshot().values());
+  }
+
+  /**
+   * Returns the map that should be modified for a segment: the context of the segment within the
+   * active transaction or the committed segment outside of transactions.
+   */
+  protected Map<K, V> writeSegment(final int segmentIndex) {
+    ShardedTxContext<K, V> txContext = getActiveTx();
+    return (txContext != null) ? txContext.writeSegment(segmentIndex) : segments[segmentIndex];
+  }
+}
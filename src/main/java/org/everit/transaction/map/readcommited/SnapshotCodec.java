@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the keys or the values of a map into the binary snapshots of
+ * {@link ReadCommitedTransactionalMap#exportSnapshot(java.nio.channels.WritableByteChannel,
+ * SnapshotCodec, SnapshotCodec)}. A codec must read exactly as many bytes as it wrote for the same
+ * object.
+ *
+ * @param <T>
+ *          The type of the encoded objects.
+ */
+public interface SnapshotCodec<T> {
+
+  /**
+   * Byte arrays prefixed with their length.
+   */
+  SnapshotCodec<byte[]> BYTE_ARRAY = new SnapshotCodec<byte[]>() {
+
+    @Override
+    public byte[] decode(final DataInput in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return bytes;
+    }
+
+    @Override
+    public void encode(final byte[] value, final DataOutput out) throws IOException {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  };
+
+  /**
+   * Integers in four bytes.
+   */
+  SnapshotCodec<Integer> INTEGER = new SnapshotCodec<Integer>() {
+
+    @Override
+    public Integer decode(final DataInput in) throws IOException {
+      return in.readInt();
+    }
+
+    @Override
+    public void encode(final Integer value, final DataOutput out) throws IOException {
+      out.writeInt(value);
+    }
+  };
+
+  /**
+   * Longs in eight bytes.
+   */
+  SnapshotCodec<Long> LONG = new SnapshotCodec<Long>() {
+
+    @Override
+    public Long decode(final DataInput in) throws IOException {
+      return in.readLong();
+    }
+
+    @Override
+    public void encode(final Long value, final DataOutput out) throws IOException {
+      out.writeLong(value);
+    }
+  };
+
+  /**
+   * Strings in UTF-8 prefixed with the length of the encoded bytes. Unlike
+   * {@link DataOutput#writeUTF(String)}, the length of the strings is not limited.
+   */
+  SnapshotCodec<String> STRING = new SnapshotCodec<String>() {
+
+    @Override
+    public String decode(final DataInput in) throws IOException {
+      return new String(BYTE_ARRAY.decode(in), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void encode(final String value, final DataOutput out) throws IOException {
+      BYTE_ARRAY.encode(value.getBytes(StandardCharsets.UTF_8), out);
+    }
+  };
+
+  /**
+   * Reads an object.
+   *
+   * @param in
+   *          The input to read from.
+   * @return The object.
+   * @throws IOException
+   *           if the input cannot be read.
+   */
+  T decode(DataInput in) throws IOException;
+
+  /**
+   * Writes an object.
+   *
+   * @param value
+   *          The object.
+   * @param out
+   *          The output to write to.
+   * @throws IOException
+   *           if the output cannot be written.
+   */
+  void encode(T value, DataOutput out) throws IOException;
+}
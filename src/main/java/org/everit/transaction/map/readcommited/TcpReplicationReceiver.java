@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.transaction.map.readcommited.internal.ReplicationFormat;
+
+/**
+ * Accepts the connections of {@link TcpReplicationTransport}s and applies the received commit
+ * batches to a {@link ReplicaMap}. Each connection is served by its own daemon thread. If a
+ * connection breaks or
+ * the peer sends something else than a replication stream, it is closed; the primary stops
+ * shipping to it as its transport fails. The received keys and values are created only by the
+ * {@link SnapshotCodec}s of the receiver, so no classes are loaded or instantiated on behalf of the
+ * peer.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class TcpReplicationReceiver<K, V> implements AutoCloseable {
+
+  protected volatile boolean closed;
+
+  protected final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+  protected final SnapshotCodec<? extends K> keyCodec;
+
+  protected final ReplicaMap<K, V> replica;
+
+  protected final ServerSocket serverSocket;
+
+  protected final SnapshotCodec<? extends V> valueCodec;
+
+  /**
+   * Constructor that starts listening.
+   *
+   * @param replica
+   *          The follower that the received batches are applied to.
+   * @param bindAddress
+   *          The address to listen on. Port 0 means an automatically allocated port.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @throws IOException
+   *           If the server socket cannot be bound.
+   */
+  public TcpReplicationReceiver(final ReplicaMap<K, V> replica,
+      final InetSocketAddress bindAddress, final SnapshotCodec<? extends K> keyCodec,
+      final SnapshotCodec<? extends V> valueCodec) throws IOException {
+    this.replica = replica;
+    this.keyCodec = keyCodec;
+    this.valueCodec = valueCodec;
+    serverSocket = new ServerSocket();
+    try {
+      serverSocket.bind(bindAddress);
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+    startDaemonThread(this::acceptConnections, "accept");
+  }
+
+  private void acceptConnections() {
+    while (!closed) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        return;
+      }
+      connections.add(socket);
+      startDaemonThread(() -> receive(socket), socket.getRemoteSocketAddress().toString());
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      serverSocket.close();
+      for (Socket socket : connections) {
+        socket.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * The port that the receiver listens on.
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  private void receive(final Socket socket) {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+      ReplicationFormat.readHeader(in);
+      while (!closed) {
+        replica.apply(ReplicationFormat.readBatch(in, keyCodec, valueCodec));
+      }
+    } catch (IOException | RuntimeException e) {
+      // The connection is broken or the peer is not a replication transport
+    } finally {
+      connections.remove(socket);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do as the connection is not used anymore
+      }
+    }
+  }
+
+  private void startDaemonThread(final Runnable runnable, final String nameSuffix) {
+    Thread thread = new Thread(runnable, "replication-receiver-" + getPort() + "-" + nameSuffix);
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
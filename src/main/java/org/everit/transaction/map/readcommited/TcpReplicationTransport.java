@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+import org.everit.transaction.map.readcommited.internal.ReplicationFormat;
+
+/**
+ * {@link ReplicationTransport} that ships the commit batches to a {@link TcpReplicationReceiver}
+ * in a binary format. The keys and values are encoded by {@link SnapshotCodec}s that must match
+ * the codecs of the receiver.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class TcpReplicationTransport<K, V> implements ReplicationTransport<K, V> {
+
+  protected final SnapshotCodec<? super K> keyCodec;
+
+  protected final DataOutputStream out;
+
+  protected final Socket socket;
+
+  protected final SnapshotCodec<? super V> valueCodec;
+
+  /**
+   * Constructor that connects to the receiver.
+   *
+   * @param receiverAddress
+   *          The address of the receiver.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @throws IOException
+   *           If the connection cannot be opened.
+   */
+  public TcpReplicationTransport(final InetSocketAddress receiverAddress,
+      final SnapshotCodec<? super K> keyCodec, final SnapshotCodec<? super V> valueCodec)
+      throws IOException {
+    this.keyCodec = keyCodec;
+    this.valueCodec = valueCodec;
+    socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(receiverAddress);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      ReplicationFormat.writeHeader(out);
+      out.flush();
+    } catch (IOException | RuntimeException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void send(final List<ChangeRecord<K, V>> batch) {
+    try {
+      ReplicationFormat.writeBatch(batch, out, keyCodec, valueCodec);
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+import org.everit.transaction.map.readcommited.internal.FrequencySketch;
+
+/**
+ * {@link EvictionPolicy} based on the W-TinyLFU algorithm. New entries are placed into a small LRU
+ * admission window. The entries that leave the window become candidates of the main segmented LRU
+ * space: when an entry has to be evicted, the last candidate competes with the least recently used
+ * entry of the main space and the one with the lower estimated access frequency is evicted. This
+ * keeps frequently used entries in the map even if a scan reads many entries only once.
+ *
+ * @param <K>
+ *          Type of the keys.
+ */
+public class WTinyLfuEvictionPolicy<K> implements EvictionPolicy<K> {
+
+  private static final int PROTECTED_PERCENT = 80;
+
+  private static final int WINDOW_PERCENT = 1;
+
+  /**
+   * The key that left the admission window most recently and did not compete for admission yet.
+   */
+  protected K candidate;
+
+  protected final LinkedHashSet<K> probation = new LinkedHashSet<>();
+
+  protected final LinkedHashSet<K> protectedSegment = new LinkedHashSet<>();
+
+  protected final FrequencySketch sketch;
+
+  protected final LinkedHashSet<K> window = new LinkedHashSet<>();
+
+  /**
+   * Constructor.
+   *
+   * @param expectedMaximumSize
+   *          The expected maximum number of entries in the map. Used to size the frequency sketch.
+   */
+  public WTinyLfuEvictionPolicy(final int expectedMaximumSize) {
+    sketch = new FrequencySketch(expectedMaximumSize);
+  }
+
+  @Override
+  public void clear() {
+    window.clear();
+    probation.clear();
+    protectedSegment.clear();
+    candidate = null;
+  }
+
+  private void demoteProtectedOverflow() {
+    int maximumProtectedSize =
+        (probation.size() + protectedSegment.size()) * PROTECTED_PERCENT / 100;
+    while (protectedSegment.size() > maximumProtectedSize) {
+      K demoted = removeEldest(protectedSegment);
+      probation.add(demoted);
+    }
+  }
+
+  private K eldest(final LinkedHashSet<K> segment) {
+    Iterator<K> iterator = segment.iterator();
+    return iterator.hasNext() ? iterator.next() : null;
+  }
+
+  @Override
+  public K evict() {
+    K victim = eldest(probation);
+    if (victim == null) {
+      victim = eldest(protectedSegment);
+    }
+    if (victim == null) {
+      return removeEldest(window);
+    }
+
+    K admissionCandidate = candidate;
+    candidate = null;
+    if (admissionCandidate != null && !Objects.equals(admissionCandidate, victim)
+        && probation.contains(admissionCandidate)
+        && sketch.frequency(admissionCandidate) <= sketch.frequency(victim)) {
+      probation.remove(admissionCandidate);
+      return admissionCandidate;
+    }
+    removeFromMain(victim);
+    return victim;
+  }
+
+  @Override
+  public void recordAccess(final K key) {
+    sketch.increment(key);
+    if (window.remove(key)) {
+      window.add(key);
+    } else if (probation.remove(key)) {
+      protectedSegment.add(key);
+      demoteProtectedOverflow();
+    } else if (protectedSegment.remove(key)) {
+      protectedSegment.add(key);
+    }
+  }
+
+  @Override
+  public void recordInsertion(final K key) {
+    sketch.increment(key);
+    recordRemoval(key);
+    window.add(key);
+    int maximumWindowSize = Math.max(1, size() * WINDOW_PERCENT / 100);
+    while (window.size() > maximumWindowSize) {
+      candidate = removeEldest(window);
+      probation.add(candidate);
+    }
+  }
+
+  @Override
+  public void recordRemoval(final Object key) {
+    if (Objects.equals(candidate, key)) {
+      candidate = null;
+    }
+    if (!window.remove(key) && !probation.remove(key)) {
+      protectedSegment.remove(key);
+    }
+  }
+
+  private K removeEldest(final LinkedHashSet<K> segment) {
+    Iterator<K> iterator = segment.iterator();
+    if (!iterator.hasNext()) {
+      return null;
+    }
+    K key = iterator.next();
+    iterator.remove();
+    return key;
+  }
+
+  private void removeFromMain(final K key) {
+    if (!probation.remove(key)) {
+      protectedSegment.remove(key);
+    }
+  }
+
+  private int size() {
+    return window.size() + probation.size() + protectedSegment.size();
+  }
+}
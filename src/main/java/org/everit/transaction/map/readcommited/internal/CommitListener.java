@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import org.everit.transaction.map.readcommited.ChangeRecord;
+
+/**
+ * Listener of the commits that are applied to a {@link RWLockedMap}.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public interface CommitListener<K, V> {
+
+  /**
+   * Called after the write lock is released, also if the commit failed.
+   */
+  default void afterCommit() {
+  }
+
+  /**
+   * Called before the write lock is acquired. Might block the committing thread.
+   */
+  default void beforeCommit() {
+  }
+
+  /**
+   * Called instead of {@link #beforeCommit()} before a maintenance write, like installing a loaded
+   * value, that should be skipped rather than block. The default implementation calls
+   * {@link #beforeCommit()}.
+   *
+   * @return Whether the write can go on; if <code>false</code>, the write is skipped.
+   */
+  default boolean tryBeforeCommit() {
+    beforeCommit();
+    return true;
+  }
+
+  /**
+   * Called while the write lock is held, right after the changes are applied. Must not block.
+   *
+   * @param changeRecord
+   *          The applied changes.
+   */
+  void committed(ChangeRecord<K, V> changeRecord);
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+/**
+ * Data that is derived from the committed entries of a {@link RWLockedMap} and that is kept up to
+ * date by every write of the map. The functions are called only while the write lock is held;
+ * subclasses are read while the read lock is held.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+public abstract class CommittedIndex<K, V> {
+
+  /**
+   * Adds a committed entry.
+   */
+  protected abstract void add(K key, V value);
+
+  /**
+   * Removes all entries.
+   */
+  protected abstract void clear();
+
+  /**
+   * Creates an empty index of the same kind that can be filled without holding the lock and
+   * passed to {@link #replaceContent(CommittedIndex)} later.
+   */
+  protected abstract CommittedIndex<K, V> createEmptyCopy();
+
+  /**
+   * Removes a committed entry.
+   */
+  protected abstract void remove(K key, V value);
+
+  /**
+   * Takes over the content of an index that was created by {@link #createEmptyCopy()}.
+   */
+  protected abstract void replaceContent(CommittedIndex<K, V> other);
+
+  /**
+   * Updates the index after the value of a key changed.
+   *
+   * @param key
+   *          The key.
+   * @param oldValue
+   *          The previous value or <code>null</code>.
+   * @param newValue
+   *          The new value or <code>null</code> if the entry was removed.
+   */
+  protected void update(final K key, final V oldValue, final V newValue) {
+    if (oldValue != null) {
+      remove(key, oldValue);
+    }
+    if (newValue != null) {
+      add(key, newValue);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+/**
+ * Count-min sketch with 4-bit counters that estimates the access frequency of keys. The counters
+ * are halved periodically so that the estimations follow the recent history. Mostly based on the
+ * frequency sketch of the Caffeine library. The class is not thread-safe.
+ */
+public class FrequencySketch {
+
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private static final long[] SEEDS = new long[] {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+  private static int ceilingPowerOfTwo(final int x) {
+    return 1 << -Integer.numberOfLeadingZeros(x - 1);
+  }
+
+  private static int spread(final Object key) {
+    int x = (key == null) ? 0 : key.hashCode();
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+
+  protected final int sampleSize;
+
+  protected int size;
+
+  protected final long[] table;
+
+  protected final int tableMask;
+
+  /**
+   * Constructor.
+   *
+   * @param expectedMaximumSize
+   *          The expected maximum number of distinct keys that should be tracked.
+   */
+  public FrequencySketch(final int expectedMaximumSize) {
+    int maximum = Math.min(Math.max(expectedMaximumSize, 16), MAXIMUM_CAPACITY);
+    table = new long[ceilingPowerOfTwo(maximum)];
+    tableMask = table.length - 1;
+    sampleSize = 10 * maximum;
+  }
+
+  /**
+   * Returns the estimated number of times the key was incremented, at most 15.
+   */
+  public int frequency(final Object key) {
+    int hash = spread(key);
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Increments the frequency of the key if it is not at its maximum yet.
+   */
+  public void increment(final Object key) {
+    int hash = spread(key);
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++size == sampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(final int i, final int j) {
+    int offset = j << 2;
+    long mask = 0xfL << offset;
+    if ((table[i] & mask) != mask) {
+      table[i] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  private int indexOf(final int item, final int i) {
+    long hash = (item + SEEDS[i]) * SEEDS[i];
+    hash += hash >>> 32;
+    return ((int) hash) & tableMask;
+  }
+
+  private void reset() {
+    int count = 0;
+    for (int i = 0; i < table.length; i++) {
+      count += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size = (size >>> 1) - (count >>> 2);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The committed content of a secondary index: the keys of the committed entries grouped by the
+ * index key that the index function calculates from their values. Entries whose index key is
+ * <code>null</code> are not indexed. The table is modified only while the write lock of the
+ * {@link RWLockedMap} is held and it is read while the read lock is held.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ * @param <I>
+ *          The type of the index keys.
+ */
+public class IndexTable<K, V, I> extends CommittedIndex<K, V> {
+
+  protected final Function<? super V, ? extends I> indexFunction;
+
+  protected Map<I, Set<K>> keysByIndexKey = new HashMap<>();
+
+  public IndexTable(final Function<? super V, ? extends I> indexFunction) {
+    this.indexFunction = Objects.requireNonNull(indexFunction);
+  }
+
+  @Override
+  protected void add(final K key, final V value) {
+    I indexKey = indexKeyOf(value);
+    if (indexKey != null) {
+      keysByIndexKey.computeIfAbsent(indexKey, (k) -> new HashSet<>()).add(key);
+    }
+  }
+
+  @Override
+  protected void clear() {
+    keysByIndexKey = new HashMap<>();
+  }
+
+  @Override
+  protected IndexTable<K, V, I> createEmptyCopy() {
+    return new IndexTable<>(indexFunction);
+  }
+
+  /**
+   * Returns the keys that are indexed with an index key. The returned set must not be modified.
+   */
+  protected Set<K> getKeys(final Object indexKey) {
+    Set<K> keys = keysByIndexKey.get(indexKey);
+    return (keys != null) ? keys : Collections.emptySet();
+  }
+
+  /**
+   * Calculates the index key of a value.
+   *
+   * @param value
+   *          The value or <code>null</code>.
+   * @return The index key or <code>null</code> if the value should not be indexed.
+   */
+  public I indexKeyOf(final V value) {
+    return (value != null) ? indexFunction.apply(value) : null;
+  }
+
+  @Override
+  protected void remove(final K key, final V value) {
+    I indexKey = indexKeyOf(value);
+    if (indexKey == null) {
+      return;
+    }
+    Set<K> keys = keysByIndexKey.get(indexKey);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        keysByIndexKey.remove(indexKey);
+      }
+    }
+  }
+
+  @Override
+  protected void replaceContent(final CommittedIndex<K, V> other) {
+    @SuppressWarnings("unchecked")
+    IndexTable<K, V, I> otherTable = (IndexTable<K, V, I>) other;
+    keysByIndexKey = otherTable.keysByIndexKey;
+  }
+}
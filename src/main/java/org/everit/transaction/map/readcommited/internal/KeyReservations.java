@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keys that are reserved by prepared transactions. A transaction that is prepared reserves the
+ * keys it modifies (or the whole map if it clears the map), so no other transaction can commit a
+ * change on those keys until the prepared transaction is committed or rolled back. Reservations
+ * are guarded by the monitor of this object and never by the lock of the map, so readers are not
+ * blocked by them.
+ *
+ * <p>
+ * Transactions that are committed without being prepared reserve their keys only for the time of
+ * the commit and those reservations are shared: they exclude the prepared transactions but not
+ * each other, so concurrent commits of the same keys are serialized by the lock of the map instead
+ * of failing. While no transaction is prepared, commits only count themselves without taking the
+ * monitor or reserving their keys. A transaction that is being prepared waits for the commits
+ * that might change its keys instead of failing.
+ */
+public class KeyReservations {
+
+  /**
+   * The number of shared reservations per key.
+   */
+  protected final Map<Object, Integer> committingCounts = new HashMap<>();
+
+  /**
+   * The number of prepared or preparing owners. While it is zero, commits do not reserve their
+   * keys.
+   */
+  protected volatile int preparedCount;
+
+  /**
+   * The number of commits that run without reserving their keys.
+   */
+  protected final AtomicInteger unreservedCommitCount = new AtomicInteger();
+
+  /**
+   * The owners of the reserved keys.
+   */
+  protected final Map<Object, Object> owners = new HashMap<>();
+
+  /**
+   * The number of shared reservations of the whole map.
+   */
+  protected int wholeMapCommittingCount;
+
+  /**
+   * The owner that reserved the whole map or <code>null</code>.
+   */
+  protected Object wholeMapOwner;
+
+  private void checkAvailable(final Object owner, final boolean wholeMap,
+      final Collection<?> keys) {
+    if (wholeMapOwner != null && wholeMapOwner != owner) {
+      throw new IllegalStateException("The map is reserved by another prepared transaction");
+    }
+    if (wholeMap) {
+      for (Object keyOwner : owners.values()) {
+        if (keyOwner != owner) {
+          throw new IllegalStateException(
+              "Cannot reserve the whole map as another prepared transaction reserved keys");
+        }
+      }
+    } else {
+      for (Object key : keys) {
+        Object keyOwner = owners.get(key);
+        if (keyOwner != null && keyOwner != owner) {
+          throw new IllegalStateException(
+              "Key is reserved by another prepared transaction: " + key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits until the commits that do not reserve their keys and the commits of the passed keys
+   * finish. Called while the monitor is held.
+   */
+  private void awaitCommits(final boolean wholeMap, final Collection<?> keys) {
+    while (unreservedCommitCount.get() > 0 || isCommitting(wholeMap, keys)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for commits", e);
+      }
+    }
+  }
+
+  /**
+   * Starts a commit without reserving its keys if no transaction is prepared. If it succeeds,
+   * {@link #exitUnreservedCommit()} must be called after the commit.
+   *
+   * @return Whether the commit can run without reserving its keys.
+   */
+  public boolean enterUnreservedCommit() {
+    if (preparedCount > 0) {
+      return false;
+    }
+    unreservedCommitCount.incrementAndGet();
+    // A transaction might have started to prepare in the meantime without seeing this commit
+    if (preparedCount > 0) {
+      exitUnreservedCommit();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finishes a commit that was started by {@link #enterUnreservedCommit()}.
+   */
+  public void exitUnreservedCommit() {
+    if (unreservedCommitCount.decrementAndGet() == 0 && preparedCount > 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  private boolean isCommitting(final boolean wholeMap, final Collection<?> keys) {
+    if (wholeMapCommittingCount > 0 || (wholeMap && !committingCounts.isEmpty())) {
+      return true;
+    }
+    if (!wholeMap) {
+      for (Object key : keys) {
+        if (committingCounts.containsKey(key)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether there is any reservation.
+   *
+   * @return <code>true</code> if there is no reservation.
+   */
+  public synchronized boolean isEmpty() {
+    return wholeMapOwner == null && owners.isEmpty() && wholeMapCommittingCount == 0
+        && committingCounts.isEmpty() && unreservedCommitCount.get() == 0;
+  }
+
+  /**
+   * Releases the reservations of an owner that were made by
+   * {@link #reserve(Object, boolean, Collection)}.
+   *
+   * @param owner
+   *          The owner of the reservations.
+   * @param wholeMap
+   *          Whether the whole map was reserved.
+   * @param keys
+   *          The reserved keys.
+   */
+  public synchronized void release(final Object owner, final boolean wholeMap,
+      final Collection<?> keys) {
+    preparedCount--;
+    if (wholeMapOwner == owner) {
+      wholeMapOwner = null;
+    }
+    if (!wholeMap) {
+      for (Object key : keys) {
+        owners.remove(key, owner);
+      }
+    }
+  }
+
+  /**
+   * Releases the shared reservations that were made by
+   * {@link #reserveForCommit(Object, boolean, Collection)}.
+   *
+   * @param wholeMap
+   *          Whether the whole map was reserved.
+   * @param keys
+   *          The reserved keys.
+   */
+  public synchronized void releaseForCommit(final boolean wholeMap, final Collection<?> keys) {
+    if (wholeMap) {
+      wholeMapCommittingCount--;
+    } else {
+      for (Object key : keys) {
+        committingCounts.computeIfPresent(key, (k, count) -> (count > 1) ? count - 1 : null);
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * Reserves keys or the whole map for an owner. Either all of the keys are reserved or none of
+   * them. If any of the keys is being committed, the call waits until the commit finishes.
+   *
+   * @param owner
+   *          The owner of the reservations.
+   * @param wholeMap
+   *          Whether the whole map should be reserved.
+   * @param keys
+   *          The keys that should be reserved if the whole map is not reserved.
+   * @throws IllegalStateException
+   *           if any of the keys is reserved by another owner or the thread is interrupted while
+   *           waiting.
+   */
+  public synchronized void reserve(final Object owner, final boolean wholeMap,
+      final Collection<?> keys) {
+    Objects.requireNonNull(owner);
+    checkAvailable(owner, wholeMap, keys);
+    // From now on, the new commits reserve their keys
+    preparedCount++;
+    boolean reserved = false;
+    try {
+      awaitCommits(wholeMap, keys);
+      // Another owner might have reserved the keys while this thread was waiting
+      checkAvailable(owner, wholeMap, keys);
+      if (wholeMap) {
+        wholeMapOwner = owner;
+      } else {
+        for (Object key : keys) {
+          owners.put(key, owner);
+        }
+      }
+      reserved = true;
+    } finally {
+      if (!reserved) {
+        preparedCount--;
+      }
+    }
+  }
+
+  /**
+   * Reserves keys or the whole map for the time of a commit. The reservation is shared with the
+   * other commits, but it fails if any of the keys is reserved by a prepared transaction. Either
+   * all of the keys are reserved or none of them.
+   *
+   * @param owner
+   *          The transaction that is committed.
+   * @param wholeMap
+   *          Whether the whole map should be reserved.
+   * @param keys
+   *          The keys that should be reserved if the whole map is not reserved.
+   * @throws IllegalStateException
+   *           if any of the keys is reserved by another owner.
+   */
+  public synchronized void reserveForCommit(final Object owner, final boolean wholeMap,
+      final Collection<?> keys) {
+    Objects.requireNonNull(owner);
+    checkAvailable(owner, wholeMap, keys);
+    if (wholeMap) {
+      wholeMapCommittingCount++;
+    } else {
+      for (Object key : keys) {
+        committingCounts.merge(key, 1, Integer::sum);
+      }
+    }
+  }
+}
@@ -20,9 +20,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.everit.transaction.map.readcommited.PreCommitHook;
 
 /**
  * Stores the temporary changes of the Map that might be applied in the end of the transaciton.
@@ -35,65 +40,348 @@ import java.util.concurrent.locks.Lock;
  */
 public class MapTxContext<K, V> implements Map<K, V> {
 
+  /**
+   * Restores the state of the overlay before a {@link MapTxContext#clear()}.
+   *
+   * @param <K>
+   *          Type of keys.
+   * @param <V>
+   *          Type of values.
+   */
+  protected static final class ClearUndoRecord<K, V> extends UndoRecord<K, V> {
+
+    protected final boolean previousCleared;
+
+    protected final Map<K, V> previousPuts;
+
+    protected final Set<K> previousRemoves;
+
+    protected final Map<K, Long> previousTimeToLives;
+
+    protected ClearUndoRecord(final MapTxContext<K, V> context) {
+      previousCleared = context.cleared;
+      previousPuts = context.puts;
+      previousRemoves = context.removes;
+      previousTimeToLives = context.timeToLives;
+    }
+
+    @Override
+    protected void undo(final MapTxContext<K, V> context) {
+      context.cleared = previousCleared;
+      context.puts = previousPuts;
+      context.removes = previousRemoves;
+      context.timeToLives = previousTimeToLives;
+    }
+  }
+
+  /**
+   * Restores the state of a key in the overlay before a put or a remove.
+   *
+   * @param <K>
+   *          Type of keys.
+   * @param <V>
+   *          Type of values.
+   */
+  protected static final class KeyUndoRecord<K, V> extends UndoRecord<K, V> {
+
+    protected final K key;
+
+    protected final boolean previouslyPut;
+
+    protected final V previousPutValue;
+
+    protected final boolean previouslyRemoved;
+
+    protected final Long previousTimeToLive;
+
+    protected KeyUndoRecord(final MapTxContext<K, V> context, final K key) {
+      this.key = key;
+      previouslyPut = context.puts.containsKey(key);
+      previousPutValue = (previouslyPut) ? context.puts.get(key) : null;
+      previouslyRemoved = context.removes.contains(key);
+      previousTimeToLive = (context.timeToLives != null) ? context.timeToLives.get(key) : null;
+    }
+
+    @Override
+    protected void undo(final MapTxContext<K, V> context) {
+      if (previouslyPut) {
+        context.puts.put(key, previousPutValue);
+      } else {
+        context.puts.remove(key);
+      }
+      if (previouslyRemoved) {
+        context.removes.add(key);
+      } else {
+        context.removes.remove(key);
+      }
+      if (previousTimeToLive != null) {
+        if (context.timeToLives == null) {
+          context.timeToLives = new HashMap<>();
+        }
+        context.timeToLives.put(key, previousTimeToLive);
+      } else if (context.timeToLives != null) {
+        context.timeToLives.remove(key);
+      }
+    }
+  }
+
+  /**
+   * The position of a savepoint in the undo log.
+   */
+  protected static final class SavepointState {
+
+    protected final long id;
+
+    protected final boolean readOnly;
+
+    protected final int undoLogPosition;
+
+    protected SavepointState(final long id, final int undoLogPosition, final boolean readOnly) {
+      this.id = id;
+      this.undoLogPosition = undoLogPosition;
+      this.readOnly = readOnly;
+    }
+  }
+
+  /**
+   * A change of the overlay that can be undone.
+   *
+   * @param <K>
+   *          Type of keys.
+   * @param <V>
+   *          Type of values.
+   */
+  protected abstract static class UndoRecord<K, V> {
+
+    protected abstract void undo(MapTxContext<K, V> context);
+  }
+
   protected boolean cleared;
 
+  /**
+   * Whether the transaction was declared to be read-only, so that it cannot be modified.
+   */
+  protected boolean declaredReadOnly;
+
+  protected final ReadThroughLoader<K, V> loader;
+
+  /**
+   * Whether the transaction is prepared. A prepared transaction holds the reservation of the keys
+   * it modifies and cannot be modified anymore.
+   */
+  protected boolean prepared;
+
   protected Map<K, V> puts;
 
+  /**
+   * Whether the transaction has not changed anything yet. While it is <code>true</code>, reads go
+   * straight to the committed state without looking into the overlay.
+   */
   protected boolean readOnly = true;
 
+  /**
+   * Whether the transaction holds a shared reservation of its keys for the time of the commit.
+   */
+  protected boolean reservedForCommit;
+
+  /**
+   * Whether the transaction is being committed without reserving its keys as no transaction was
+   * prepared when the commit started.
+   */
+  protected boolean unreservedCommit;
+
   protected Set<K> removes;
 
   protected final RWLockedMap<K, V> rwLockedMap;
 
+  protected long savepointIdSequence;
+
+  /**
+   * The active savepoints from the oldest to the newest one or <code>null</code> if there is no
+   * active savepoint.
+   */
+  protected List<SavepointState> savepoints;
+
+  /**
+   * The time-to-live of the keys in {@link #puts} that were put with a time-to-live in nanoseconds
+   * or <code>null</code> if there is no such key.
+   */
+  protected Map<K, Long> timeToLives;
+
   protected final Object transaction;
 
+  /**
+   * The changes of the overlay since the oldest active savepoint or <code>null</code> if there is
+   * no active savepoint.
+   */
+  protected List<UndoRecord<K, V>> undoLog;
+
   /**
    * Constructor.
    */
   public MapTxContext(final RWLockedMap<K, V> rwLockedMap, final Object transaction) {
+    this(rwLockedMap, transaction, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param rwLockedMap
+   *          The committed state.
+   * @param transaction
+   *          The transaction this context belongs to.
+   * @param loader
+   *          The loader that is called when a key is not found in the committed state or
+   *          <code>null</code> if read-through loading is not used.
+   */
+  public MapTxContext(final RWLockedMap<K, V> rwLockedMap, final Object transaction,
+      final ReadThroughLoader<K, V> loader) {
     this.rwLockedMap = rwLockedMap;
     this.transaction = transaction;
-    removes = new HashSet<K>();
-    puts = new HashMap<K, V>();
+    this.loader = loader;
+    removes = createRemoves();
+    puts = createPuts();
     cleared = false;
   }
 
+  private Collection<K> affectedKeys() {
+    if (cleared) {
+      return Collections.emptySet();
+    }
+    Collection<K> affectedKeys = new ArrayList<>(puts.size() + removes.size());
+    affectedKeys.addAll(puts.keySet());
+    affectedKeys.addAll(removes);
+    return affectedKeys;
+  }
+
+  private void checkModifiable() {
+    checkNotPrepared();
+    if (declaredReadOnly) {
+      throw new IllegalStateException("Read-only transaction cannot be modified");
+    }
+  }
+
+  private void checkNotPrepared() {
+    if (prepared) {
+      throw new IllegalStateException("Prepared transaction cannot be modified");
+    }
+  }
+
   @Override
   public void clear() {
+    checkModifiable();
     readOnly = false;
+    if (undoLog != null) {
+      // Keeping the previous collections for the undo log instead of copying them
+      undoLog.add(new ClearUndoRecord<>(this));
+      removes = createRemoves();
+      puts = createPuts();
+    } else {
+      removes.clear();
+      puts.clear();
+    }
     cleared = true;
-    removes.clear();
-    puts.clear();
+    timeToLives = null;
   }
 
   /**
-   * Writes the temporary changes back to the Map.
+   * Writes the temporary changes back to the Map. If the transaction is prepared, the changes are
+   * applied and the reservations of the transaction are released. Otherwise the affected keys are
+   * reserved for the time of the commit with a reservation that is shared with other commits, so
+   * the commit fails only if any of them is reserved by a prepared transaction.
+   *
+   * @throws IllegalStateException
+   *           if the transaction is not prepared and any of the affected keys is reserved by a
+   *           prepared transaction.
    */
   public void commit() {
+    commit(null);
+  }
+
+  /**
+   * Writes the temporary changes back to the Map like {@link #commit()} and runs an action before
+   * the write lock of the Map is released. If the transaction did not change anything, the action
+   * runs without locking.
+   *
+   * @param whileLocked
+   *          The action that runs after the changes are applied or <code>null</code>.
+   * @throws IllegalStateException
+   *           if the transaction is not prepared and any of the affected keys is reserved by a
+   *           prepared transaction.
+   */
+  public void commit(final Runnable whileLocked) {
     if (isReadOnly()) {
+      if (whileLocked != null) {
+        whileLocked.run();
+      }
       return;
     }
 
-    Lock writeLock = rwLockedMap.getReadWriteLock().writeLock();
-    writeLock.lock();
+    reserveForCommit();
     try {
-      if (cleared) {
-        rwLockedMap.clear();
-      } else {
-        for (Object key : removes) {
-          rwLockedMap.remove(key);
-        }
-      }
+      rwLockedMap.commit(cleared, removes, puts, timeToLives, whileLocked);
+    } finally {
+      releaseReservations();
+    }
+  }
 
-      rwLockedMap.putAll(puts);
+  @Override
+  public V compute(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(remappingFunction);
+    checkModifiable();
+    V oldValue = get(key, false);
+    V newValue = remappingFunction.apply(key, oldValue);
+    storeComputed(key, oldValue, newValue);
+    return newValue;
+  }
 
-    } finally {
-      writeLock.unlock();
+  /**
+   * Copies the entries that are visible within this transaction. The committed entries are copied
+   * within one read lock acquisition.
+   *
+   * @return The copy that can be modified by the caller.
+   */
+  public Map<K, V> copyEntries() {
+    Map<K, V> entries = (cleared) ? new HashMap<>() : rwLockedMap.copyEntries();
+    entries.keySet().removeAll(removes);
+    entries.putAll(puts);
+    return entries;
+  }
+
+  @Override
+  public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+    Objects.requireNonNull(mappingFunction);
+    checkModifiable();
+    V value = get(key, false);
+    if (value == null) {
+      value = mappingFunction.apply(key);
+      if (value != null) {
+        putInOverlay(key, value);
+      }
     }
+    return value;
+  }
+
+  @Override
+  public V computeIfPresent(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(remappingFunction);
+    checkModifiable();
+    V oldValue = get(key, false);
+    if (oldValue == null) {
+      return null;
+    }
+    V newValue = remappingFunction.apply(key, oldValue);
+    storeComputed(key, oldValue, newValue);
+    return newValue;
   }
 
   @Override
   public boolean containsKey(final Object key) {
+    if (readOnly) {
+      return rwLockedMap.containsKey(key);
+    }
     if (puts.containsKey(key)) {
       return true;
     }
@@ -112,16 +400,73 @@ public class MapTxContext<K, V> implements Map<K, V> {
 
   @Override
   public boolean containsValue(final Object value) {
-    return values().contains(value);
+    if (value == null || !rwLockedMap.isValueCountIndexEnabled()) {
+      return values().contains(value);
+    }
+    if (isReadOnly()) {
+      return rwLockedMap.containsValue(value);
+    }
+    if (puts.containsValue(value)) {
+      return true;
+    }
+    if (cleared) {
+      return false;
+    }
+
+    // The committed entries of the changed keys are not visible within the transaction
+    Collection<K> changedKeys;
+    if (removes.isEmpty()) {
+      changedKeys = puts.keySet();
+    } else if (puts.isEmpty()) {
+      changedKeys = removes;
+    } else {
+      changedKeys = new HashSet<>(removes);
+      changedKeys.addAll(puts.keySet());
+    }
+    return rwLockedMap.containsValue(value, changedKeys);
+  }
+
+  /**
+   * Creates the collection of the entries that are put within the transaction. Called from the
+   * constructor after {@link #rwLockedMap} is set. Most transactions change only a few keys, so
+   * an {@link OverlayMap} is used that does not hash until the write set grows.
+   *
+   * @return The new empty map.
+   */
+  protected Map<K, V> createPuts() {
+    return new OverlayMap<K, V>();
+  }
+
+  /**
+   * Creates the collection of the keys that are removed within the transaction. Called from the
+   * constructor after {@link #rwLockedMap} is set.
+   *
+   * @return The new empty set.
+   */
+  protected Set<K> createRemoves() {
+    return new OverlaySet<K>();
+  }
+
+  /**
+   * Declares that the transaction does not modify the map. The modifying methods of a read-only
+   * transaction throw an {@link IllegalStateException}.
+   *
+   * @throws IllegalStateException
+   *           if the transaction already changed something.
+   */
+  public void declareReadOnly() {
+    if (!isReadOnly()) {
+      throw new IllegalStateException("Transaction already has changes");
+    }
+    declaredReadOnly = true;
   }
 
   @Override
   public Set<Entry<K, V>> entrySet() {
     Set<Entry<K, V>> entrySet = new HashSet<>();
     // XXX expensive :(
-    Map<K, V> avoidFindbugsThis = this;
     for (K key : keySet()) {
-      V value = avoidFindbugsThis.get(key);
+      V value = get(key, false);
       // XXX we have no isolation, so get entry might have been
       // deleted in the meantime
       if (value != null) {
@@ -133,6 +478,22 @@ public class MapTxContext<K, V> implements Map<K, V> {
 
   @Override
   public V get(final Object key) {
+    return get(key, true);
+  }
+
+  /**
+   * Returns the value of a key as it is visible within this transaction.
+   *
+   * @param key
+   *          The key.
+   * @param loadOnMiss
+   *          Whether the loader should be called if the key is not found in the committed state.
+   * @return The value or <code>null</code>.
+   */
+  protected V get(final Object key, final boolean loadOnMiss) {
+    if (readOnly) {
+      return getCommitted(key, loadOnMiss);
+    }
 
     if (puts.containsKey(key)) {
       return puts.get(key);
@@ -146,8 +507,97 @@ public class MapTxContext<K, V> implements Map<K, V> {
         return null;
       }
       // not modified in this tx
-      return rwLockedMap.get(key);
+      return getCommitted(key, loadOnMiss);
+    }
+  }
+
+  /**
+   * Returns the values of several keys as they are visible within this transaction. The keys that
+   * are not changed by the transaction are read from the committed state within one read lock
+   * acquisition. Keys that are not found there are loaded with one bulk call if there is a loader.
+   *
+   * @param keys
+   *          The keys.
+   * @return The keys that have a value and their values.
+   */
+  public Map<K, V> getAll(final Collection<? extends K> keys) {
+    Map<K, V> result = new HashMap<>();
+    List<K> committedKeys = getChangedValues(keys, result);
+    if (!committedKeys.isEmpty()) {
+      Map<K, V> committedValues = rwLockedMap.getAll(committedKeys);
+      result.putAll(committedValues);
+      if (loader != null && committedValues.size() < committedKeys.size()) {
+        committedKeys.removeAll(committedValues.keySet());
+        result.putAll(loader.loadAll(committedKeys));
+      }
     }
+    return result;
+  }
+
+  /**
+   * Puts the values of the keys that this transaction changed into a map.
+   *
+   * @param keys
+   *          The keys.
+   * @param result
+   *          The map that the changed keys that have a value and their values are put into.
+   * @return The keys that this transaction did not change, so their values should be read from the
+   *         committed state.
+   */
+  public List<K> getChangedValues(final Collection<? extends K> keys, final Map<K, V> result) {
+    if (readOnly) {
+      return new ArrayList<>(keys);
+    }
+    List<K> committedKeys = new ArrayList<>();
+    for (K key : keys) {
+      if (puts.containsKey(key)) {
+        V value = puts.get(key);
+        if (value != null) {
+          result.put(key, value);
+        }
+      } else if (!cleared && !removes.contains(key)) {
+        committedKeys.add(key);
+      }
+    }
+    return committedKeys;
+  }
+
+  /**
+   * Returns the entries whose values have a specific index key as they are visible within this
+   * transaction. The committed entries are taken from the index and the changes of the transaction
+   * are applied on them, which costs as much as the number of changes.
+   *
+   * @param indexTable
+   *          The table of a registered index.
+   * @param indexKey
+   *          The index key.
+   * @return The matching entries.
+   */
+  public Map<K, V> getByIndex(final IndexTable<K, V, ?> indexTable, final Object indexKey) {
+    Map<K, V> result = rwLockedMap.getByIndex(indexTable, indexKey);
+    if (cleared) {
+      result.clear();
+    } else {
+      for (K key : removes) {
+        result.remove(key);
+      }
+    }
+    for (Entry<K, V> entry : puts.entrySet()) {
+      if (Objects.equals(indexTable.indexKeyOf(entry.getValue()), indexKey)) {
+        result.put(entry.getKey(), entry.getValue());
+      } else {
+        result.remove(entry.getKey());
+      }
+    }
+    return result;
+  }
+
+  private V getCommitted(final Object key, final boolean loadOnMiss) {
+    V value = rwLockedMap.get(key);
+    if (value == null && loadOnMiss && loader != null) {
+      value = loader.load(key);
+    }
+    return value;
   }
 
   public Object getTransaction() {
@@ -159,6 +609,14 @@ public class MapTxContext<K, V> implements Map<K, V> {
     return (size() == 0);
   }
 
+  public boolean isDeclaredReadOnly() {
+    return declaredReadOnly;
+  }
+
+  public boolean isPrepared() {
+    return prepared;
+  }
+
   public boolean isReadOnly() {
     return readOnly;
   }
@@ -174,14 +632,75 @@ public class MapTxContext<K, V> implements Map<K, V> {
     return Collections.unmodifiableSet(keySet);
   }
 
+  private int indexOfSavepoint(final long savepointId) {
+    if (savepoints != null) {
+      for (int i = savepoints.size() - 1; i >= 0; i--) {
+        if (savepoints.get(i).id == savepointId) {
+          return i;
+        }
+      }
+    }
+    throw new IllegalStateException("There is no such active savepoint: " + savepointId);
+  }
+
   @Override
-  public V put(final K key, final V value) {
-    readOnly = false;
+  public V merge(final K key, final V value,
+      final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(value);
+    Objects.requireNonNull(remappingFunction);
+    checkModifiable();
+    V oldValue = get(key, false);
+    V newValue = (oldValue == null) ? value : remappingFunction.apply(oldValue, value);
+    storeComputed(key, oldValue, newValue);
+    return newValue;
+  }
 
-    V oldValue = get(key);
+  /**
+   * Prepares the transaction for the commit by reserving the keys that it modifies, or the whole
+   * map if the transaction cleared the map. The committed state is not touched, so readers are not
+   * blocked. After the transaction is prepared, it cannot be modified and the savepoints are
+   * released. The reservations are kept until {@link #commit()} or {@link #rollback()} is called.
+   *
+   * @throws IllegalStateException
+   *           if the transaction is already prepared or any of the affected keys is reserved by
+   *           another transaction.
+   */
+  public void prepare() {
+    checkNotPrepared();
+    if (!isReadOnly()) {
+      rwLockedMap.getKeyReservations().reserve(this, cleared, affectedKeys());
+    }
+    prepared = true;
+    savepoints = null;
+    undoLog = null;
+  }
 
-    puts.put(key, value);
+  @Override
+  public V put(final K key, final V value) {
+    checkModifiable();
+    V oldValue = get(key, false);
+    putInOverlay(key, value);
+    return oldValue;
+  }
 
+  /**
+   * Puts an entry that will be removed from the committed state when its time-to-live passes. The
+   * time-to-live starts when the transaction is committed.
+   *
+   * @param key
+   *          The key.
+   * @param value
+   *          The value.
+   * @param timeToLive
+   *          The time-to-live in nanoseconds.
+   * @return The previous value of the key.
+   */
+  public V put(final K key, final V value, final long timeToLive) {
+    V oldValue = put(key, value);
+    if (timeToLives == null) {
+      timeToLives = new HashMap<>();
+    }
+    timeToLives.put(key, timeToLive);
     return oldValue;
   }
 
@@ -194,34 +713,227 @@ public class MapTxContext<K, V> implements Map<K, V> {
     }
   }
 
+  @Override
+  public V putIfAbsent(final K key, final V value) {
+    checkModifiable();
+    V oldValue = get(key, false);
+    if (oldValue == null) {
+      putInOverlay(key, value);
+    }
+    return oldValue;
+  }
+
+  /**
+   * Records a put in the overlay without reading the current value.
+   */
+  private void putInOverlay(final K key, final V value) {
+    readOnly = false;
+
+    if (undoLog != null) {
+      undoLog.add(new KeyUndoRecord<>(this, key));
+    }
+
+    puts.put(key, value);
+    if (timeToLives != null) {
+      timeToLives.remove(key);
+    }
+  }
+
+  private void releaseReservations() {
+    if (prepared) {
+      prepared = false;
+      if (!isReadOnly()) {
+        rwLockedMap.getKeyReservations().release(this, cleared, affectedKeys());
+      }
+    } else if (reservedForCommit) {
+      reservedForCommit = false;
+      rwLockedMap.getKeyReservations().releaseForCommit(cleared, affectedKeys());
+    } else if (unreservedCommit) {
+      unreservedCommit = false;
+      rwLockedMap.getKeyReservations().exitUnreservedCommit();
+    }
+  }
+
+  /**
+   * Releases a savepoint and the savepoints that were set after it. The changes are kept.
+   *
+   * @param savepointId
+   *          The identifier of the savepoint.
+   */
+  public void releaseSavepoint(final long savepointId) {
+    int index = indexOfSavepoint(savepointId);
+    savepoints.subList(index, savepoints.size()).clear();
+    if (savepoints.isEmpty()) {
+      savepoints = null;
+      undoLog = null;
+    }
+  }
+
   @Override
   public V remove(final Object key) {
-    V oldValue = get(key);
+    checkModifiable();
+    V oldValue = get(key, false);
+    @SuppressWarnings("unchecked")
+    K typedKey = (K) key;
+    removeInOverlay(typedKey);
+    return oldValue;
+  }
+
+  @Override
+  public boolean remove(final Object key, final Object value) {
+    checkModifiable();
+    V currentValue = get(key, false);
+    if (currentValue == null || !currentValue.equals(value)) {
+      return false;
+    }
+    @SuppressWarnings("unchecked")
+    K typedKey = (K) key;
+    removeInOverlay(typedKey);
+    return true;
+  }
+
+  /**
+   * Records the removal of a key in the overlay without reading the current value.
+   */
+  private void removeInOverlay(final K key) {
+    if (undoLog != null) {
+      undoLog.add(new KeyUndoRecord<>(this, key));
+    }
 
     readOnly = false;
     puts.remove(key);
+    if (timeToLives != null) {
+      timeToLives.remove(key);
+    }
     if (!cleared) {
-      @SuppressWarnings("unchecked")
-      K typedKey = (K) key;
-      removes.add(typedKey);
+      removes.add(key);
     }
+  }
 
+  @Override
+  public V replace(final K key, final V value) {
+    checkModifiable();
+    V oldValue = get(key, false);
+    if (oldValue != null) {
+      putInOverlay(key, value);
+    }
     return oldValue;
   }
 
+  @Override
+  public boolean replace(final K key, final V oldValue, final V newValue) {
+    checkModifiable();
+    V currentValue = get(key, false);
+    if (currentValue == null || !currentValue.equals(oldValue)) {
+      return false;
+    }
+    putInOverlay(key, newValue);
+    return true;
+  }
+
+  /**
+   * Reserves the affected keys for the time of the commit if the transaction is not prepared and
+   * it changed anything. The reservation is shared with other commits and it is released by
+   * {@link #commit()} or {@link #rollback()}. While no transaction is prepared, the keys are not
+   * reserved, only the commit is counted.
+   *
+   * @throws IllegalStateException
+   *           if any of the affected keys is reserved by a prepared transaction.
+   */
+  public void reserveForCommit() {
+    if (prepared || reservedForCommit || unreservedCommit || isReadOnly()) {
+      return;
+    }
+    KeyReservations keyReservations = rwLockedMap.getKeyReservations();
+    if (keyReservations.enterUnreservedCommit()) {
+      unreservedCommit = true;
+    } else {
+      keyReservations.reserveForCommit(this, cleared, affectedKeys());
+      reservedForCommit = true;
+    }
+  }
+
+  /**
+   * Releases the reservations of the transaction if it is prepared or it is reserved for the
+   * commit. The changes of the transaction are dropped together with this object.
+   */
+  public void rollback() {
+    releaseReservations();
+  }
+
+  /**
+   * Undoes the changes that were done after a savepoint. The savepoints that were set after the
+   * savepoint are released, the savepoint itself stays active. The cost is proportional to the
+   * number of changes after the savepoint.
+   *
+   * @param savepointId
+   *          The identifier of the savepoint.
+   */
+  public void rollbackToSavepoint(final long savepointId) {
+    checkNotPrepared();
+    int index = indexOfSavepoint(savepointId);
+    SavepointState savepoint = savepoints.get(index);
+    for (int i = undoLog.size() - 1; i >= savepoint.undoLogPosition; i--) {
+      undoLog.remove(i).undo(this);
+    }
+    readOnly = savepoint.readOnly;
+    savepoints.subList(index + 1, savepoints.size()).clear();
+  }
+
+  /**
+   * Sets a savepoint that the changes of the transaction can be rolled back to later.
+   *
+   * @return The identifier of the savepoint.
+   */
+  public long setSavepoint() {
+    checkNotPrepared();
+    if (savepoints == null) {
+      savepoints = new ArrayList<>();
+      undoLog = new ArrayList<>();
+    }
+    long savepointId = ++savepointIdSequence;
+    savepoints.add(new SavepointState(savepointId, undoLog.size(), readOnly));
+    return savepointId;
+  }
+
   @Override
   public int size() {
+    if (readOnly) {
+      return rwLockedMap.size();
+    }
     return keySet().size();
   }
 
+  /**
+   * Stores the result of a remapping function in the overlay: puts the new value or removes the
+   * key if the new value is <code>null</code>.
+   */
+  private void storeComputed(final K key, final V oldValue, final V newValue) {
+    if (newValue != null) {
+      putInOverlay(key, newValue);
+    } else if (oldValue != null) {
+      removeInOverlay(key);
+    }
+  }
+
+  /**
+   * Passes the changes of the transaction to a hook as read-only views.
+   *
+   * @param hook
+   *          The hook.
+   */
+  public void validate(final PreCommitHook<K, V> hook) {
+    hook.validate(transaction, cleared, Collections.unmodifiableSet(removes),
+        Collections.unmodifiableMap(puts));
+  }
+
   @Override
   public Collection<V> values() {
     // XXX expensive :(
     Collection<V> values = new ArrayList<V>();
     Set<K> keys = keySet();
-    Map<K, V> avoidFindbugsThis = this;
     for (K key : keys) {
-      V value = avoidFindbugsThis.get(key);
+      V value = get(key, false);
       // XXX we have no isolation, so entry might have been
       // deleted in the meantime
       if (value != null) {
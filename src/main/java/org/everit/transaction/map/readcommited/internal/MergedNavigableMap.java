@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Read-only {@link NavigableMap} view that merges an ordered overlay into an ordered committed
+ * state. The entries of the overlay hide the entries of the committed state with the same key
+ * and the keys that are removed by the overlay are skipped. Iteration and navigation stream the
+ * two maps side by side in key order without copying them. The sources are queried on every
+ * call, so the view always reflects the current state of the overlay and the committed state.
+ *
+ * <p>
+ * Ranges and the descending order of the views are delegated to the range and descending views
+ * of the sources, so the bounds are checked in the same way as in the JDK implementations.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+public class MergedNavigableMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+  /**
+   * The entries of the merged view.
+   */
+  protected class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override
+    public boolean contains(final Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+      Object key = entry.getKey();
+      return containsKey(key) && Objects.equals(get(key), entry.getValue());
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return MergedNavigableMap.this.isEmpty();
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+      return new MergingIterator(committed().entrySet().iterator(),
+          overlay().entrySet().iterator());
+    }
+
+    @Override
+    public int size() {
+      return MergedNavigableMap.this.size();
+    }
+  }
+
+  /**
+   * Read-only {@link NavigableSet} view of the keys of a {@link NavigableMap}.
+   *
+   * @param <K>
+   *          The type of the keys.
+   */
+  protected static class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+
+    protected final NavigableMap<K, ?> map;
+
+    protected KeySet(final NavigableMap<K, ?> map) {
+      this.map = map;
+    }
+
+    @Override
+    public K ceiling(final K e) {
+      return map.ceilingKey(e);
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+      return map.comparator();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+      return map.containsKey(o);
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+      return descendingSet().iterator();
+    }
+
+    @Override
+    public NavigableSet<K> descendingSet() {
+      return new KeySet<>(map.descendingMap());
+    }
+
+    @Override
+    public K first() {
+      return map.firstKey();
+    }
+
+    @Override
+    public K floor(final K e) {
+      return map.floorKey(e);
+    }
+
+    @Override
+    public SortedSet<K> headSet(final K toElement) {
+      return headSet(toElement, false);
+    }
+
+    @Override
+    public NavigableSet<K> headSet(final K toElement, final boolean inclusive) {
+      return new KeySet<>(map.headMap(toElement, inclusive));
+    }
+
+    @Override
+    public K higher(final K e) {
+      return map.higherKey(e);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return map.isEmpty();
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+      Iterator<? extends Entry<K, ?>> iterator = map.entrySet().iterator();
+      return new Iterator<K>() {
+
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public K next() {
+          return iterator.next().getKey();
+        }
+      };
+    }
+
+    @Override
+    public K last() {
+      return map.lastKey();
+    }
+
+    @Override
+    public K lower(final K e) {
+      return map.lowerKey(e);
+    }
+
+    @Override
+    public K pollFirst() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public K pollLast() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public NavigableSet<K> subSet(final K fromElement, final boolean fromInclusive,
+        final K toElement, final boolean toInclusive) {
+      return new KeySet<>(map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+    }
+
+    @Override
+    public SortedSet<K> subSet(final K fromElement, final K toElement) {
+      return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public SortedSet<K> tailSet(final K fromElement) {
+      return tailSet(fromElement, true);
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(final K fromElement, final boolean inclusive) {
+      return new KeySet<>(map.tailMap(fromElement, inclusive));
+    }
+  }
+
+  /**
+   * Iterates the committed entries and the overlay entries side by side in key order.
+   */
+  protected class MergingIterator implements Iterator<Entry<K, V>> {
+
+    protected final Iterator<Entry<K, V>> committedIterator;
+
+    protected Entry<K, V> nextCommitted;
+
+    protected Entry<K, V> nextOverlay;
+
+    protected final Iterator<Entry<K, V>> overlayIterator;
+
+    protected MergingIterator(final Iterator<Entry<K, V>> committedIterator,
+        final Iterator<Entry<K, V>> overlayIterator) {
+      this.committedIterator = committedIterator;
+      this.overlayIterator = overlayIterator;
+      advanceCommitted();
+      advanceOverlay();
+    }
+
+    private void advanceCommitted() {
+      do {
+        nextCommitted = (committedIterator.hasNext()) ? committedIterator.next() : null;
+      } while (nextCommitted != null && removed.test(nextCommitted.getKey()));
+    }
+
+    private void advanceOverlay() {
+      nextOverlay = (overlayIterator.hasNext()) ? overlayIterator.next() : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextCommitted != null || nextOverlay != null;
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int cmp;
+      if (nextCommitted == null) {
+        cmp = 1;
+      } else if (nextOverlay == null) {
+        cmp = -1;
+      } else {
+        cmp = compare(nextCommitted.getKey(), nextOverlay.getKey());
+      }
+
+      Entry<K, V> result;
+      if (cmp < 0) {
+        result = nextCommitted;
+        advanceCommitted();
+      } else {
+        result = nextOverlay;
+        advanceOverlay();
+        if (cmp == 0) {
+          advanceCommitted();
+        }
+      }
+      return new SimpleImmutableEntry<>(result);
+    }
+  }
+
+  protected final Comparator<? super K> comparator;
+
+  protected final Supplier<NavigableMap<K, V>> committedSource;
+
+  protected final Supplier<NavigableMap<K, V>> overlaySource;
+
+  /**
+   * Selects the range and the order of the view from a source.
+   */
+  protected final Function<NavigableMap<K, V>, NavigableMap<K, V>> range;
+
+  /**
+   * Tells whether a key of the committed state is removed by the overlay.
+   */
+  protected final Predicate<Object> removed;
+
+  /**
+   * Constructor of a parent view.
+   *
+   * @param committedSource
+   *          Provides the committed state.
+   * @param overlaySource
+   *          Provides the overlay. It must be ordered in the same way as the committed state.
+   * @param removed
+   *          Tells whether a key of the committed state is removed by the overlay.
+   */
+  public MergedNavigableMap(final Supplier<NavigableMap<K, V>> committedSource,
+      final Supplier<NavigableMap<K, V>> overlaySource, final Predicate<Object> removed) {
+    this(committedSource, overlaySource, removed, Function.identity());
+  }
+
+  /**
+   * Constructor of a range or descending view.
+   */
+  protected MergedNavigableMap(final Supplier<NavigableMap<K, V>> committedSource,
+      final Supplier<NavigableMap<K, V>> overlaySource, final Predicate<Object> removed,
+      final Function<NavigableMap<K, V>, NavigableMap<K, V>> range) {
+    this.committedSource = committedSource;
+    this.overlaySource = overlaySource;
+    this.removed = removed;
+    this.range = range;
+    // Selecting the range of the overlay checks the bounds
+    this.comparator = range.apply(overlaySource.get()).comparator();
+  }
+
+  @Override
+  public Entry<K, V> ceilingEntry(final K key) {
+    return navigate(NavigableMap::ceilingEntry, NavigableMap::higherEntry, key, true);
+  }
+
+  @Override
+  public K ceilingKey(final K key) {
+    return keyOrNull(ceilingEntry(key));
+  }
+
+  protected NavigableMap<K, V> committed() {
+    return range.apply(committedSource.get());
+  }
+
+  @Override
+  public Comparator<? super K> comparator() {
+    return comparator;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int compare(final K key1, final K key2) {
+    if (comparator != null) {
+      return comparator.compare(key1, key2);
+    }
+    return ((Comparable<? super K>) key1).compareTo(key2);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    if (overlay().containsKey(key)) {
+      return true;
+    }
+    return !removed.test(key) && committed().containsKey(key);
+  }
+
+  @Override
+  public NavigableSet<K> descendingKeySet() {
+    return descendingMap().navigableKeySet();
+  }
+
+  @Override
+  public NavigableMap<K, V> descendingMap() {
+    return withRange(NavigableMap::descendingMap);
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  @Override
+  public Entry<K, V> firstEntry() {
+    return navigate((map, key) -> map.firstEntry(), NavigableMap::higherEntry, null, true);
+  }
+
+  @Override
+  public K firstKey() {
+    return keyOrThrow(firstEntry());
+  }
+
+  @Override
+  public Entry<K, V> floorEntry(final K key) {
+    return navigate(NavigableMap::floorEntry, NavigableMap::lowerEntry, key, false);
+  }
+
+  @Override
+  public K floorKey(final K key) {
+    return keyOrNull(floorEntry(key));
+  }
+
+  @Override
+  public V get(final Object key) {
+    NavigableMap<K, V> overlay = overlay();
+    if (overlay.containsKey(key)) {
+      return overlay.get(key);
+    }
+    if (removed.test(key)) {
+      return null;
+    }
+    return committed().get(key);
+  }
+
+  @Override
+  public SortedMap<K, V> headMap(final K toKey) {
+    return headMap(toKey, false);
+  }
+
+  @Override
+  public NavigableMap<K, V> headMap(final K toKey, final boolean inclusive) {
+    return withRange((map) -> map.headMap(toKey, inclusive));
+  }
+
+  @Override
+  public Entry<K, V> higherEntry(final K key) {
+    return navigate(NavigableMap::higherEntry, NavigableMap::higherEntry, key, true);
+  }
+
+  @Override
+  public K higherKey(final K key) {
+    return keyOrNull(higherEntry(key));
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return firstEntry() == null;
+  }
+
+  private K keyOrNull(final Entry<K, V> entry) {
+    return (entry != null) ? entry.getKey() : null;
+  }
+
+  private K keyOrThrow(final Entry<K, V> entry) {
+    if (entry == null) {
+      throw new NoSuchElementException();
+    }
+    return entry.getKey();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return navigableKeySet();
+  }
+
+  @Override
+  public Entry<K, V> lastEntry() {
+    return navigate((map, key) -> map.lastEntry(), NavigableMap::lowerEntry, null, false);
+  }
+
+  @Override
+  public K lastKey() {
+    return keyOrThrow(lastEntry());
+  }
+
+  @Override
+  public Entry<K, V> lowerEntry(final K key) {
+    return navigate(NavigableMap::lowerEntry, NavigableMap::lowerEntry, key, false);
+  }
+
+  @Override
+  public K lowerKey(final K key) {
+    return keyOrNull(lowerEntry(key));
+  }
+
+  /**
+   * Finds an entry in the overlay and in the committed state and returns the one that comes first
+   * in the searched direction. The removed keys of the committed state are skipped.
+   *
+   * @param find
+   *          Finds the first candidate in a source.
+   * @param next
+   *          Finds the next candidate in a source after a removed key.
+   * @param key
+   *          The key that is passed to the functions.
+   * @param ascending
+   *          Whether the lower or the higher of the candidates should be returned.
+   * @return The entry or <code>null</code>.
+   */
+  private Entry<K, V> navigate(final BiFunction<NavigableMap<K, V>, K, Entry<K, V>> find,
+      final BiFunction<NavigableMap<K, V>, K, Entry<K, V>> next, final K key,
+      final boolean ascending) {
+    Entry<K, V> overlayEntry = find.apply(overlay(), key);
+
+    NavigableMap<K, V> committed = committed();
+    Entry<K, V> committedEntry = find.apply(committed, key);
+    while (committedEntry != null && removed.test(committedEntry.getKey())) {
+      committedEntry = next.apply(committed, committedEntry.getKey());
+    }
+
+    Entry<K, V> result;
+    if (committedEntry == null) {
+      result = overlayEntry;
+    } else if (overlayEntry == null) {
+      result = committedEntry;
+    } else {
+      int cmp = compare(committedEntry.getKey(), overlayEntry.getKey());
+      result = (cmp != 0 && (cmp < 0) == ascending) ? committedEntry : overlayEntry;
+    }
+    return (result != null) ? new SimpleImmutableEntry<>(result) : null;
+  }
+
+  @Override
+  public NavigableSet<K> navigableKeySet() {
+    return new KeySet<>(this);
+  }
+
+  protected NavigableMap<K, V> overlay() {
+    return range.apply(overlaySource.get());
+  }
+
+  @Override
+  public Entry<K, V> pollFirstEntry() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Entry<K, V> pollLastEntry() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Iterator<Entry<K, V>> iterator = entrySet().iterator(); iterator.hasNext();) {
+      iterator.next();
+      size++;
+    }
+    return size;
+  }
+
+  @Override
+  public NavigableMap<K, V> subMap(final K fromKey, final boolean fromInclusive, final K toKey,
+      final boolean toInclusive) {
+    return withRange((map) -> map.subMap(fromKey, fromInclusive, toKey, toInclusive));
+  }
+
+  @Override
+  public SortedMap<K, V> subMap(final K fromKey, final K toKey) {
+    return subMap(fromKey, true, toKey, false);
+  }
+
+  @Override
+  public SortedMap<K, V> tailMap(final K fromKey) {
+    return tailMap(fromKey, true);
+  }
+
+  @Override
+  public NavigableMap<K, V> tailMap(final K fromKey, final boolean inclusive) {
+    return withRange((map) -> map.tailMap(fromKey, inclusive));
+  }
+
+  private NavigableMap<K, V> withRange(
+      final Function<NavigableMap<K, V>, NavigableMap<K, V>> subRange) {
+    return new MergedNavigableMap<>(committedSource, overlaySource, removed,
+        range.andThen(subRange));
+  }
+}
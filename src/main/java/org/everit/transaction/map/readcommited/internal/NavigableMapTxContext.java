@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A {@link MapTxContext} whose overlay is sorted in the same order as the committed state, so the
+ * content that is visible within the transaction can be read in key order via
+ * {@link #navigableView()} without materializing the merged result.
+ *
+ * @param <K>
+ *          Type of keys.
+ * @param <V>
+ *          Type of values.
+ */
+public class NavigableMapTxContext<K, V> extends MapTxContext<K, V> {
+
+  /**
+   * Constructor.
+   *
+   * @param rwLockedMap
+   *          The committed state.
+   * @param transaction
+   *          The transaction this context belongs to.
+   * @param loader
+   *          The loader that is called when a key is not found in the committed state or
+   *          <code>null</code> if read-through loading is not used.
+   */
+  public NavigableMapTxContext(final RWLockedNavigableMap<K, V> rwLockedMap,
+      final Object transaction, final ReadThroughLoader<K, V> loader) {
+    super(rwLockedMap, transaction, loader);
+  }
+
+  @Override
+  protected Map<K, V> createPuts() {
+    return new TreeMap<>(getNavigableStore().comparator());
+  }
+
+  @Override
+  protected Set<K> createRemoves() {
+    return new TreeSet<>(getNavigableStore().comparator());
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return navigableView().entrySet();
+  }
+
+  private RWLockedNavigableMap<K, V> getNavigableStore() {
+    return (RWLockedNavigableMap<K, V>) rwLockedMap;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return navigableView().isEmpty();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return navigableView().navigableKeySet();
+  }
+
+  /**
+   * Returns a read-only view of the content that is visible within the transaction. The view
+   * merges the overlay into the committed state on the fly and it reflects the later changes.
+   *
+   * @return The view.
+   */
+  public NavigableMap<K, V> navigableView() {
+    RWLockedNavigableMap<K, V> store = getNavigableStore();
+    return new MergedNavigableMap<>(
+        () -> (cleared) ? store.getEmptyMap() : store.getNavigableStore(),
+        () -> (NavigableMap<K, V>) puts, (key) -> removes.contains(key));
+  }
+
+  @Override
+  public int size() {
+    if (readOnly) {
+      return rwLockedMap.size();
+    }
+    return navigableView().size();
+  }
+
+  @Override
+  public Collection<V> values() {
+    return navigableView().values();
+  }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A {@link java.util.Map} for the write set of a transaction that adapts its representation to
+ * the number of entries. Nothing is allocated until the first put. Up to
+ * {@link #LINEAR_LIMIT} entries are stored in small arrays that are searched linearly, which is
+ * cheaper than hashing for the few keys that most transactions write. When the map grows further,
+ * the entries are moved into an open addressing table with linear probing whose capacity is
+ * doubled when it gets half full, so big write sets are rehashed only a logarithmic number of
+ * times and no entry objects are allocated.
+ *
+ * <p>
+ * <code>null</code> keys and values are supported. The iterators of the views do not support
+ * removal and the map is not thread safe.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+public class OverlayMap<K, V> extends AbstractMap<K, V> {
+
+  /**
+   * The view of the entries.
+   */
+  private class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override
+    public void clear() {
+      OverlayMap.this.clear();
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+      return new SlotIterator<Entry<K, V>>() {
+        @Override
+        protected Entry<K, V> get(final int slot) {
+          return new HashEntry<>(unmask(keys[slot]), valueAt(slot));
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * The view of the keys.
+   */
+  private class KeySet extends AbstractSet<K> {
+
+    @Override
+    public void clear() {
+      OverlayMap.this.clear();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+      return containsKey(o);
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+      return new SlotIterator<K>() {
+        @Override
+        protected K get(final int slot) {
+          return unmask(keys[slot]);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Iterates the occupied slots of the arrays.
+   *
+   * @param <E>
+   *          The type of the elements.
+   */
+  private abstract class SlotIterator<E> implements Iterator<E> {
+
+    private int nextSlot = -1;
+
+    private int remaining = size;
+
+    protected abstract E get(int slot);
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public E next() {
+      if (remaining == 0) {
+        throw new NoSuchElementException();
+      }
+      nextSlot++;
+      while (keys[nextSlot] == null) {
+        nextSlot++;
+      }
+      remaining--;
+      return get(nextSlot);
+    }
+  }
+
+  /**
+   * The number of entries that are stored in linearly searched arrays.
+   */
+  public static final int LINEAR_LIMIT = 8;
+
+  private static final int INITIAL_LINEAR_CAPACITY = 4;
+
+  /**
+   * Stands for the <code>null</code> key in the arrays, where <code>null</code> marks a free slot.
+   */
+  private static final Object NULL_KEY = new Object();
+
+  /**
+   * Whether the arrays are an open addressing table. Otherwise the first {@link #size} elements
+   * of the arrays hold the entries.
+   */
+  protected boolean hashed;
+
+  /**
+   * The masked keys or <code>null</code> if nothing was put since the map was created or cleared.
+   */
+  protected Object[] keys;
+
+  protected int size;
+
+  /**
+   * The values in the same slots as their keys.
+   */
+  protected Object[] values;
+
+  private static int hash(final Object maskedKey) {
+    int hash = maskedKey.hashCode() * 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private static Object mask(final Object key) {
+    return (key == null) ? NULL_KEY : key;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K> K unmask(final Object maskedKey) {
+    return (maskedKey == NULL_KEY) ? null : (K) maskedKey;
+  }
+
+  @Override
+  public void clear() {
+    keys = null;
+    values = null;
+    size = 0;
+    hashed = false;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return indexOf(mask(key)) >= 0;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  @Override
+  public V get(final Object key) {
+    int slot = indexOf(mask(key));
+    return (slot >= 0) ? valueAt(slot) : null;
+  }
+
+  private int indexOf(final Object maskedKey) {
+    Object[] keyArray = keys;
+    if (keyArray == null) {
+      return -1;
+    }
+    if (!hashed) {
+      for (int i = 0; i < size; i++) {
+        Object storedKey = keyArray[i];
+        if (storedKey == maskedKey || storedKey.equals(maskedKey)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    int mask = keyArray.length - 1;
+    int slot = hash(maskedKey) & mask;
+    Object storedKey = keyArray[slot];
+    while (storedKey != null) {
+      if (storedKey == maskedKey || storedKey.equals(maskedKey)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+      storedKey = keyArray[slot];
+    }
+    return -1;
+  }
+
+  private void insertHashed(final Object maskedKey, final Object value) {
+    int mask = keys.length - 1;
+    int slot = hash(maskedKey) & mask;
+    while (keys[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = maskedKey;
+    values[slot] = value;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return new KeySet();
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+    Object maskedKey = mask(key);
+    int slot = indexOf(maskedKey);
+    if (slot >= 0) {
+      V oldValue = valueAt(slot);
+      values[slot] = value;
+      return oldValue;
+    }
+    if (keys == null) {
+      keys = new Object[INITIAL_LINEAR_CAPACITY];
+      values = new Object[INITIAL_LINEAR_CAPACITY];
+    }
+    if (!hashed) {
+      if (size < keys.length) {
+        keys[size] = maskedKey;
+        values[size] = value;
+        size++;
+        return null;
+      }
+      if (size < LINEAR_LIMIT) {
+        int newCapacity = Math.min(keys.length * 2, LINEAR_LIMIT);
+        keys = Arrays.copyOf(keys, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+        keys[size] = maskedKey;
+        values[size] = value;
+        size++;
+        return null;
+      }
+      rehash(tableCapacityFor(size + 1));
+    } else if ((size + 1) * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    insertHashed(maskedKey, value);
+    size++;
+    return null;
+  }
+
+  /**
+   * Puts the entries of a map after growing the arrays once to fit all of them, so a big map is
+   * not rehashed several times while its entries are put.
+   */
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+    int expectedSize = size + m.size();
+    if (expectedSize > LINEAR_LIMIT) {
+      int capacity = tableCapacityFor(expectedSize);
+      if (!hashed || capacity > keys.length) {
+        rehash(capacity);
+      }
+    } else if (keys == null || keys.length < expectedSize) {
+      int capacity = Math.max(expectedSize, INITIAL_LINEAR_CAPACITY);
+      keys = (keys == null) ? new Object[capacity] : Arrays.copyOf(keys, capacity);
+      values = (values == null) ? new Object[capacity] : Arrays.copyOf(values, capacity);
+    }
+    for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void rehash(final int capacity) {
+    Object[] oldKeys = keys;
+    Object[] oldValues = values;
+    int oldLength = hashed ? oldKeys.length : size;
+    keys = new Object[capacity];
+    values = new Object[capacity];
+    hashed = true;
+    for (int i = 0; i < oldLength; i++) {
+      if (oldKeys[i] != null) {
+        insertHashed(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  @Override
+  public V remove(final Object key) {
+    int slot = indexOf(mask(key));
+    if (slot < 0) {
+      return null;
+    }
+    V oldValue = valueAt(slot);
+    size--;
+    if (!hashed) {
+      keys[slot] = keys[size];
+      values[slot] = values[size];
+      keys[size] = null;
+      values[size] = null;
+      return oldValue;
+    }
+    // Backward shift deletion keeps the probe sequences intact without tombstones
+    int mask = keys.length - 1;
+    int freeSlot = slot;
+    int nextSlot = (slot + 1) & mask;
+    while (keys[nextSlot] != null) {
+      int homeSlot = hash(keys[nextSlot]) & mask;
+      // The entry can be moved if its home slot is not between the free slot and its slot
+      if (((nextSlot - homeSlot) & mask) >= ((nextSlot - freeSlot) & mask)) {
+        keys[freeSlot] = keys[nextSlot];
+        values[freeSlot] = values[nextSlot];
+        freeSlot = nextSlot;
+      }
+      nextSlot = (nextSlot + 1) & mask;
+    }
+    keys[freeSlot] = null;
+    values[freeSlot] = null;
+    return oldValue;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the capacity of the table that holds a number of entries at most half full.
+   */
+  private int tableCapacityFor(final int entryCount) {
+    int capacity = Integer.highestOneBit(entryCount * 2 - 1) << 1;
+    return Math.max(capacity, LINEAR_LIMIT * 4);
+  }
+
+  @SuppressWarnings("unchecked")
+  private V valueAt(final int slot) {
+    return (V) values[slot];
+  }
+}
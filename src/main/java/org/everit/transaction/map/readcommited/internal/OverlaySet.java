@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * A {@link java.util.Set} for the removed keys of a transaction that is backed by an
+ * {@link OverlayMap}, so it adapts its representation to the number of keys in the same way.
+ *
+ * @param <E>
+ *          The type of the elements.
+ */
+public class OverlaySet<E> extends AbstractSet<E> {
+
+  protected final OverlayMap<E, Boolean> map = new OverlayMap<>();
+
+  @Override
+  public boolean add(final E e) {
+    return map.put(e, Boolean.TRUE) == null;
+  }
+
+  @Override
+  public void clear() {
+    map.clear();
+  }
+
+  @Override
+  public boolean contains(final Object o) {
+    return map.containsKey(o);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return map.keySet().iterator();
+  }
+
+  @Override
+  public boolean remove(final Object o) {
+    return map.remove(o) != null;
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+}
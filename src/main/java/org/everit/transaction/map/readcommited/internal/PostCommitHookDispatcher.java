@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.everit.transaction.map.readcommited.ChangeRecord;
+import org.everit.transaction.map.readcommited.ChangeSubscription;
+
+/**
+ * Passes each {@link ChangeRecord} of a {@link RWLockedMap} to a hook in a separate task on an
+ * {@link Executor}. The records are only collected while the write lock is held; the tasks are
+ * submitted after the lock is released, so neither the hook nor the executor can delay the other
+ * commits. The tasks of different commits might run concurrently and in any order. If the hook
+ * throws an exception or the executor rejects a task, the failure is passed to a failure handler
+ * and the hook is kept unless the dispatcher drops it on failures.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class PostCommitHookDispatcher<K, V> implements CommitListener<K, V>, ChangeSubscription {
+
+  protected volatile boolean closed;
+
+  /**
+   * The records that the current thread committed within the write lock and that are not submitted
+   * yet.
+   */
+  protected final ThreadLocal<List<ChangeRecord<K, V>>> committedRecords = new ThreadLocal<>();
+
+  protected final boolean dropOnFailure;
+
+  protected volatile boolean dropped;
+
+  protected final Executor executor;
+
+  protected final BiConsumer<? super ChangeRecord<K, V>, ? super RuntimeException> failureHandler;
+
+  protected final Consumer<? super ChangeRecord<K, V>> hook;
+
+  protected final RWLockedMap<K, V> rwLockedMap;
+
+  /**
+   * Constructor. The dispatcher must be registered as a listener of the map by the caller.
+   *
+   * @param rwLockedMap
+   *          The map whose commits are dispatched.
+   * @param hook
+   *          The hook that is called with the record of each commit.
+   * @param executor
+   *          The executor that runs the tasks that call the hook.
+   * @param failureHandler
+   *          Called with the record and the exception if the hook fails or the executor rejects
+   *          the task of a record.
+   * @param dropOnFailure
+   *          Whether the hook should not be called anymore after a failure.
+   */
+  public PostCommitHookDispatcher(final RWLockedMap<K, V> rwLockedMap,
+      final Consumer<? super ChangeRecord<K, V>> hook, final Executor executor,
+      final BiConsumer<? super ChangeRecord<K, V>, ? super RuntimeException> failureHandler,
+      final boolean dropOnFailure) {
+    this.rwLockedMap = rwLockedMap;
+    this.hook = hook;
+    this.executor = executor;
+    this.failureHandler = failureHandler;
+    this.dropOnFailure = dropOnFailure;
+  }
+
+  @Override
+  public void afterCommit() {
+    List<ChangeRecord<K, V>> records = committedRecords.get();
+    if (records == null) {
+      return;
+    }
+    committedRecords.remove();
+    for (ChangeRecord<K, V> changeRecord : records) {
+      if (closed || dropped) {
+        return;
+      }
+      try {
+        executor.execute(() -> deliver(changeRecord));
+      } catch (RejectedExecutionException e) {
+        failed(changeRecord, e);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    rwLockedMap.removeCommitListener(this);
+  }
+
+  @Override
+  public void committed(final ChangeRecord<K, V> changeRecord) {
+    if (closed || dropped) {
+      return;
+    }
+    List<ChangeRecord<K, V>> records = committedRecords.get();
+    if (records == null) {
+      records = new ArrayList<>(1);
+      committedRecords.set(records);
+    }
+    records.add(changeRecord);
+  }
+
+  /**
+   * Passes a record to the hook unless the dispatcher was closed or dropped since the record was
+   * submitted.
+   */
+  protected void deliver(final ChangeRecord<K, V> changeRecord) {
+    if (closed || dropped) {
+      return;
+    }
+    try {
+      hook.accept(changeRecord);
+    } catch (RuntimeException e) {
+      failed(changeRecord, e);
+    }
+  }
+
+  /**
+   * Stops calling the hook.
+   */
+  protected void drop() {
+    dropped = true;
+    rwLockedMap.removeCommitListener(this);
+  }
+
+  /**
+   * Passes a failure to the failure handler and drops the hook if it should be dropped on
+   * failures.
+   */
+  private void failed(final ChangeRecord<K, V> changeRecord, final RuntimeException e) {
+    try {
+      failureHandler.accept(changeRecord, e);
+    } catch (RuntimeException handlerException) {
+      // The commit is already done and the other records must be dispatched anyway
+    } finally {
+      if (dropOnFailure) {
+        drop();
+      }
+    }
+  }
+
+  @Override
+  public boolean isDropped() {
+    return dropped;
+  }
+
+  /**
+   * Failure handler that passes the exception to the uncaught exception handler of the current
+   * thread.
+   *
+   * @param changeRecord
+   *          The record that could not be passed to the hook.
+   * @param e
+   *          The failure.
+   */
+  public static void reportUncaught(final ChangeRecord<?, ?> changeRecord,
+      final RuntimeException e) {
+    Thread thread = Thread.currentThread();
+    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+  }
+}
@@ -15,18 +15,56 @@
  */
 package org.everit.transaction.map.readcommited.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
+import org.everit.transaction.map.readcommited.BoundedMap;
+import org.everit.transaction.map.readcommited.ChangeRecord;
+import org.everit.transaction.map.readcommited.LockStrategy;
+
 /**
- * A {@link Map} implementation that uses {@link ReadWriteLock} in its functions. Beware that this
- * class does not override the functions introduced in Java 8 as this class was designed to be used
- * internally within Managed Map project.
+ * A {@link Map} implementation that uses {@link ReadWriteLock} in its functions. The atomic
+ * functions introduced in Java 8 ({@link #compute(Object, BiFunction)},
+ * {@link #merge(Object, Object, BiFunction)}, {@link #putIfAbsent(Object, Object)}, etc.) run
+ * within one write lock, so their functions are called while the lock is held. Beware that this
+ * class does not override the other functions introduced in Java 8 as this class was designed to
+ * be used internally within Managed Map project.
+ *
+ * <p>
+ * Entries can have a time-to-live. Their expiration times are tracked by a {@link TimerWheel}:
+ * lookups treat expired entries as absent and the expired entries are removed from the wrapped map
+ * by the next write or by {@link #expireEntries()}. The functions that work on all entries skip
+ * the expired entries within the read lock, so readers never wait for the write lock.
+ *
+ * <p>
+ * Transactions apply their changes with {@link #commit(boolean, Set, Map, Map)}. Each write,
+ * including the commits, the writes outside of transactions and the expiration of entries, gets
+ * the next commit sequence number and is passed to the registered {@link CommitListener}s as a
+ * {@link ChangeRecord}.
+ *
+ * <p>
+ * With {@link LockStrategy#STAMPED}, {@link #get(Object)} and {@link #containsKey(Object)} read
+ * the wrapped map without locking and fall back to the read lock if a write interleaved with them.
+ * The wrapped map must tolerate reads that run in parallel with a write; any inconsistency that
+ * such a read sees is discarded by the validation.
  *
  * @param <K>
  *          The type of the keys.
@@ -35,27 +73,511 @@ import java.util.function.Supplier;
  */
 public class RWLockedMap<K, V> implements Map<K, V> {
 
-  protected final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+  /**
+   * The changes of a write that are collected while the write lock is held if there is any commit
+   * listener.
+   *
+   * @param <K>
+   *          The type of the keys.
+   * @param <V>
+   *          The type of the values.
+   */
+  protected static class PendingChange<K, V> {
 
-  protected final Map<K, V> wrapped;
+    protected boolean cleared;
+
+    protected Map<K, V> puts = new HashMap<>();
+
+    protected Set<K> removes = new HashSet<>();
+
+    protected void clear() {
+      cleared = true;
+      puts = new HashMap<>();
+      removes = new HashSet<>();
+    }
+
+    protected void put(final K key, final V value) {
+      puts.put(key, value);
+    }
+
+    protected void remove(final K key) {
+      puts.remove(key);
+      if (!cleared) {
+        removes.add(key);
+      }
+    }
+
+    protected void replace(final Map<K, V> newPuts) {
+      cleared = true;
+      puts = newPuts;
+      removes = new HashSet<>();
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static final CommittedIndex[] NO_INDEXES = new CommittedIndex[0];
+
+  @SuppressWarnings("rawtypes")
+  private static final CommitListener[] NO_LISTENERS = new CommitListener[0];
+
+  /**
+   * Creates the new stores when the map is cleared or <code>null</code> if the wrapped map should
+   * be cleared in place.
+   */
+  protected volatile Supplier<? extends Map<K, V>> clearStoreFactory;
+
+  /**
+   * Copy-on-write array of the listeners. Modified only within the synchronized functions.
+   */
+  @SuppressWarnings("unchecked")
+  protected volatile CommitListener<K, V>[] commitListeners = NO_LISTENERS;
+
+  /**
+   * The sequence number of the last commit. Modified only while the write lock is held.
+   */
+  protected long commitSequence;
+
+  /**
+   * The indexes of the committed entries. Replaced and modified only while the write lock is held.
+   */
+  @SuppressWarnings("unchecked")
+  protected CommittedIndex<K, V>[] indexes = NO_INDEXES;
+
+  /**
+   * The keys that are reserved by prepared transactions.
+   */
+  protected final KeyReservations keyReservations = new KeyReservations();
+
+  /**
+   * The number of committed entries per value or <code>null</code> if the counts are not tracked.
+   */
+  protected volatile ValueCountIndex<K, V> valueCountIndex;
+
+  /**
+   * Whether the wrapped map was modified within the current write lock.
+   */
+  protected boolean modified;
+
+  /**
+   * The changes of the current write or <code>null</code> if there is no listener to notify.
+   */
+  protected PendingChange<K, V> pendingChange;
+
+  protected final ReadWriteLock rwLock;
+
+  /**
+   * The lock behind {@link #rwLock} if the single key lookups read optimistically, otherwise
+   * <code>null</code>.
+   */
+  protected final StampedLock stampedLock;
+
+  /**
+   * The source of the current time in nanoseconds for the time-to-live of the entries.
+   */
+  protected volatile LongSupplier ticker = System::nanoTime;
+
+  /**
+   * Tracks the expiration of the entries that have a time-to-live. Created when the first entry
+   * with time-to-live is put. Modified only while the write lock is held.
+   */
+  protected volatile TimerWheel<K> timerWheel;
+
+  /**
+   * The committed store. Replaced only while the write lock is held if there is a store factory
+   * for clearing.
+   */
+  protected volatile Map<K, V> wrapped;
 
   public RWLockedMap(final Map<K, V> wrapped) {
+    this(wrapped, LockStrategy.READ_WRITE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The committed store.
+   * @param lockStrategy
+   *          The lock that protects the committed store.
+   */
+  public RWLockedMap(final Map<K, V> wrapped, final LockStrategy lockStrategy) {
+    if (Objects.requireNonNull(lockStrategy) == LockStrategy.STAMPED) {
+      this.stampedLock = new StampedLock();
+      this.rwLock = stampedLock.asReadWriteLock();
+    } else {
+      this.stampedLock = null;
+      this.rwLock = new ReentrantReadWriteLock();
+    }
     this.wrapped = wrapped;
+    listenToEvictions(wrapped);
+  }
+
+  /**
+   * Registers a listener that is notified about the commits.
+   *
+   * @param commitListener
+   *          The listener.
+   */
+  public synchronized void addCommitListener(final CommitListener<K, V> commitListener) {
+    CommitListener<K, V>[] listeners = Arrays.copyOf(commitListeners, commitListeners.length + 1);
+    listeners[listeners.length - 1] = commitListener;
+    commitListeners = listeners;
+  }
+
+  /**
+   * Registers an index and fills it with the committed entries within the write lock.
+   *
+   * @param index
+   *          The empty index.
+   */
+  public void addIndex(final CommittedIndex<K, V> index) {
+    doInWriteLock(() -> {
+      addIndexLocked(index);
+      return null;
+    });
+  }
+
+  private void addIndexLocked(final CommittedIndex<K, V> index) {
+    expireEntriesLocked();
+    publishLocked();
+    for (Entry<K, V> entry : wrapped.entrySet()) {
+      index.add(entry.getKey(), entry.getValue());
+    }
+    CommittedIndex<K, V>[] tables = Arrays.copyOf(indexes, indexes.length + 1);
+    tables[tables.length - 1] = index;
+    indexes = tables;
+  }
+
+  /**
+   * Registers a listener and passes the current committed state to it as a {@link ChangeRecord}
+   * that clears the map and puts all entries. The state is copied and passed to
+   * {@link CommitListener#committed(ChangeRecord)} while the write lock is held, so the listener
+   * gets every later commit after the snapshot.
+   *
+   * @param commitListener
+   *          The listener.
+   */
+  public void addCommitListenerWithSnapshot(final CommitListener<K, V> commitListener) {
+    doInWriteLock(() -> {
+      expireEntriesLocked();
+      publishLocked();
+      ChangeRecord<K, V> snapshot = new ChangeRecord<>(commitSequence,
+          System.currentTimeMillis(), true, new HashSet<>(), new HashMap<>(wrapped));
+      addCommitListener(commitListener);
+      commitListener.committed(snapshot);
+      return null;
+    });
+    commitListener.afterCommit();
+  }
+
+  /**
+   * Applies the changes of a transaction to the wrapped map. The write lock must be held.
+   */
+  protected void applyLocked(final boolean cleared, final Set<K> removes, final Map<K, V> puts,
+      final Map<K, Long> timeToLives) {
+    if (cleared) {
+      clearLocked();
+    } else {
+      for (K key : removes) {
+        removeLocked(key);
+      }
+    }
+
+    putAllLocked(puts);
+
+    if (timeToLives != null) {
+      long now = ticker.getAsLong();
+      for (Entry<K, Long> entry : timeToLives.entrySet()) {
+        getOrCreateTimerWheel(now).schedule(entry.getKey(), now + entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Checks whether the committed store can be replaced by a store of the default type if no
+   * factory is set.
+   */
+  protected void checkDefaultStore(final Class<?> defaultStoreType) {
+    Class<?> storeType = wrapped.getClass();
+    if (storeType != defaultStoreType) {
+      throw new IllegalStateException("The store of type " + storeType.getName()
+          + " cannot be replaced without a clear store factory");
+    }
   }
 
   @Override
   public void clear() {
-    doInLock(rwLock.writeLock(), () -> wrapped.clear());
+    Supplier<? extends Map<K, V>> storeFactory = clearStoreFactory;
+    doReserved(true, Collections.emptySet(), () -> {
+      if (storeFactory != null) {
+        commitBySwap(storeFactory.get(), Collections.emptyMap(), null);
+        return null;
+      }
+      return doInWriteLock(() -> {
+        clearLocked();
+        publishLocked();
+        return null;
+      });
+    }, null);
+  }
+
+  /**
+   * Clears the wrapped map. The write lock must be held.
+   */
+  protected void clearLocked() {
+    timerWheel = null;
+    wrapped.clear();
+    for (CommittedIndex<K, V> index : indexes) {
+      index.clear();
+    }
+    modified = true;
+    if (pendingChange != null) {
+      pendingChange.clear();
+    }
+  }
+
+  /**
+   * Applies the changes of a transaction within one write lock and notifies the listeners.
+   *
+   * @param cleared
+   *          Whether the map should be cleared before the puts are applied.
+   * @param removes
+   *          The keys that should be removed. Ignored if the map is cleared.
+   * @param puts
+   *          The entries that should be put.
+   * @param timeToLives
+   *          The time-to-live of the puts that expire in nanoseconds or <code>null</code>.
+   */
+  public void commit(final boolean cleared, final Set<K> removes, final Map<K, V> puts,
+      final Map<K, Long> timeToLives) {
+    commit(cleared, removes, puts, timeToLives, null);
+  }
+
+  /**
+   * Applies the changes of a transaction within one write lock and runs an action before the lock
+   * is released, so the changes of several maps can be applied while all of their write locks are
+   * held. If there is an action, the store is cleared in place even if there is a store factory
+   * for clearing.
+   *
+   * @param cleared
+   *          Whether the map should be cleared before the puts are applied.
+   * @param removes
+   *          The keys that should be removed. Ignored if the map is cleared.
+   * @param puts
+   *          The entries that should be put.
+   * @param timeToLives
+   *          The time-to-live of the puts that expire in nanoseconds or <code>null</code>.
+   * @param whileLocked
+   *          The action that runs after the changes are applied or <code>null</code>.
+   */
+  public void commit(final boolean cleared, final Set<K> removes, final Map<K, V> puts,
+      final Map<K, Long> timeToLives, final Runnable whileLocked) {
+    Supplier<? extends Map<K, V>> storeFactory = clearStoreFactory;
+    if (cleared && storeFactory != null && whileLocked == null) {
+      commitBySwap(storeFactory.get(), puts, timeToLives);
+      return;
+    }
+    doInWriteLock(() -> {
+      expireEntriesLocked();
+      applyLocked(cleared, removes, puts, timeToLives);
+      publishLocked();
+      if (whileLocked != null) {
+        whileLocked.run();
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Replaces the committed store with a new one that contains only the puts. The new store is
+   * populated before the write lock is acquired. See {@link #swapStore(Map, Map, Map)}.
+   */
+  protected void commitBySwap(final Map<K, V> newStore, final Map<K, V> puts,
+      final Map<K, Long> timeToLives) {
+    if (!newStore.isEmpty()) {
+      throw new IllegalStateException("The store factory must create empty maps");
+    }
+    newStore.putAll(puts);
+    swapStore(newStore, puts, timeToLives);
+  }
+
+  @Override
+  public V compute(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(remappingFunction);
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = wrapped.get(key);
+      V newValue = remappingFunction.apply(key, oldValue);
+      storeComputedLocked(key, oldValue, newValue);
+      publishLocked();
+      return newValue;
+    });
+  }
+
+  @Override
+  public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+    Objects.requireNonNull(mappingFunction);
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V value = wrapped.get(key);
+      if (value == null) {
+        value = mappingFunction.apply(key);
+        if (value != null) {
+          putLocked(key, value);
+        }
+      }
+      publishLocked();
+      return value;
+    });
+  }
+
+  @Override
+  public V computeIfPresent(final K key,
+      final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(remappingFunction);
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = wrapped.get(key);
+      V newValue = null;
+      if (oldValue != null) {
+        newValue = remappingFunction.apply(key, oldValue);
+        storeComputedLocked(key, oldValue, newValue);
+      }
+      publishLocked();
+      return newValue;
+    });
   }
 
   @Override
   public boolean containsKey(final Object key) {
-    return doInLock(rwLock.readLock(), (Supplier<Boolean>) () -> wrapped.containsKey(key));
+    if (stampedLock != null) {
+      long stamp = stampedLock.tryOptimisticRead();
+      try {
+        boolean expired = isExpired(key);
+        boolean contained = wrapped.containsKey(key);
+        if (stampedLock.validate(stamp)) {
+          if (!expired) {
+            return contained;
+          }
+          tryExpireEntries();
+          return false;
+        }
+      } catch (RuntimeException e) {
+        rethrowIfValid(stamp, e);
+      }
+    }
+    Lock readLock = rwLock.readLock();
+    readLock.lock();
+    try {
+      if (!isExpired(key)) {
+        return wrapped.containsKey(key);
+      }
+    } finally {
+      readLock.unlock();
+    }
+    tryExpireEntries();
+    return false;
   }
 
   @Override
   public boolean containsValue(final Object value) {
-    return doInLock(rwLock.readLock(), (Supplier<Boolean>) () -> wrapped.containsValue(value));
+    ValueCountIndex<K, V> counts = valueCountIndex;
+    return doInLock(rwLock.readLock(), (Supplier<Boolean>) () -> {
+      if (counts != null && value != null && counts.count(value) == 0) {
+        return false;
+      }
+      if (timerWheel != null) {
+        return containsLiveValueLocked(value, Collections.emptySet());
+      }
+      return (counts != null && value != null) || wrapped.containsValue(value);
+    });
+  }
+
+  /**
+   * Checks whether an entry that is not expired has a value, not counting the entries of specific
+   * keys. The read or the write lock must be held.
+   */
+  private boolean containsLiveValueLocked(final Object value, final Collection<?> excludedKeys) {
+    for (Entry<K, V> entry : wrapped.entrySet()) {
+      K key = entry.getKey();
+      if (Objects.equals(entry.getValue(), value) && !isExpired(key)
+          && !excludedKeys.contains(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a committed entry has a value, not counting the entries of specific keys. The
+   * value count index must be enabled. The cost is proportional to the number of excluded keys.
+   *
+   * @param value
+   *          The value, not <code>null</code>.
+   * @param excludedKeys
+   *          The distinct keys whose entries should not be counted.
+   * @return Whether any of the other entries has the value.
+   */
+  public boolean containsValue(final Object value, final Collection<?> excludedKeys) {
+    ValueCountIndex<K, V> counts = Objects.requireNonNull(valueCountIndex);
+    return doInLock(rwLock.readLock(), (Supplier<Boolean>) () -> {
+      int count = counts.count(value);
+      for (Iterator<?> iterator = excludedKeys.iterator(); count > 0 && iterator.hasNext();) {
+        if (value.equals(wrapped.get(iterator.next()))) {
+          count--;
+        }
+      }
+      if (count > 0 && timerWheel != null) {
+        return containsLiveValueLocked(value, excludedKeys);
+      }
+      return count > 0;
+    });
+  }
+
+  /**
+   * Copies the committed entries that are not expired within one read lock acquisition.
+   *
+   * @return The copy that can be modified by the caller.
+   */
+  public Map<K, V> copyEntries() {
+    return doInLock(rwLock.readLock(), () -> {
+      if (timerWheel != null) {
+        return liveEntriesLocked();
+      }
+      return new HashMap<>(wrapped);
+    });
+  }
+
+  /**
+   * Creates an empty store that can replace the committed store: a store of the factory for
+   * clearing if there is one, otherwise a {@link HashMap}.
+   *
+   * @return The empty store.
+   * @throws IllegalStateException
+   *           if there is no factory and the committed store is not a {@link HashMap}, as the
+   *           replacement would lose the behavior of the store, like its bound.
+   */
+  public Map<K, V> createEmptyStore() {
+    Supplier<? extends Map<K, V>> storeFactory = clearStoreFactory;
+    if (storeFactory != null) {
+      return storeFactory.get();
+    }
+    checkDefaultStore(HashMap.class);
+    return new HashMap<>();
+  }
+
+  private CommittedIndex<K, V>[] createIndexContent(final CommittedIndex<K, V>[] tables,
+      final Map<K, V> store) {
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    CommittedIndex<K, V>[] result = new CommittedIndex[tables.length];
+    for (int i = 0; i < tables.length; i++) {
+      result[i] = tables[i].createEmptyCopy();
+      for (Entry<K, V> entry : store.entrySet()) {
+        result[i].add(entry.getKey(), entry.getValue());
+      }
+    }
+    return result;
   }
 
   /**
@@ -92,54 +614,868 @@ public class RWLockedMap<K, V> implements Map<K, V> {
     }
   }
 
+  /**
+   * Does a modifying action that is not part of a transaction within the scope of the write lock
+   * like {@link #doInWriteLock(Supplier)}. See {@link #doReserved(boolean, Collection, Supplier)}.
+   */
+  private <R> R doInReservedWriteLock(final Collection<?> keys, final Supplier<R> action) {
+    return doReserved(false, keys, () -> doInWriteLock(action), null);
+  }
+
+  /**
+   * Does a write that is not part of a transaction while the written keys are reserved for the
+   * time of the write, the same way as the commits of the transactions that are not prepared.
+   *
+   * @param wholeMap
+   *          Whether the write changes the whole map.
+   * @param keys
+   *          The written keys if the write does not change the whole map.
+   * @param action
+   *          The write.
+   * @param skipped
+   *          Supplies the result if the write is skipped because a prepared transaction reserved
+   *          any of the keys or <code>null</code> if the write should fail in that case.
+   * @throws IllegalStateException
+   *           if any of the keys is reserved by a prepared transaction and the write cannot be
+   *           skipped.
+   */
+  private <R> R doReserved(final boolean wholeMap, final Collection<?> keys,
+      final Supplier<R> action, final Supplier<R> skipped) {
+    if (keyReservations.enterUnreservedCommit()) {
+      try {
+        return action.get();
+      } finally {
+        keyReservations.exitUnreservedCommit();
+      }
+    }
+    try {
+      keyReservations.reserveForCommit(this, wholeMap, keys);
+    } catch (IllegalStateException e) {
+      if (skipped == null) {
+        throw e;
+      }
+      return skipped.get();
+    }
+    try {
+      return action.get();
+    } finally {
+      keyReservations.releaseForCommit(wholeMap, keys);
+    }
+  }
+
+  /**
+   * Does a modifying action within the scope of the write lock. The commit listeners are called
+   * before acquiring and after releasing the lock. If there is any listener, the changes that the
+   * action does via the <code>*Locked</code> functions are collected so that the action can
+   * publish them by calling {@link #publishLocked()}.
+   *
+   * @param action
+   *          The action that should run.
+   */
+  protected <R> R doInWriteLock(final Supplier<R> action) {
+    return doInWriteLock(action, null);
+  }
+
+  /**
+   * Does a modifying action within the scope of the write lock like
+   * {@link #doInWriteLock(Supplier)}. If the result of a skip is supplied, the action is a
+   * maintenance write that is skipped instead of waiting for a listener in
+   * {@link CommitListener#beforeCommit()}.
+   *
+   * @param action
+   *          The action that should run.
+   * @param skipped
+   *          Supplies the result if the action is skipped or <code>null</code> if the action
+   *          should wait for the listeners.
+   */
+  private <R> R doInWriteLock(final Supplier<R> action, final Supplier<R> skipped) {
+    CommitListener<K, V>[] listenersBeforeLock = commitListeners;
+    CommitListener<K, V>[] listeners = listenersBeforeLock;
+    try {
+      for (CommitListener<K, V> listener : listenersBeforeLock) {
+        if (skipped == null) {
+          listener.beforeCommit();
+        } else if (!listener.tryBeforeCommit()) {
+          return skipped.get();
+        }
+      }
+
+      Lock writeLock = rwLock.writeLock();
+      writeLock.lock();
+      try {
+        // Listeners might have been registered while this thread was waiting for the lock
+        listeners = commitListeners;
+        modified = false;
+        pendingChange = (listeners.length > 0) ? new PendingChange<>() : null;
+        return action.get();
+      } finally {
+        pendingChange = null;
+        writeLock.unlock();
+      }
+    } finally {
+      for (CommitListener<K, V> listener : listeners) {
+        listener.afterCommit();
+      }
+      if (listeners != listenersBeforeLock) {
+        for (CommitListener<K, V> listener : listenersBeforeLock) {
+          listener.afterCommit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts counting the committed entries per value, so that {@link #containsValue(Object)} does
+   * not need to iterate the entries. The counts are calculated within the write lock.
+   */
+  public void enableValueCountIndex() {
+    doInWriteLock(() -> {
+      if (valueCountIndex == null) {
+        ValueCountIndex<K, V> counts = new ValueCountIndex<>();
+        addIndexLocked(counts);
+        valueCountIndex = counts;
+      }
+      return null;
+    });
+  }
+
   @Override
   public Set<Entry<K, V>> entrySet() {
-    return doInLock(rwLock.readLock(), () -> wrapped.entrySet());
+    return doInLock(rwLock.readLock(), () -> {
+      if (timerWheel != null) {
+        return Collections.unmodifiableMap(liveEntriesLocked()).entrySet();
+      }
+      return Collections.unmodifiableSet(wrapped.entrySet());
+    });
+  }
+
+  /**
+   * Records an entry that the store evicted. The write lock must be held.
+   */
+  private void evictedLocked(final K key, final V value) {
+    updateIndexesLocked(key, value, null);
+    TimerWheel<K> wheel = timerWheel;
+    if (wheel != null) {
+      wheel.deschedule(key);
+    }
+    modified = true;
+    if (pendingChange != null) {
+      pendingChange.remove(key);
+    }
+  }
+
+  /**
+   * Removes the entries whose time-to-live passed from the wrapped map.
+   */
+  public void expireEntries() {
+    doInWriteLock(() -> {
+      expireEntriesLocked();
+      publishLocked();
+      return null;
+    });
+  }
+
+  /**
+   * Advances the timer wheel and removes the expired entries, including the ones of the current
+   * tick, so the writes never see an expired entry. The write lock must be held.
+   */
+  protected void expireEntriesLocked() {
+    TimerWheel<K> wheel = timerWheel;
+    if (wheel != null) {
+      wheel.advance(ticker.getAsLong(), this::expireLocked);
+      wheel.expireCurrentTick(this::expireLocked);
+      if (wheel.isEmpty()) {
+        timerWheel = null;
+      }
+    }
+  }
+
+  /**
+   * Removes an entry whose key is already descheduled from the timer wheel. The write lock must be
+   * held.
+   */
+  private void expireLocked(final K key) {
+    updateIndexesLocked(key, wrapped.remove(key), null);
+    modified = true;
+    if (pendingChange != null) {
+      pendingChange.remove(key);
+    }
   }
 
   @Override
   public V get(final Object key) {
-    return doInLock(rwLock.readLock(), () -> wrapped.get(key));
+    if (stampedLock != null) {
+      long stamp = stampedLock.tryOptimisticRead();
+      try {
+        boolean expired = isExpired(key);
+        V value = wrapped.get(key);
+        if (stampedLock.validate(stamp)) {
+          if (!expired) {
+            return value;
+          }
+          tryExpireEntries();
+          return null;
+        }
+      } catch (RuntimeException e) {
+        rethrowIfValid(stamp, e);
+      }
+    }
+    Lock readLock = rwLock.readLock();
+    readLock.lock();
+    try {
+      if (!isExpired(key)) {
+        return wrapped.get(key);
+      }
+    } finally {
+      readLock.unlock();
+    }
+    tryExpireEntries();
+    return null;
+  }
+
+  /**
+   * Returns the committed values of several keys within one read lock acquisition.
+   *
+   * @param keys
+   *          The keys.
+   * @return The keys that have a committed value and their values.
+   */
+  public Map<K, V> getAll(final Collection<? extends K> keys) {
+    Map<K, V> result = new HashMap<>();
+    boolean expiredFound;
+    Lock readLock = rwLock.readLock();
+    readLock.lock();
+    try {
+      expiredFound = getAllLocked(keys, result);
+    } finally {
+      readLock.unlock();
+    }
+    if (expiredFound) {
+      tryExpireEntries();
+    }
+    return result;
+  }
+
+  /**
+   * Puts the committed values of several keys into a map. The read lock must be held, so the
+   * values of several maps can be read while all of their read locks are held.
+   *
+   * @param keys
+   *          The keys.
+   * @param result
+   *          The map that the keys that have a committed value and their values are put into.
+   * @return Whether any of the keys had an expired entry.
+   */
+  public boolean getAllLocked(final Collection<? extends K> keys, final Map<K, V> result) {
+    boolean expiredFound = false;
+    for (K key : keys) {
+      if (isExpired(key)) {
+        expiredFound = true;
+      } else {
+        V value = wrapped.get(key);
+        if (value != null) {
+          result.put(key, value);
+        }
+      }
+    }
+    return expiredFound;
+  }
+
+  /**
+   * Returns the committed entries whose values have a specific index key. The candidates of the
+   * index are verified against the current values within the same read lock.
+   *
+   * @param indexTable
+   *          The table of a registered index.
+   * @param indexKey
+   *          The index key.
+   * @return The matching entries.
+   * @throws IllegalArgumentException
+   *           if the index is not registered.
+   */
+  public Map<K, V> getByIndex(final IndexTable<K, V, ?> indexTable, final Object indexKey) {
+    Lock readLock = rwLock.readLock();
+    readLock.lock();
+    try {
+      if (!Arrays.asList(indexes).contains(indexTable)) {
+        throw new IllegalArgumentException("Index is not registered");
+      }
+      Map<K, V> result = new HashMap<>();
+      for (K key : indexTable.getKeys(indexKey)) {
+        V value = wrapped.get(key);
+        if (value != null && !isExpired(key)
+            && Objects.equals(indexTable.indexKeyOf(value), indexKey)) {
+          result.put(key, value);
+        }
+      }
+      return result;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the sequence number of the last commit that changed the map.
+   */
+  public long getCommitSequence() {
+    return doInLock(rwLock.readLock(), (Supplier<Long>) () -> commitSequence);
+  }
+
+  public KeyReservations getKeyReservations() {
+    return keyReservations;
+  }
+
+  private TimerWheel<K> getOrCreateTimerWheel(final long now) {
+    TimerWheel<K> wheel = timerWheel;
+    if (wheel == null) {
+      wheel = new TimerWheel<>(now);
+      timerWheel = wheel;
+    }
+    return wheel;
   }
 
   public ReadWriteLock getReadWriteLock() {
     return rwLock;
   }
 
+  /**
+   * Installs loaded values for the keys that are not in the wrapped map yet within one write lock.
+   * This is a maintenance write of the readers, so it does not wait for the commit listeners: if
+   * any of them could accept the change only by blocking, like a full buffer with backpressure,
+   * nothing is installed. Nothing is installed either if a prepared transaction reserved any of
+   * the keys.
+   *
+   * @param m
+   *          The loaded entries.
+   * @return The values that are assigned to the keys of the passed map after the call or the
+   *         passed entries if they were not installed.
+   */
+  public Map<K, V> installLoaded(final Map<? extends K, ? extends V> m) {
+    Supplier<Map<K, V>> skipped = () -> new HashMap<>(m);
+    return doReserved(false, m.keySet(), () -> doInWriteLock(() -> {
+      expireEntriesLocked();
+      Map<K, V> result = new HashMap<>();
+      for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+        K key = entry.getKey();
+        V value = wrapped.get(key);
+        if (value == null) {
+          value = entry.getValue();
+          putLocked(key, value);
+        }
+        result.put(key, value);
+      }
+      publishLocked();
+      return result;
+    }, skipped), skipped);
+  }
+
   @Override
   public boolean isEmpty() {
-    return doInLock(rwLock.readLock(), (Supplier<Boolean>) () -> wrapped.isEmpty());
+    return size() == 0;
+  }
+
+  /**
+   * Checks whether the time-to-live of a key passed. The read or the write lock must be held.
+   */
+  protected boolean isExpired(final Object key) {
+    TimerWheel<K> wheel = timerWheel;
+    return wheel != null && wheel.isExpired(key, ticker.getAsLong());
+  }
+
+  public boolean isValueCountIndexEnabled() {
+    return valueCountIndex != null;
   }
 
   @Override
   public Set<K> keySet() {
-    return doInLock(rwLock.readLock(), () -> wrapped.keySet());
+    return doInLock(rwLock.readLock(), () -> {
+      if (timerWheel != null) {
+        return Collections.unmodifiableSet(liveEntriesLocked().keySet());
+      }
+      return Collections.unmodifiableSet(wrapped.keySet());
+    });
+  }
+
+  /**
+   * Handles the entries that are evicted by a {@link BoundedMap} that is used as the store like
+   * removals: the indexes and the timer wheel are updated and the evictions are published to the
+   * commit listeners. Called within the write lock.
+   */
+  private void listenToEvictions(final Map<K, V> store) {
+    if (store instanceof BoundedMap) {
+      ((BoundedMap<K, V>) store).setEvictionListener(this::evictedLocked);
+    }
+  }
+
+  /**
+   * Copies the entries that are not expired in the order of the wrapped map. The read or the write
+   * lock must be held.
+   */
+  private Map<K, V> liveEntriesLocked() {
+    Map<K, V> entries = new LinkedHashMap<>(wrapped);
+    entries.keySet().removeIf(this::isExpired);
+    return entries;
+  }
+
+  @Override
+  public V merge(final K key, final V value,
+      final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(value);
+    Objects.requireNonNull(remappingFunction);
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = wrapped.get(key);
+      V newValue = (oldValue == null) ? value : remappingFunction.apply(oldValue, value);
+      storeComputedLocked(key, oldValue, newValue);
+      publishLocked();
+      return newValue;
+    });
+  }
+
+  /**
+   * Increments the commit sequence and notifies the listeners if the wrapped map was modified
+   * within the current write lock. The write lock must be held.
+   */
+  protected void publishLocked() {
+    if (!modified) {
+      return;
+    }
+    modified = false;
+    commitSequence++;
+    PendingChange<K, V> change = pendingChange;
+    if (change != null) {
+      pendingChange = new PendingChange<>();
+      ChangeRecord<K, V> changeRecord = new ChangeRecord<>(commitSequence,
+          System.currentTimeMillis(), change.cleared, change.removes, change.puts);
+      for (CommitListener<K, V> listener : commitListeners) {
+        listener.committed(changeRecord);
+      }
+    }
   }
 
   @Override
   public V put(final K key, final V value) {
-    return doInLock(rwLock.writeLock(), () -> wrapped.put(key, value));
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = putLocked(key, value);
+      publishLocked();
+      return oldValue;
+    });
+  }
+
+  /**
+   * Puts an entry that is removed automatically when its time-to-live passes.
+   *
+   * @param key
+   *          The key.
+   * @param value
+   *          The value.
+   * @param timeToLive
+   *          The time-to-live in nanoseconds.
+   * @return The previous value of the key.
+   */
+  public V put(final K key, final V value, final long timeToLive) {
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = putLocked(key, value);
+      long now = ticker.getAsLong();
+      getOrCreateTimerWheel(now).schedule(key, now + timeToLive);
+      publishLocked();
+      return oldValue;
+    });
   }
 
   @Override
   public void putAll(final Map<? extends K, ? extends V> m) {
-    doInLock(rwLock.writeLock(), () -> wrapped.putAll(m));
+    doInReservedWriteLock(m.keySet(), () -> {
+      expireEntriesLocked();
+      putAllLocked(m);
+      publishLocked();
+      return null;
+    });
+  }
+
+  /**
+   * Puts the entries of a map into the wrapped map. The write lock must be held.
+   */
+  protected void putAllLocked(final Map<? extends K, ? extends V> m) {
+    if (m.isEmpty()) {
+      return;
+    }
+    TimerWheel<K> wheel = timerWheel;
+    if (wheel != null) {
+      for (K key : m.keySet()) {
+        wheel.deschedule(key);
+      }
+    }
+    modified = true;
+    // Recorded before the store is modified, so the evictions of the store are recorded after them
+    if (pendingChange != null) {
+      for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+        pendingChange.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (indexes.length == 0) {
+      wrapped.putAll(m);
+    } else {
+      for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+        putIndexedLocked(entry.getKey(), entry.getValue());
+      }
+    }
+  }
 
+  @Override
+  public V putIfAbsent(final K key, final V value) {
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = wrapped.get(key);
+      if (oldValue == null) {
+        putLocked(key, value);
+      }
+      publishLocked();
+      return oldValue;
+    });
+  }
+
+  /**
+   * Puts an entry into the wrapped map and updates the indexes. The indexes are updated before
+   * the wrapped map, so if the store evicts the entry right away, the eviction removes it from the
+   * indexes again. The write lock must be held.
+   */
+  private V putIndexedLocked(final K key, final V value) {
+    updateIndexesLocked(key, wrapped.get(key), value);
+    return wrapped.put(key, value);
+  }
+
+  /**
+   * Puts an entry into the wrapped map and removes its time-to-live. The write lock must be held.
+   */
+  protected V putLocked(final K key, final V value) {
+    TimerWheel<K> wheel = timerWheel;
+    if (wheel != null) {
+      wheel.deschedule(key);
+    }
+    modified = true;
+    if (pendingChange != null) {
+      pendingChange.put(key, value);
+    }
+    if (indexes.length == 0) {
+      return wrapped.put(key, value);
+    }
+    return putIndexedLocked(key, value);
   }
 
   @Override
   public V remove(final Object key) {
-    return doInLock(rwLock.writeLock(), () -> wrapped.remove(key));
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = removeLocked(key);
+      publishLocked();
+      return oldValue;
+    });
   }
 
+  @Override
+  public boolean remove(final Object key, final Object value) {
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V currentValue = wrapped.get(key);
+      boolean removed = currentValue != null && currentValue.equals(value);
+      if (removed) {
+        removeLocked(key);
+      }
+      publishLocked();
+      return removed;
+    });
+  }
+
+  /**
+   * Unregisters an index.
+   *
+   * @param index
+   *          The index.
+   */
+  public void removeIndex(final CommittedIndex<K, V> index) {
+    doInLock(rwLock.writeLock(), () -> {
+      List<CommittedIndex<K, V>> tables = new ArrayList<>(Arrays.asList(indexes));
+      if (tables.remove(index)) {
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        CommittedIndex<K, V>[] newIndexes = tables.toArray(new CommittedIndex[0]);
+        indexes = newIndexes;
+      }
+    });
+  }
+
+  /**
+   * Unregisters a listener.
+   *
+   * @param commitListener
+   *          The listener.
+   */
+  public synchronized void removeCommitListener(final CommitListener<K, V> commitListener) {
+    CommitListener<K, V>[] listeners = commitListeners;
+    for (int i = 0; i < listeners.length; i++) {
+      if (listeners[i] == commitListener) {
+        CommitListener<K, V>[] newListeners = Arrays.copyOf(listeners, listeners.length - 1);
+        System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+        commitListeners = newListeners;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes an entry from the wrapped map. If the key is not in the map, nothing is published.
+   * The write lock must be held.
+   */
+  protected V removeLocked(final Object key) {
+    TimerWheel<K> wheel = timerWheel;
+    if (wheel != null) {
+      wheel.deschedule(key);
+    }
+    boolean contained = wrapped.containsKey(key);
+    if (contained) {
+      modified = true;
+    }
+    if (contained && pendingChange != null) {
+      @SuppressWarnings("unchecked")
+      K typedKey = (K) key;
+      pendingChange.remove(typedKey);
+    }
+    V oldValue = wrapped.remove(key);
+    if (oldValue != null && indexes.length > 0) {
+      @SuppressWarnings("unchecked")
+      K typedKey = (K) key;
+      updateIndexesLocked(typedKey, oldValue, null);
+    }
+    return oldValue;
+  }
+
+  @Override
+  public V replace(final K key, final V value) {
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V oldValue = wrapped.get(key);
+      if (oldValue != null) {
+        putLocked(key, value);
+      }
+      publishLocked();
+      return oldValue;
+    });
+  }
+
+  @Override
+  public boolean replace(final K key, final V oldValue, final V newValue) {
+    return doInReservedWriteLock(Collections.singleton(key), () -> {
+      expireEntriesLocked();
+      V currentValue = wrapped.get(key);
+      boolean replaced = currentValue != null && currentValue.equals(oldValue);
+      if (replaced) {
+        putLocked(key, newValue);
+      }
+      publishLocked();
+      return replaced;
+    });
+  }
+
+  private void replaceIndexContentLocked(final CommittedIndex<K, V> index,
+      final CommittedIndex<K, V>[] tablesBeforeLock, final CommittedIndex<K, V>[] newContents,
+      final Map<K, V> store) {
+    for (int i = 0; i < tablesBeforeLock.length; i++) {
+      if (tablesBeforeLock[i] == index) {
+        index.replaceContent(newContents[i]);
+        return;
+      }
+    }
+    // The index was registered while the new store was populated
+    index.clear();
+    for (Entry<K, V> entry : store.entrySet()) {
+      index.add(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Replaces the committed store with a store that is populated by the caller, e.g. from a
+   * snapshot. The indexes are built before the write lock is acquired and the store is installed
+   * in one step. The entries of the new store do not expire.
+   *
+   * @param newStore
+   *          The populated store. It must not be modified by the caller afterwards.
+   */
+  public void replaceStore(final Map<K, V> newStore) {
+    Objects.requireNonNull(newStore);
+    doReserved(true, Collections.emptySet(), () -> {
+      swapStore(newStore, newStore, null);
+      return null;
+    }, null);
+  }
+
+  /**
+   * Rethrows an exception of an optimistic read if no write interleaved with the read, so the
+   * exception was not caused by reading an inconsistent state. Otherwise the read is retried under
+   * the read lock.
+   */
+  private void rethrowIfValid(final long stamp, final RuntimeException e) {
+    if (stampedLock.validate(stamp)) {
+      throw e;
+    }
+  }
+
+  /**
+   * Sets the factory that creates a new empty store each time the map is cleared or a
+   * transaction that cleared the map is committed. In that case the new store is populated
+   * without holding the write lock and it replaces the previous store in one step, instead of
+   * clearing and refilling the previous store while the readers are blocked. The views returned
+   * by {@link #keySet()}, {@link #values()} and {@link #entrySet()} before the replacement keep
+   * showing the previous store.
+   *
+   * @param clearStoreFactory
+   *          The factory that creates empty maps or <code>null</code> to clear the store in place.
+   */
+  public void setClearStoreFactory(final Supplier<? extends Map<K, V>> clearStoreFactory) {
+    this.clearStoreFactory = clearStoreFactory;
+  }
+
+  /**
+   * Sets the source of the current time that the time-to-live of the entries is measured with.
+   * Must be set before any entry with time-to-live is put.
+   *
+   * @param ticker
+   *          Returns the current time in nanoseconds like {@link System#nanoTime()}.
+   */
+  public void setTicker(final LongSupplier ticker) {
+    this.ticker = Objects.requireNonNull(ticker);
+  }
+
+  /**
+   * Returns the number of committed entries. If there are entries with time-to-live, the expired
+   * ones are removed first, like by {@link #tryExpireEntries()}. As counting the expired entries
+   * would need to visit every entry with time-to-live, the size includes the expired entries that
+   * could not be removed because the write lock was held by another thread or because there are
+   * commit listeners; those are removed by the next write.
+   */
   @Override
   public int size() {
-    return doInLock(rwLock.readLock(), (Supplier<Integer>) () -> wrapped.size());
+    if (timerWheel != null) {
+      tryExpireEntries();
+    }
+    return doInLock(rwLock.readLock(), (Supplier<Integer>) wrapped::size);
+  }
+
+  /**
+   * Copies the committed entries within one read lock acquisition. The expired entries are not
+   * copied. Commits wait only for the time of the copy.
+   *
+   * @return A record that clears the map and puts the copied entries, with the sequence number of
+   *         the last commit.
+   */
+  public ChangeRecord<K, V> snapshot() {
+    return doInLock(rwLock.readLock(), () -> {
+      Map<K, V> entries = new HashMap<>(wrapped);
+      if (timerWheel != null) {
+        entries.keySet().removeIf(this::isExpired);
+      }
+      return new ChangeRecord<>(commitSequence, System.currentTimeMillis(), true,
+          new HashSet<>(), entries);
+    });
+  }
+
+  /**
+   * Stores the result of a remapping function: puts the new value or removes the entry if the new
+   * value is <code>null</code>. The write lock must be held.
+   */
+  private void storeComputedLocked(final K key, final V oldValue, final V newValue) {
+    if (newValue != null) {
+      putLocked(key, newValue);
+    } else if (oldValue != null) {
+      removeLocked(key);
+    }
+  }
+
+  /**
+   * Replaces the committed store with a populated one. The content of the indexes and the timer
+   * wheel are built before the write lock is acquired, so the write lock is held only for the time
+   * of swapping the references. The old store is left for the garbage collector.
+   *
+   * @param newStore
+   *          The new store that is already populated.
+   * @param puts
+   *          The entries of the new store that are published to the commit listeners.
+   * @param timeToLives
+   *          The time-to-live of the entries that expire in nanoseconds or <code>null</code>.
+   */
+  protected void swapStore(final Map<K, V> newStore, final Map<K, V> puts,
+      final Map<K, Long> timeToLives) {
+    CommittedIndex<K, V>[] indexesBeforeLock = indexes;
+    CommittedIndex<K, V>[] newIndexes = createIndexContent(indexesBeforeLock, newStore);
+
+    TimerWheel<K> newTimerWheel = null;
+    if (timeToLives != null && !timeToLives.isEmpty()) {
+      long now = ticker.getAsLong();
+      newTimerWheel = new TimerWheel<>(now);
+      for (Entry<K, Long> entry : timeToLives.entrySet()) {
+        newTimerWheel.schedule(entry.getKey(), now + entry.getValue());
+      }
+    }
+    TimerWheel<K> timerWheelToSwap = newTimerWheel;
+
+    Map<K, V> publishedPuts = (commitListeners.length > 0) ? new HashMap<>(puts) : null;
+
+    doInWriteLock(() -> {
+      wrapped = newStore;
+      listenToEvictions(newStore);
+      timerWheel = timerWheelToSwap;
+      for (CommittedIndex<K, V> index : indexes) {
+        replaceIndexContentLocked(index, indexesBeforeLock, newIndexes, newStore);
+      }
+      modified = true;
+      if (pendingChange != null) {
+        pendingChange.replace((publishedPuts != null) ? publishedPuts : new HashMap<>(puts));
+      }
+      publishLocked();
+      return null;
+    });
+  }
+
+  /**
+   * Removes the expired entries if the write lock is not held by anyone else. Called by the readers
+   * that found an expired entry so that the memory is freed without a sweeper thread. If there are
+   * commit listeners, the expired entries are left to the next write so that the listeners are
+   * called the same way as for other writes.
+   */
+  protected void tryExpireEntries() {
+    if (commitListeners.length > 0) {
+      return;
+    }
+    Lock writeLock = rwLock.writeLock();
+    if (writeLock.tryLock()) {
+      try {
+        modified = false;
+        expireEntriesLocked();
+        publishLocked();
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Updates the indexes after the value of a key changed. The write lock must be held.
+   */
+  protected void updateIndexesLocked(final K key, final V oldValue, final V newValue) {
+    for (CommittedIndex<K, V> index : indexes) {
+      index.update(key, oldValue, newValue);
+    }
   }
 
   @Override
   public Collection<V> values() {
-    return doInLock(rwLock.readLock(), () -> wrapped.values());
+    return doInLock(rwLock.readLock(), () -> {
+      if (timerWheel != null) {
+        return Collections.unmodifiableCollection(liveEntriesLocked().values());
+      }
+      return Collections.unmodifiableCollection(wrapped.values());
+    });
   }
 
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+import org.everit.transaction.map.readcommited.LockStrategy;
+
+/**
+ * A {@link RWLockedMap} whose committed store is a {@link ConcurrentNavigableMap}. The store can
+ * be traversed in key order without holding the read lock, as concurrent navigable maps support
+ * weakly consistent traversal while they are modified.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+public class RWLockedNavigableMap<K, V> extends RWLockedMap<K, V> {
+
+  protected final Comparator<? super K> comparator;
+
+  /**
+   * An empty map that is ordered in the same way as the store.
+   */
+  protected final NavigableMap<K, V> emptyMap;
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The committed store.
+   */
+  public RWLockedNavigableMap(final ConcurrentNavigableMap<K, V> wrapped) {
+    this(wrapped, LockStrategy.READ_WRITE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The committed store.
+   * @param lockStrategy
+   *          The lock that protects the committed store.
+   */
+  public RWLockedNavigableMap(final ConcurrentNavigableMap<K, V> wrapped,
+      final LockStrategy lockStrategy) {
+    super(wrapped, lockStrategy);
+    this.comparator = wrapped.comparator();
+    this.emptyMap = Collections.unmodifiableNavigableMap(new TreeMap<>(comparator));
+  }
+
+  public Comparator<? super K> comparator() {
+    return comparator;
+  }
+
+  @Override
+  public Map<K, V> createEmptyStore() {
+    Supplier<? extends Map<K, V>> storeFactory = clearStoreFactory;
+    if (storeFactory != null) {
+      return storeFactory.get();
+    }
+    checkDefaultStore(ConcurrentSkipListMap.class);
+    return new ConcurrentSkipListMap<>(comparator);
+  }
+
+  public NavigableMap<K, V> getEmptyMap() {
+    return emptyMap;
+  }
+
+  /**
+   * Returns the committed store for ordered reads. If there is any entry with time-to-live, a view
+   * is returned that skips the expired entries; their expiration is checked within the read lock.
+   * The returned map must not be modified.
+   *
+   * @return The committed store.
+   */
+  public NavigableMap<K, V> getNavigableStore() {
+    NavigableMap<K, V> store = (NavigableMap<K, V>) wrapped;
+    if (timerWheel == null) {
+      return store;
+    }
+    return new MergedNavigableMap<>(() -> store, () -> emptyMap,
+        (key) -> doInLock(rwLock.readLock(), (Supplier<Boolean>) () -> isExpired(key)));
+  }
+
+  @Override
+  protected void swapStore(final Map<K, V> newStore, final Map<K, V> puts,
+      final Map<K, Long> timeToLives) {
+    if (!(newStore instanceof ConcurrentNavigableMap)) {
+      throw new IllegalStateException(
+          "The store of a navigable map must be a concurrent navigable map");
+    }
+    super.swapStore(newStore, puts, timeToLives);
+  }
+}
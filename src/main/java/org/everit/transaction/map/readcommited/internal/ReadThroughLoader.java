@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.transaction.map.readcommited.CacheLoader;
+
+/**
+ * Calls a {@link CacheLoader} on the misses of the committed state and installs the loaded values
+ * into the {@link RWLockedMap}. Concurrent loads of the same key are deduplicated: only one thread
+ * calls the loader, the others wait for its result.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class ReadThroughLoader<K, V> {
+
+  protected final CacheLoader<K, V> cacheLoader;
+
+  protected final Map<Object, CompletableFuture<V>> loadsInProgress = new ConcurrentHashMap<>();
+
+  protected final RWLockedMap<K, V> rwLockedMap;
+
+  public ReadThroughLoader(final CacheLoader<K, V> cacheLoader,
+      final RWLockedMap<K, V> rwLockedMap) {
+    this.cacheLoader = cacheLoader;
+    this.rwLockedMap = rwLockedMap;
+  }
+
+  /**
+   * Waits for the result of a load that is done by another thread.
+   */
+  protected V await(final CompletableFuture<V> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Loads the value of a key that was not found in the committed state.
+   *
+   * @param key
+   *          The key.
+   * @return The value that is in the committed state after the load or <code>null</code> if the
+   *         loader did not find the key.
+   */
+  public V load(final Object key) {
+    if (key == null) {
+      return null;
+    }
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> loadInProgress = loadsInProgress.putIfAbsent(key, future);
+    if (loadInProgress != null) {
+      return await(loadInProgress);
+    }
+
+    try {
+      // Another thread might have finished loading the key since our miss.
+      V value = rwLockedMap.get(key);
+      if (value == null) {
+        @SuppressWarnings("unchecked")
+        K typedKey = (K) key;
+        value = cacheLoader.load(typedKey);
+        if (value != null) {
+          value = rwLockedMap.installLoaded(Collections.singletonMap(typedKey, value))
+              .get(typedKey);
+        }
+      }
+      future.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      loadsInProgress.remove(key, future);
+    }
+  }
+
+  /**
+   * Loads the values of several keys that were not found in the committed state with one
+   * {@link CacheLoader#loadAll(Collection)} call. Keys that are loaded by other threads in the
+   * meantime are not loaded again.
+   *
+   * @param keys
+   *          The keys.
+   * @return The values of the keys that are in the committed state after the load.
+   */
+  public Map<K, V> loadAll(final Collection<? extends K> keys) {
+    Map<K, CompletableFuture<V>> ownLoads = new LinkedHashMap<>();
+    Map<K, CompletableFuture<V>> otherLoads = new HashMap<>();
+    for (K key : keys) {
+      if (key != null && !ownLoads.containsKey(key) && !otherLoads.containsKey(key)) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> loadInProgress = loadsInProgress.putIfAbsent(key, future);
+        if (loadInProgress != null) {
+          otherLoads.put(key, loadInProgress);
+        } else {
+          ownLoads.put(key, future);
+        }
+      }
+    }
+
+    Map<K, V> result = new HashMap<>();
+    if (!ownLoads.isEmpty()) {
+      try {
+        Map<K, V> loaded = cacheLoader.loadAll(ownLoads.keySet());
+        Map<K, V> installed = rwLockedMap.installLoaded(loaded);
+        for (Map.Entry<K, CompletableFuture<V>> ownLoad : ownLoads.entrySet()) {
+          K key = ownLoad.getKey();
+          V value = installed.get(key);
+          if (value == null) {
+            // Might have been loaded by a single-key load that finished after our miss
+            value = rwLockedMap.get(key);
+          }
+          if (value != null) {
+            result.put(key, value);
+          }
+          ownLoad.getValue().complete(value);
+        }
+      } catch (RuntimeException | Error e) {
+        for (CompletableFuture<V> future : ownLoads.values()) {
+          future.completeExceptionally(e);
+        }
+        throw e;
+      } finally {
+        for (Map.Entry<K, CompletableFuture<V>> ownLoad : ownLoads.entrySet()) {
+          loadsInProgress.remove(ownLoad.getKey(), ownLoad.getValue());
+        }
+      }
+    }
+
+    for (Map.Entry<K, CompletableFuture<V>> otherLoad : otherLoads.entrySet()) {
+      V value = await(otherLoad.getValue());
+      if (value != null) {
+        result.put(otherLoad.getKey(), value);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.everit.transaction.map.readcommited.ChangeRecord;
+import org.everit.transaction.map.readcommited.SnapshotCodec;
+
+/**
+ * The binary format of the replication streams. A stream starts with a header that holds a magic
+ * number and the version of the format. The header is followed by the batches, each of them is the
+ * number of records and then the records. A record is its sequence, its timestamp, the cleared
+ * flag, the removed keys and the put entries, both prefixed with their number and encoded by the
+ * codecs. Only the codecs create objects from the stream, so no classes are loaded by the peer.
+ */
+public final class ReplicationFormat {
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * The bytes of "RCMR".
+   */
+  private static final int MAGIC = 0x52434d52;
+
+  private ReplicationFormat() {
+  }
+
+  /**
+   * Reads a batch of records.
+   *
+   * @param in
+   *          The input to read from.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @return The records.
+   * @throws IOException
+   *           if the input cannot be read or it does not contain a batch.
+   */
+  public static <K, V> List<ChangeRecord<K, V>> readBatch(final DataInput in,
+      final SnapshotCodec<? extends K> keyCodec, final SnapshotCodec<? extends V> valueCodec)
+      throws IOException {
+    int recordCount = readCount(in);
+    List<ChangeRecord<K, V>> batch = new ArrayList<>();
+    for (int i = 0; i < recordCount; i++) {
+      long sequence = in.readLong();
+      long timestamp = in.readLong();
+      boolean cleared = in.readBoolean();
+      int removeCount = readCount(in);
+      Set<K> removes = new HashSet<>();
+      for (int j = 0; j < removeCount; j++) {
+        removes.add(keyCodec.decode(in));
+      }
+      int putCount = readCount(in);
+      Map<K, V> puts = new HashMap<>();
+      for (int j = 0; j < putCount; j++) {
+        K key = keyCodec.decode(in);
+        puts.put(key, valueCodec.decode(in));
+      }
+      batch.add(new ChangeRecord<>(sequence, timestamp, cleared, removes, puts));
+    }
+    return batch;
+  }
+
+  private static int readCount(final DataInput in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new StreamCorruptedException("Negative count in replication stream: " + count);
+    }
+    return count;
+  }
+
+  /**
+   * Reads and checks the header of a stream.
+   *
+   * @param in
+   *          The input to read from.
+   * @throws IOException
+   *           if the input cannot be read or it is not a replication stream.
+   */
+  public static void readHeader(final DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new StreamCorruptedException("The input is not a replication stream");
+    }
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new StreamCorruptedException("Unsupported replication format version: " + version);
+    }
+  }
+
+  /**
+   * Writes a batch of records. The output is not flushed.
+   *
+   * @param batch
+   *          The records.
+   * @param out
+   *          The output to write to.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @throws IOException
+   *           if the output cannot be written.
+   */
+  public static <K, V> void writeBatch(final List<ChangeRecord<K, V>> batch,
+      final DataOutput out, final SnapshotCodec<? super K> keyCodec,
+      final SnapshotCodec<? super V> valueCodec) throws IOException {
+    out.writeInt(batch.size());
+    for (ChangeRecord<K, V> changeRecord : batch) {
+      out.writeLong(changeRecord.getSequence());
+      out.writeLong(changeRecord.getTimestamp());
+      out.writeBoolean(changeRecord.isCleared());
+      Set<K> removes = changeRecord.getRemoves();
+      out.writeInt(removes.size());
+      for (K key : removes) {
+        keyCodec.encode(key, out);
+      }
+      Map<K, V> puts = changeRecord.getPuts();
+      out.writeInt(puts.size());
+      for (Entry<K, V> entry : puts.entrySet()) {
+        keyCodec.encode(entry.getKey(), out);
+        valueCodec.encode(entry.getValue(), out);
+      }
+    }
+  }
+
+  /**
+   * Writes the header of a stream. The output is not flushed.
+   *
+   * @param out
+   *          The output to write to.
+   * @throws IOException
+   *           if the output cannot be written.
+   */
+  public static void writeHeader(final DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.everit.transaction.map.readcommited.ChangeRecord;
+import org.everit.transaction.map.readcommited.ChangeSubscription;
+
+/**
+ * Delivers the {@link ChangeRecord}s of a {@link RWLockedMap} to a consumer through a bounded ring
+ * buffer. The records are put into the buffer while the write lock is held, so they are in commit
+ * order, but putting a record never blocks. The buffer is drained by a task that is submitted to
+ * an {@link Executor} after the write lock is released; the task passes all records that are in
+ * the buffer to the consumer as one batch.
+ *
+ * @param <K>
+ *          Type of the keys.
+ * @param <V>
+ *          Type of the values.
+ */
+public class RingBufferChangePublisher<K, V> implements CommitListener<K, V>, ChangeSubscription {
+
+  private static final long BACKPRESSURE_PARK_NANOS = 100_000L;
+
+  private static int ceilingPowerOfTwo(final int x) {
+    return 1 << -Integer.numberOfLeadingZeros(x - 1);
+  }
+
+  protected final Consumer<? super List<ChangeRecord<K, V>>> batchConsumer;
+
+  protected final int capacity;
+
+  protected volatile boolean closed;
+
+  protected final AtomicBoolean draining = new AtomicBoolean();
+
+  protected volatile boolean dropped;
+
+  protected final Executor executor;
+
+  /**
+   * The position of the next record that should be passed to the consumer. Written only by the
+   * draining task.
+   */
+  protected volatile long head;
+
+  protected final int mask;
+
+  /**
+   * The number of slots that are filled or reserved by committing threads.
+   */
+  protected final AtomicInteger occupied = new AtomicInteger();
+
+  protected final OverflowStrategy overflowStrategy;
+
+  /**
+   * Set by {@link #beforeCommit()} if the committing thread reserved a slot but did not use it yet.
+   */
+  protected final ThreadLocal<Boolean> reservedSlot = new ThreadLocal<>();
+
+  protected final AtomicReferenceArray<ChangeRecord<K, V>> ring;
+
+  protected final RWLockedMap<K, V> rwLockedMap;
+
+  /**
+   * The position of the next record that is put into the buffer. Written only while the write lock
+   * of the map is held.
+   */
+  protected volatile long tail;
+
+  /**
+   * Constructor. The publisher must be registered as a listener of the map by the caller.
+   *
+   * @param rwLockedMap
+   *          The map whose commits are published.
+   * @param batchConsumer
+   *          The consumer of the records.
+   * @param capacity
+   *          The maximum number of records that are buffered.
+   * @param overflowStrategy
+   *          What to do when the buffer is full.
+   * @param executor
+   *          The executor that runs the tasks that pass the records to the consumer.
+   */
+  public RingBufferChangePublisher(final RWLockedMap<K, V> rwLockedMap,
+      final Consumer<? super List<ChangeRecord<K, V>>> batchConsumer, final int capacity,
+      final OverflowStrategy overflowStrategy, final Executor executor) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.rwLockedMap = rwLockedMap;
+    this.batchConsumer = batchConsumer;
+    this.capacity = capacity;
+    this.overflowStrategy = overflowStrategy;
+    this.executor = executor;
+    ring = new AtomicReferenceArray<>(ceilingPowerOfTwo(capacity));
+    mask = ring.length() - 1;
+  }
+
+  @Override
+  public void afterCommit() {
+    if (reservedSlot.get() != null) {
+      // The commit failed after the reservation
+      reservedSlot.remove();
+      occupied.decrementAndGet();
+    }
+    scheduleDrain();
+  }
+
+  @Override
+  public void beforeCommit() {
+    if (overflowStrategy != OverflowStrategy.BACKPRESSURE) {
+      return;
+    }
+    while (!closed && !dropped) {
+      if (tryOccupy()) {
+        reservedSlot.set(Boolean.TRUE);
+        return;
+      }
+      scheduleDrain();
+      LockSupport.parkNanos(BACKPRESSURE_PARK_NANOS);
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    rwLockedMap.removeCommitListener(this);
+  }
+
+  @Override
+  public void committed(final ChangeRecord<K, V> changeRecord) {
+    boolean reserved = reservedSlot.get() != null;
+    if (reserved) {
+      reservedSlot.remove();
+    }
+    if (closed || dropped) {
+      return;
+    }
+    if (!reserved && !tryOccupy()) {
+      drop();
+      return;
+    }
+    long currentTail = tail;
+    ring.set((int) (currentTail & mask), changeRecord);
+    tail = currentTail + 1;
+  }
+
+  /**
+   * Passes the buffered records to the consumer until the buffer is empty.
+   */
+  protected void drain() {
+    try {
+      while (!closed && !dropped) {
+        long currentHead = head;
+        long currentTail = tail;
+        if (currentHead == currentTail) {
+          break;
+        }
+        List<ChangeRecord<K, V>> batch = new ArrayList<>((int) (currentTail - currentHead));
+        for (long i = currentHead; i < currentTail; i++) {
+          int index = (int) (i & mask);
+          batch.add(ring.get(index));
+          ring.set(index, null);
+        }
+        head = currentTail;
+        try {
+          batchConsumer.accept(batch);
+        } catch (RuntimeException e) {
+          drop();
+        } finally {
+          occupied.addAndGet(batch.size() * -1);
+        }
+      }
+    } finally {
+      draining.set(false);
+    }
+    // Records that were added after the last check of the tail
+    scheduleDrain();
+  }
+
+  /**
+   * Stops delivering the records.
+   */
+  protected void drop() {
+    dropped = true;
+    rwLockedMap.removeCommitListener(this);
+  }
+
+  @Override
+  public boolean isDropped() {
+    return dropped;
+  }
+
+  /**
+   * Submits a draining task if there are records in the buffer and there is no running task.
+   */
+  protected void scheduleDrain() {
+    if (head != tail && !closed && !dropped && draining.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        draining.set(false);
+        drop();
+      }
+    }
+  }
+
+  @Override
+  public boolean tryBeforeCommit() {
+    if (overflowStrategy != OverflowStrategy.BACKPRESSURE || closed || dropped) {
+      return true;
+    }
+    if (tryOccupy()) {
+      reservedSlot.set(Boolean.TRUE);
+      return true;
+    }
+    scheduleDrain();
+    return false;
+  }
+
+  private boolean tryOccupy() {
+    int currentlyOccupied = occupied.get();
+    while (currentlyOccupied < capacity) {
+      if (occupied.compareAndSet(currentlyOccupied, currentlyOccupied + 1)) {
+        return true;
+      }
+      currentlyOccupied = occupied.get();
+    }
+    return false;
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The context of a transaction that spans the segments of a sharded map. A {@link MapTxContext}
+ * is created only for the segments that the transaction modifies; the other segments are read
+ * from their committed state directly. Commits lock only the modified segments in the order of
+ * their indexes, so concurrent commits cannot deadlock.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+public class ShardedTxContext<K, V> {
+
+  /**
+   * The contexts of the modified segments. The elements of the unmodified segments are
+   * <code>null</code>.
+   */
+  protected final MapTxContext<K, V>[] contexts;
+
+  protected boolean prepared;
+
+  /**
+   * Whether the transaction was declared to be read-only, so that no segment can be modified.
+   */
+  protected final boolean readOnly;
+
+  protected final RWLockedMap<K, V>[] segments;
+
+  protected final Object transaction;
+
+  /**
+   * Constructor.
+   *
+   * @param segments
+   *          The committed segments of the map.
+   * @param transaction
+   *          The transaction.
+   */
+  public ShardedTxContext(final RWLockedMap<K, V>[] segments, final Object transaction) {
+    this(segments, transaction, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param segments
+   *          The committed segments of the map.
+   * @param transaction
+   *          The transaction.
+   * @param readOnly
+   *          Whether the transaction is declared to be read-only.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public ShardedTxContext(final RWLockedMap<K, V>[] segments, final Object transaction,
+      final boolean readOnly) {
+    this.segments = segments;
+    this.transaction = transaction;
+    this.readOnly = readOnly;
+    this.contexts = new MapTxContext[segments.length];
+  }
+
+  /**
+   * Writes the changes of the modified segments back to the committed segments. If the transaction
+   * is not prepared, the keys of every modified segment are reserved for the time of the commit
+   * before any write lock is acquired; these reservations are shared with other commits. After
+   * that, the write locks of the modified segments are acquired in the order of their indexes and
+   * all of them are held until the changes of the last segment are applied.
+   *
+   * @throws IllegalStateException
+   *           if the transaction is not prepared and any of the affected keys is reserved by a
+   *           prepared transaction.
+   */
+  public void commit() {
+    if (!prepared) {
+      reserveSegments(MapTxContext::reserveForCommit);
+    }
+    try {
+      commitSegments(0);
+    } finally {
+      // Releases the reservations of the segments that were not reached if a commit failed
+      rollback();
+    }
+  }
+
+  private void commitSegments(final int fromIndex) {
+    for (int i = fromIndex; i < contexts.length; i++) {
+      if (contexts[i] != null) {
+        int nextIndex = i + 1;
+        contexts[i].commit(() -> commitSegments(nextIndex));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Copies the entries of a segment that are visible within this transaction. The committed
+   * entries are copied within one read lock acquisition of the segment.
+   *
+   * @param segmentIndex
+   *          The index of the segment.
+   * @return The copy that can be modified by the caller.
+   */
+  public Map<K, V> copySegment(final int segmentIndex) {
+    MapTxContext<K, V> context = contexts[segmentIndex];
+    return (context != null) ? context.copyEntries() : segments[segmentIndex].copyEntries();
+  }
+
+  /**
+   * Puts the values of the keys of one segment that this transaction changed into a map.
+   *
+   * @param segmentIndex
+   *          The index of the segment that contains the keys.
+   * @param keys
+   *          The keys.
+   * @param result
+   *          The map that the changed keys that have a value and their values are put into.
+   * @return The keys whose values should be read from the committed segment.
+   */
+  public Collection<? extends K> getChangedValues(final int segmentIndex,
+      final Collection<? extends K> keys, final Map<K, V> result) {
+    MapTxContext<K, V> context = contexts[segmentIndex];
+    return (context != null) ? context.getChangedValues(keys, result) : keys;
+  }
+
+  public Object getTransaction() {
+    return transaction;
+  }
+
+  public boolean isPrepared() {
+    return prepared;
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * Prepares the transaction by reserving the affected keys of the modified segments in the order
+   * of their indexes. If a reservation fails, the reservations of the segments that are already
+   * prepared are released, so the transaction can be modified again.
+   *
+   * @throws IllegalStateException
+   *           if the transaction is already prepared or any of the affected keys is reserved by
+   *           another transaction.
+   */
+  public void prepare() {
+    if (prepared) {
+      throw new IllegalStateException("Transaction is already prepared");
+    }
+    reserveSegments(MapTxContext::prepare);
+    prepared = true;
+  }
+
+  /**
+   * Returns the state of a segment as it is visible within this transaction.
+   *
+   * @param segmentIndex
+   *          The index of the segment.
+   * @return The context of the segment if the transaction modified it, otherwise the committed
+   *         segment.
+   */
+  public Map<K, V> readSegment(final int segmentIndex) {
+    MapTxContext<K, V> context = contexts[segmentIndex];
+    return (context != null) ? context : segments[segmentIndex];
+  }
+
+  /**
+   * Reserves the keys of the modified segments in the order of their indexes. If a reservation
+   * fails, the reservations of the previous segments are released.
+   */
+  private void reserveSegments(final Consumer<MapTxContext<K, V>> reservation) {
+    for (int i = 0; i < contexts.length; i++) {
+      if (contexts[i] != null) {
+        try {
+          reservation.accept(contexts[i]);
+        } catch (RuntimeException e) {
+          for (int j = 0; j < i; j++) {
+            if (contexts[j] != null) {
+              contexts[j].rollback();
+            }
+          }
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases the reservations of the modified segments.
+   */
+  public void rollback() {
+    for (MapTxContext<K, V> context : contexts) {
+      if (context != null) {
+        context.rollback();
+      }
+    }
+    prepared = false;
+  }
+
+  /**
+   * Returns the context of a segment that should be modified. The context is created on the first
+   * modification of the segment.
+   *
+   * @param segmentIndex
+   *          The index of the segment.
+   * @return The context of the segment.
+   * @throws IllegalStateException
+   *           if the transaction is prepared or read-only.
+   */
+  public MapTxContext<K, V> writeSegment(final int segmentIndex) {
+    if (prepared) {
+      throw new IllegalStateException("Prepared transaction cannot be modified");
+    }
+    if (readOnly) {
+      throw new IllegalStateException("Read-only transaction cannot be modified");
+    }
+    MapTxContext<K, V> context = contexts[segmentIndex];
+    if (context == null) {
+      context = new MapTxContext<>(segments[segmentIndex], transaction);
+      contexts[segmentIndex] = context;
+    }
+    return context;
+  }
+}
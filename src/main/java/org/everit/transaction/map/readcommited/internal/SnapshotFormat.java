@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.everit.transaction.map.readcommited.ChangeRecord;
+import org.everit.transaction.map.readcommited.SnapshotCodec;
+
+/**
+ * The binary format of the snapshots. A snapshot starts with a header that holds a magic number,
+ * the version of the format, the commit sequence of the exported state and the number of entries.
+ * The header is followed by the entries, each of them is the key and then the value as encoded by
+ * the codecs.
+ */
+public final class SnapshotFormat {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * The bytes of "RCMS".
+   */
+  private static final int MAGIC = 0x52434d53;
+
+  private SnapshotFormat() {
+  }
+
+  /**
+   * Reads the entries of a snapshot into a store. The channel is read through a buffer, so it might
+   * be read further than the end of the snapshot.
+   *
+   * @param channel
+   *          The channel to read from. It is not closed.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @param store
+   *          The store that the entries are put into.
+   * @return The commit sequence of the exported state.
+   * @throws IOException
+   *           if the channel cannot be read or it does not contain a snapshot.
+   */
+  public static <K, V> long read(final ReadableByteChannel channel,
+      final SnapshotCodec<? extends K> keyCodec, final SnapshotCodec<? extends V> valueCodec,
+      final Map<K, V> store) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+    if (in.readInt() != MAGIC) {
+      throw new StreamCorruptedException("The channel does not contain a snapshot");
+    }
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new StreamCorruptedException("Unsupported snapshot format version: " + version);
+    }
+    long commitSequence = in.readLong();
+    long entryCount = in.readLong();
+    for (long i = 0; i < entryCount; i++) {
+      K key = keyCodec.decode(in);
+      store.put(key, valueCodec.decode(in));
+    }
+    return commitSequence;
+  }
+
+  /**
+   * Writes the entries of a snapshot to a channel. The channel is not closed.
+   *
+   * @param snapshot
+   *          The snapshot that holds the entries in its puts.
+   * @param channel
+   *          The channel to write to.
+   * @param keyCodec
+   *          The codec of the keys.
+   * @param valueCodec
+   *          The codec of the values.
+   * @throws IOException
+   *           if the channel cannot be written.
+   */
+  public static <K, V> void write(final ChangeRecord<K, V> snapshot,
+      final WritableByteChannel channel, final SnapshotCodec<? super K> keyCodec,
+      final SnapshotCodec<? super V> valueCodec) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    Map<K, V> entries = snapshot.getPuts();
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(snapshot.getSequence());
+    out.writeLong(entries.size());
+    for (Entry<K, V> entry : entries.entrySet()) {
+      keyCodec.encode(entry.getKey(), out);
+      valueCodec.encode(entry.getValue(), out);
+    }
+    out.flush();
+  }
+}
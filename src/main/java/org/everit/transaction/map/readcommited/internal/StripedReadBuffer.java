@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Lossy buffer that records events of reader threads without locking. The events are spread over
+ * several small ring buffers based on the identifier of the recording thread, so that readers
+ * rarely contend on the same counter. When a ring buffer is full, the event is dropped. The buffer
+ * must be drained by one thread at a time, typically while holding an exclusive lock.
+ *
+ * @param <E>
+ *          Type of the recorded events.
+ */
+public class StripedReadBuffer<E> {
+
+  /**
+   * One ring buffer of the striped buffer.
+   *
+   * @param <E>
+   *          Type of the recorded events.
+   */
+  protected static final class Stripe<E> {
+
+    protected volatile long readCounter;
+
+    protected final AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(STRIPE_SIZE);
+
+    protected final AtomicLong writeCounter = new AtomicLong();
+  }
+
+  private static final int STRIPE_MASK = 15;
+
+  private static final int STRIPE_SIZE = STRIPE_MASK + 1;
+
+  private static int ceilingPowerOfTwo(final int x) {
+    return 1 << -Integer.numberOfLeadingZeros(x - 1);
+  }
+
+  protected final int stripeMask;
+
+  protected final Stripe<E>[] stripes;
+
+  /**
+   * Constructor that creates a stripe for each processor.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public StripedReadBuffer() {
+    int stripeCount = ceilingPowerOfTwo(Math.max(Runtime.getRuntime().availableProcessors(), 2));
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe<>();
+    }
+    stripeMask = stripeCount - 1;
+  }
+
+  /**
+   * Passes the recorded events to a consumer and removes them from the buffer.
+   *
+   * @param consumer
+   *          The consumer of the events.
+   */
+  public void drainTo(final Consumer<? super E> consumer) {
+    for (Stripe<E> stripe : stripes) {
+      long readCounter = stripe.readCounter;
+      long writeCounter = stripe.writeCounter.get();
+      while (readCounter < writeCounter) {
+        int index = (int) (readCounter & STRIPE_MASK);
+        E event = stripe.slots.get(index);
+        if (event == null) {
+          // The writer claimed the slot but did not publish the event yet.
+          break;
+        }
+        stripe.slots.lazySet(index, null);
+        readCounter++;
+        consumer.accept(event);
+      }
+      stripe.readCounter = readCounter;
+    }
+  }
+
+  /**
+   * Records an event if there is free space in the stripe of the current thread.
+   *
+   * @param event
+   *          The event. Must not be <code>null</code>.
+   * @return <code>true</code> if the event was recorded, <code>false</code> if it was dropped.
+   */
+  public boolean offer(final E event) {
+    long threadHash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+    Stripe<E> stripe = stripes[(int) (threadHash >>> 32) & stripeMask];
+    long writeCounter = stripe.writeCounter.get();
+    if (writeCounter - stripe.readCounter >= STRIPE_SIZE) {
+      return false;
+    }
+    if (!stripe.writeCounter.compareAndSet(writeCounter, writeCounter + 1)) {
+      return false;
+    }
+    stripe.slots.lazySet((int) (writeCounter & STRIPE_MASK), event);
+    return true;
+  }
+}
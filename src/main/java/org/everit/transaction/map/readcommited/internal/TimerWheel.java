@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel that tracks the expiration time of keys. Each level of the wheel is an
+ * array of buckets that covers a time span with a given resolution; a key is placed into the
+ * bucket of the lowest level whose span still covers its expiration time. Advancing the wheel only
+ * visits the buckets whose time has passed and moves their not yet expired keys to a lower level,
+ * so expiration is amortized and never requires scanning all keys. Mostly based on the timer wheel
+ * of the Caffeine library. The class is not thread-safe.
+ *
+ * @param <K>
+ *          Type of the keys.
+ */
+public class TimerWheel<K> {
+
+  /**
+   * A scheduled key that is linked into the circular list of a bucket.
+   *
+   * @param <K>
+   *          Type of the key.
+   */
+  protected static final class Node<K> {
+
+    protected final K key;
+
+    protected Node<K> next;
+
+    protected Node<K> previous;
+
+    protected final long time;
+
+    protected Node(final K key, final long time) {
+      this.key = key;
+      this.time = time;
+      next = this;
+      previous = this;
+    }
+  }
+
+  private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+
+  private static final long[] SHIFT;
+
+  /**
+   * The time span of each level in nanoseconds: ~1.07s, ~1.14m, ~1.22h, ~0.78d, ~13d.
+   */
+  private static final long[] SPANS = {
+      1L << 30, 1L << 36, 1L << 42, 1L << 46, 1L << 50, 1L << 50 };
+
+  static {
+    SHIFT = new long[BUCKETS.length];
+    for (int i = 0; i < BUCKETS.length; i++) {
+      SHIFT[i] = Long.numberOfTrailingZeros(SPANS[i]);
+    }
+  }
+
+  protected long nanos;
+
+  protected final Map<Object, Node<K>> nodes = new HashMap<>();
+
+  protected final Node<K>[][] wheel;
+
+  /**
+   * Constructor.
+   *
+   * @param nanos
+   *          The current time in nanoseconds as it is returned by {@link System#nanoTime()}.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public TimerWheel(final long nanos) {
+    this.nanos = nanos;
+    wheel = new Node[BUCKETS.length][];
+    for (int i = 0; i < BUCKETS.length; i++) {
+      wheel[i] = new Node[BUCKETS[i]];
+      for (int j = 0; j < BUCKETS[i]; j++) {
+        wheel[i][j] = new Node<>(null, 0);
+      }
+    }
+  }
+
+  /**
+   * Advances the time of the wheel and passes the keys that expired to a consumer.
+   *
+   * @param currentNanos
+   *          The current time in nanoseconds.
+   * @param expiredKeyConsumer
+   *          Called with each expired key. The key is already descheduled when the consumer is
+   *          called.
+   */
+  public void advance(final long currentNanos, final Consumer<? super K> expiredKeyConsumer) {
+    long previousNanos = nanos;
+    nanos = currentNanos;
+    for (int i = 0; i < SHIFT.length; i++) {
+      long previousTicks = previousNanos >>> SHIFT[i];
+      long currentTicks = currentNanos >>> SHIFT[i];
+      if ((currentTicks - previousTicks) <= 0L) {
+        break;
+      }
+      expire(i, previousTicks, currentTicks - previousTicks, expiredKeyConsumer);
+    }
+  }
+
+  /**
+   * Deschedules all keys.
+   */
+  public void clear() {
+    nodes.clear();
+    for (Node<K>[] buckets : wheel) {
+      for (Node<K> sentinel : buckets) {
+        sentinel.next = sentinel;
+        sentinel.previous = sentinel;
+      }
+    }
+  }
+
+  /**
+   * Removes the expiration time of a key.
+   *
+   * @param key
+   *          The key.
+   */
+  public void deschedule(final Object key) {
+    Node<K> node = nodes.remove(key);
+    if (node != null) {
+      unlink(node);
+    }
+  }
+
+  private void expire(final int index, final long previousTicks, final long delta,
+      final Consumer<? super K> expiredKeyConsumer) {
+    Node<K>[] buckets = wheel[index];
+    int mask = buckets.length - 1;
+    int start;
+    int end;
+    if (delta >= buckets.length) {
+      start = 0;
+      end = buckets.length;
+    } else {
+      start = (int) (previousTicks & mask);
+      end = 1 + start + (int) delta;
+    }
+
+    for (int i = start; i < end; i++) {
+      expireBucket(buckets[i & mask], expiredKeyConsumer);
+    }
+  }
+
+  private void expireBucket(final Node<K> sentinel,
+      final Consumer<? super K> expiredKeyConsumer) {
+    Node<K> node = sentinel.next;
+    sentinel.next = sentinel;
+    sentinel.previous = sentinel;
+    while (node != sentinel) {
+      Node<K> next = node.next;
+      if ((node.time - nanos) > 0L) {
+        link(findBucket(node.time), node);
+      } else {
+        nodes.remove(node.key);
+        expiredKeyConsumer.accept(node.key);
+      }
+      node = next;
+    }
+  }
+
+  /**
+   * Passes the keys of the current tick whose expiration time passed to a consumer. The keys that
+   * expire in the current tick are not expired by {@link #advance(long, Consumer)} until the tick
+   * passes; this function should be called when the exact set of expired keys is needed.
+   *
+   * @param expiredKeyConsumer
+   *          Called with each expired key.
+   */
+  public void expireCurrentTick(final Consumer<? super K> expiredKeyConsumer) {
+    Node<K>[] buckets = wheel[0];
+    int index = (int) ((nanos >>> SHIFT[0]) & (buckets.length - 1));
+    expireBucket(buckets[index], expiredKeyConsumer);
+  }
+
+  private Node<K> findBucket(final long time) {
+    long duration = time - nanos;
+    // Keys that are already expired are put into the bucket of the current tick
+    long bucketTime = (duration > 0L) ? time : nanos;
+    int length = wheel.length - 1;
+    for (int i = 0; i < length; i++) {
+      if (duration < SPANS[i + 1]) {
+        long ticks = bucketTime >>> SHIFT[i];
+        int index = (int) (ticks & (wheel[i].length - 1));
+        return wheel[i][index];
+      }
+    }
+    return wheel[length][0];
+  }
+
+  /**
+   * Checks whether the expiration time of a key has passed.
+   *
+   * @param key
+   *          The key.
+   * @param currentNanos
+   *          The current time in nanoseconds.
+   * @return <code>true</code> if the key is scheduled and its expiration time has passed.
+   */
+  public boolean isExpired(final Object key, final long currentNanos) {
+    Node<K> node = nodes.get(key);
+    return node != null && (node.time - currentNanos) <= 0L;
+  }
+
+  public boolean isEmpty() {
+    return nodes.isEmpty();
+  }
+
+  private void link(final Node<K> sentinel, final Node<K> node) {
+    node.previous = sentinel.previous;
+    node.next = sentinel;
+    sentinel.previous.next = node;
+    sentinel.previous = node;
+  }
+
+  /**
+   * Schedules the expiration of a key. If the key was already scheduled, the previous expiration
+   * time is replaced.
+   *
+   * @param key
+   *          The key.
+   * @param time
+   *          The expiration time in nanoseconds.
+   */
+  public void schedule(final K key, final long time) {
+    deschedule(key);
+    Node<K> node = new Node<>(key, time);
+    nodes.put(key, node);
+    link(findBucket(time), node);
+  }
+
+  private void unlink(final Node<K> node) {
+    node.previous.next = node.next;
+    node.next.previous = node.previous;
+    node.next = node;
+    node.previous = node;
+  }
+}
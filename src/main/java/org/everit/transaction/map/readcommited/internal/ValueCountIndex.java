@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts how many committed entries have each value, so that the existence of a value can be
+ * checked without iterating the entries.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+public class ValueCountIndex<K, V> extends CommittedIndex<K, V> {
+
+  protected Map<V, Integer> counts = new HashMap<>();
+
+  @Override
+  protected void add(final K key, final V value) {
+    counts.merge(value, 1, Integer::sum);
+  }
+
+  @Override
+  protected void clear() {
+    counts = new HashMap<>();
+  }
+
+  /**
+   * Returns the number of committed entries that have a value.
+   *
+   * @param value
+   *          The value.
+   * @return The number of entries.
+   */
+  protected int count(final Object value) {
+    Integer count = counts.get(value);
+    return (count != null) ? count : 0;
+  }
+
+  @Override
+  protected ValueCountIndex<K, V> createEmptyCopy() {
+    return new ValueCountIndex<>();
+  }
+
+  @Override
+  protected void remove(final K key, final V value) {
+    counts.computeIfPresent(value, (v, count) -> (count > 1) ? count - 1 : null);
+  }
+
+  @Override
+  protected void replaceContent(final CommittedIndex<K, V> other) {
+    counts = ((ValueCountIndex<K, V>) other).counts;
+  }
+}
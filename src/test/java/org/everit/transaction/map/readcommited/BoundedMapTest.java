@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.everit.transaction.map.readcommited.ChangeSubscription.OverflowStrategy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedMapTest {
+
+  @Test
+  public void testEvictionDoesNotAffectActiveTransaction() {
+    ReadCommitedTransactionalMap<String, String> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), 2, new LruEvictionPolicy<>()));
+
+    map.startTransaction(0);
+    map.put("key1", "value");
+    map.put("key2", "value");
+    map.put("key3", "value");
+    Assert.assertEquals(3, map.size());
+    Assert.assertEquals("value", map.get("key1"));
+    map.commitTransaction();
+
+    Assert.assertEquals(2, map.size());
+  }
+
+  @Test
+  public void testEvictionIsPublishedAsRemove() {
+    ReadCommitedTransactionalMap<String, String> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), 2, new LruEvictionPolicy<>()));
+    map.put("key1", "value");
+
+    List<ChangeRecord<String, String>> changeRecords = new ArrayList<>();
+    ChangeSubscription subscription = map.subscribeChanges(changeRecords::add, 16,
+        OverflowStrategy.DROP_CONSUMER, Runnable::run);
+
+    map.startTransaction(0);
+    map.put("key2", "value");
+    map.put("key3", "value");
+    map.commitTransaction();
+
+    Assert.assertEquals(1, changeRecords.size());
+    ChangeRecord<String, String> changeRecord = changeRecords.get(0);
+    Assert.assertEquals(Collections.singleton("key1"), changeRecord.getRemoves());
+    Assert.assertEquals(new HashSet<>(Arrays.asList("key2", "key3")),
+        changeRecord.getPuts().keySet());
+    subscription.close();
+  }
+
+  @Test
+  public void testEvictionOfPutEntryUpdatesIndexes() {
+    ReadCommitedTransactionalMap<String, String> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), 10, (key, value) -> value.length(),
+            new LruEvictionPolicy<>()));
+    map.enableValueCountIndex();
+    SecondaryIndex<String, String, String> index = map.addIndex((value) -> value);
+
+    map.put("key1", "1234567890123456");
+    Assert.assertEquals(0, map.size());
+    Assert.assertFalse(map.containsValue("1234567890123456"));
+    Assert.assertTrue(map.getByIndex(index, "1234567890123456").isEmpty());
+
+    map.startTransaction(0);
+    map.put("key2", "12345678901234567");
+    map.put("key3", "12345");
+    map.commitTransaction();
+    Assert.assertEquals(1, map.size());
+    Assert.assertFalse(map.containsValue("12345678901234567"));
+    Assert.assertTrue(map.containsValue("12345"));
+  }
+
+  @Test
+  public void testEvictionUpdatesSecondaryIndex() {
+    ReadCommitedTransactionalMap<String, String> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), 2, new LruEvictionPolicy<>()));
+    SecondaryIndex<String, String, String> index = map.addIndex((value) -> value);
+
+    map.put("key1", "value");
+    map.put("key2", "value");
+    map.put("key3", "otherValue");
+
+    Assert.assertEquals(Collections.singleton("key2"), map.getByIndex(index, "value").keySet());
+    Assert.assertEquals(Collections.singleton("key3"),
+        map.getByIndex(index, "otherValue").keySet());
+  }
+
+  @Test
+  public void testImportSnapshotKeepsBound() throws IOException {
+    ReadCommitedTransactionalMap<String, String> source = new ReadCommitedTransactionalMap<>(null);
+    source.put("key1", "value");
+    source.put("key2", "value");
+    source.put("key3", "value");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    source.exportSnapshot(Channels.newChannel(bytes), SnapshotCodec.STRING, SnapshotCodec.STRING);
+
+    ReadCommitedTransactionalMap<String, String> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), 2, new LruEvictionPolicy<>()));
+    try {
+      map.importSnapshot(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+          SnapshotCodec.STRING, SnapshotCodec.STRING);
+      Assert.fail("Import should fail without a store factory");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(map.isEmpty());
+    }
+
+    map.setClearStoreFactory(
+        () -> new BoundedMap<>(new HashMap<>(), 2, new LruEvictionPolicy<>()));
+    map.importSnapshot(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+        SnapshotCodec.STRING, SnapshotCodec.STRING);
+    Assert.assertEquals(2, map.size());
+  }
+
+  @Test
+  public void testLruEviction() {
+    ReadCommitedTransactionalMap<String, String> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), 2, new LruEvictionPolicy<>()));
+
+    map.put("key1", "value");
+    map.put("key2", "value");
+    Assert.assertEquals("value", map.get("key1"));
+    map.put("key3", "value");
+
+    Assert.assertEquals(2, map.size());
+    Assert.assertTrue(map.containsKey("key1"));
+    Assert.assertFalse(map.containsKey("key2"));
+    Assert.assertTrue(map.containsKey("key3"));
+  }
+
+  @Test
+  public void testMaximumWeight() {
+    BoundedMap<String, String> boundedMap = new BoundedMap<>(new HashMap<>(), 10,
+        (key, value) -> value.length(), new LruEvictionPolicy<>());
+    ReadCommitedTransactionalMap<String, String> map =
+        new ReadCommitedTransactionalMap<>(boundedMap);
+
+    map.put("key1", "12345");
+    map.put("key2", "1234");
+    Assert.assertEquals(9, boundedMap.getWeight());
+
+    map.put("key1", "1");
+    Assert.assertEquals(5, boundedMap.getWeight());
+
+    map.put("key3", "123456");
+    Assert.assertEquals(2, map.size());
+    Assert.assertFalse(map.containsKey("key2"));
+    Assert.assertEquals(7, boundedMap.getWeight());
+
+    map.remove("key1");
+    Assert.assertEquals(6, boundedMap.getWeight());
+  }
+
+  @Test
+  public void testWTinyLfuKeepsFrequentlyUsedEntriesDuringScan() {
+    int maximumSize = 10;
+    ReadCommitedTransactionalMap<Integer, String> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), maximumSize,
+            new WTinyLfuEvictionPolicy<>(maximumSize)));
+
+    for (int i = 0; i < maximumSize; i++) {
+      map.put(i, "hot");
+    }
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < maximumSize; i++) {
+        map.get(i);
+      }
+      // Writes drain the recorded reads
+      map.put(0, "hot");
+    }
+
+    for (int i = 100; i < 200; i++) {
+      map.put(i, "scan");
+    }
+
+    int remainingHotEntries = 0;
+    for (int i = 0; i < maximumSize; i++) {
+      if (map.containsKey(i)) {
+        remainingHotEntries++;
+      }
+    }
+    Assert.assertEquals(maximumSize, map.size());
+    Assert.assertTrue(remainingHotEntries >= maximumSize - 2);
+  }
+}
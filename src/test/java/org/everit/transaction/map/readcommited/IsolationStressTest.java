@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.everit.transaction.map.TransactionalMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs randomized transactions on several threads and checks the read committed guarantees of the
+ * committed store implementations. The keys are partitioned into groups and every transaction
+ * writes the same version into each key of a group, so a reader that sees different versions
+ * within a group saw a partly applied commit. The versions of the transactions that are rolled back
+ * are flagged, so reading them is a dirty read, and every version that a reader sees must belong
+ * to a transaction whose commit was already started.
+ */
+public class IsolationStressTest {
+
+  private static final long ABORTED_FLAG = 1L << 62;
+
+  private static final int GROUP_COUNT = 32;
+
+  private static final int GROUP_SIZE = 4;
+
+  private static final int READER_COUNT = 3;
+
+  private static final int TRANSACTIONS_PER_WRITER = 1500;
+
+  private static final int WRITER_COUNT = 3;
+
+  /**
+   * The versions of the transactions whose commit was started.
+   */
+  private final Set<Long> committedVersions = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong versionSequence = new AtomicLong();
+
+  private void checkGroup(final Map<Integer, Long> values) {
+    Assert.assertEquals("Missing keys in group", GROUP_SIZE, values.size());
+    Long version = null;
+    for (Long value : values.values()) {
+      checkVersion(value);
+      if (version != null) {
+        Assert.assertEquals("Partly applied commit", version, value);
+      }
+      version = value;
+    }
+  }
+
+  private void checkVersion(final Long value) {
+    Assert.assertNotNull("Missing committed key", value);
+    Assert.assertEquals("Dirty read of rolled back transaction", 0, value & ABORTED_FLAG);
+    Assert.assertTrue("Dirty read of uncommitted transaction", committedVersions.contains(value));
+  }
+
+  private List<Integer> groupKeys(final int group) {
+    List<Integer> keys = new ArrayList<>();
+    for (int i = 0; i < GROUP_SIZE; i++) {
+      keys.add(group * GROUP_SIZE + i);
+    }
+    return keys;
+  }
+
+  private void read(final TransactionalMap<Integer, Long> map,
+      final Function<Collection<Integer>, Map<Integer, Long>> getAll) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int group = random.nextInt(GROUP_COUNT);
+    if (random.nextInt(8) == 0) {
+      map.startTransaction(new Object());
+      try {
+        checkVersion(map.get(group * GROUP_SIZE));
+      } finally {
+        map.rollbackTransaction();
+      }
+    } else {
+      checkGroup(getAll.apply(groupKeys(group)));
+    }
+  }
+
+  private void runStress(final TransactionalMap<Integer, Long> map,
+      final Function<Collection<Integer>, Map<Integer, Long>> getAll) throws Exception {
+    committedVersions.add(0L);
+    Map<Integer, Long> initialEntries = new HashMap<>();
+    for (int i = 0; i < GROUP_COUNT * GROUP_SIZE; i++) {
+      initialEntries.put(i, 0L);
+    }
+    map.putAll(initialEntries);
+
+    ConcurrentLinkedQueue<Object> suspendedTransactions = new ConcurrentLinkedQueue<>();
+    AtomicBoolean writing = new AtomicBoolean(true);
+    CountDownLatch startLatch = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(WRITER_COUNT + READER_COUNT);
+    try {
+      List<Future<?>> writers = new ArrayList<>();
+      for (int i = 0; i < WRITER_COUNT; i++) {
+        writers.add(executor.submit(() -> {
+          startLatch.await();
+          for (int j = 0; j < TRANSACTIONS_PER_WRITER; j++) {
+            write(map, suspendedTransactions);
+          }
+          return null;
+        }));
+      }
+      List<Future<?>> readers = new ArrayList<>();
+      for (int i = 0; i < READER_COUNT; i++) {
+        readers.add(executor.submit(() -> {
+          startLatch.await();
+          while (writing.get()) {
+            read(map, getAll);
+          }
+          return null;
+        }));
+      }
+      startLatch.countDown();
+      try {
+        for (Future<?> writer : writers) {
+          writer.get();
+        }
+      } finally {
+        writing.set(false);
+      }
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (Object transaction = suspendedTransactions.poll(); transaction != null;
+        transaction = suspendedTransactions.poll()) {
+      map.resumeTransaction(transaction);
+      committedVersions.add((Long) transaction);
+      map.commitTransaction();
+    }
+    for (int group = 0; group < GROUP_COUNT; group++) {
+      checkGroup(getAll.apply(groupKeys(group)));
+    }
+    Assert.assertEquals(GROUP_COUNT * GROUP_SIZE, map.size());
+  }
+
+  @Test
+  public void testBoundedStore() throws Exception {
+    ReadCommitedTransactionalMap<Integer, Long> map = new ReadCommitedTransactionalMap<>(
+        new BoundedMap<>(new HashMap<>(), GROUP_COUNT * GROUP_SIZE, new LruEvictionPolicy<>()));
+    runStress(map, map::getAll);
+  }
+
+  @Test
+  public void testNavigableStore() throws Exception {
+    ReadCommitedTransactionalNavigableMap<Integer, Long> map =
+        new ReadCommitedTransactionalNavigableMap<>();
+    map.setClearStoreFactory(ConcurrentSkipListMap::new);
+    runStress(map, map::getAll);
+  }
+
+  @Test
+  public void testReadWriteLockStore() throws Exception {
+    ReadCommitedTransactionalMap<Integer, Long> map = new ReadCommitedTransactionalMap<>(null);
+    runStress(map, map::getAll);
+  }
+
+  @Test
+  public void testShardedStore() throws Exception {
+    ShardedReadCommitedTransactionalMap<Integer, Long> map =
+        new ShardedReadCommitedTransactionalMap<>(8);
+    runStress(map, map::getAll);
+  }
+
+  @Test
+  public void testStampedLockStore() throws Exception {
+    ReadCommitedTransactionalMap<Integer, Long> map =
+        new ReadCommitedTransactionalMap<>(null, null, LockStrategy.STAMPED);
+    runStress(map, map::getAll);
+  }
+
+  @Test
+  public void testStoreSwapOnClear() throws Exception {
+    ReadCommitedTransactionalMap<Integer, Long> map = new ReadCommitedTransactionalMap<>(null);
+    map.setClearStoreFactory(HashMap::new);
+    runStress(map, map::getAll);
+  }
+
+  /**
+   * Runs one transaction. Most transactions write a group and commit, some of them roll back,
+   * rewrite every group after clearing the map or are suspended to be resumed and committed by
+   * another thread.
+   */
+  private void write(final TransactionalMap<Integer, Long> map,
+      final ConcurrentLinkedQueue<Object> suspendedTransactions) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Object suspendedTransaction = suspendedTransactions.poll();
+    if (suspendedTransaction != null) {
+      map.resumeTransaction(suspendedTransaction);
+      committedVersions.add((Long) suspendedTransaction);
+      map.commitTransaction();
+      return;
+    }
+
+    int action = random.nextInt(100);
+    boolean rollback = action < 20;
+    long version = versionSequence.incrementAndGet() | (rollback ? ABORTED_FLAG : 0);
+    map.startTransaction(version);
+    if (action == 99) {
+      map.clear();
+      for (int group = 0; group < GROUP_COUNT; group++) {
+        for (Integer key : groupKeys(group)) {
+          map.put(key, version);
+        }
+      }
+    } else {
+      for (Integer key : groupKeys(random.nextInt(GROUP_COUNT))) {
+        if (random.nextBoolean()) {
+          map.put(key, version);
+        } else {
+          map.compute(key, (k, value) -> version);
+        }
+        Assert.assertEquals("Own write is not visible", Long.valueOf(version), map.get(key));
+      }
+    }
+
+    if (rollback) {
+      map.rollbackTransaction();
+    } else if (action >= 95) {
+      map.suspendTransaction();
+      suspendedTransactions.add(version);
+    } else {
+      committedVersions.add(version);
+      map.commitTransaction();
+    }
+  }
+}
@@ -15,13 +15,33 @@
  */
 package org.everit.transaction.map.readcommited;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.everit.transaction.map.readcommited.ChangeSubscription.OverflowStrategy;
 import org.everit.transaction.map.readcommited.RememberManipulationCallsMap.CallInfo;
 import org.junit.Assert;
 import org.junit.Test;
@@ -117,6 +137,101 @@ public class ReadCommitedTransactionalMapTest {
     Assert.assertNull(call);
   }
 
+  @Test
+  public void testAtomicOperations() throws Exception {
+    ReadCommitedTransactionalMap<String, Integer> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    int threadCount = 4;
+    int incrementCount = 1000;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(executor.submit(() -> {
+          for (int j = 0; j < incrementCount; j++) {
+            transactionalMap.merge("counter", 1, Integer::sum);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(Integer.valueOf(threadCount * incrementCount),
+        transactionalMap.get("counter"));
+
+    transactionalMap.startTransaction(0);
+    Assert.assertEquals(Integer.valueOf(1), transactionalMap.merge("other", 1, Integer::sum));
+    Assert.assertEquals(Integer.valueOf(2), transactionalMap.merge("other", 1, Integer::sum));
+    Assert.assertEquals(Integer.valueOf(2), transactionalMap.putIfAbsent("other", 5));
+    Assert.assertFalse(transactionalMap.replace("counter", 0, 1));
+    Assert.assertTrue(transactionalMap.replace("other", 2, 3));
+    Assert.assertNull(transactionalMap.computeIfPresent("counter", (key, value) -> null));
+    Assert.assertEquals(Integer.valueOf(7),
+        transactionalMap.computeIfAbsent("counter", (key) -> 7));
+    Assert.assertFalse(transactionalMap.remove("other", 2));
+    Assert.assertNull(transactionalMap.get("missing"));
+    Assert.assertEquals(Integer.valueOf(1),
+        transactionalMap.compute("missing", (key, value) -> (value == null) ? 1 : value + 1));
+    transactionalMap.suspendTransaction();
+
+    Assert.assertNull(transactionalMap.get("other"));
+    Assert.assertEquals(Integer.valueOf(threadCount * incrementCount),
+        transactionalMap.get("counter"));
+
+    transactionalMap.resumeTransaction(0);
+    transactionalMap.commitTransaction();
+    Assert.assertEquals(Integer.valueOf(3), transactionalMap.get("other"));
+    Assert.assertEquals(Integer.valueOf(7), transactionalMap.get("counter"));
+    Assert.assertTrue(transactionalMap.remove("other", 3));
+    Assert.assertNull(transactionalMap.replace("other", 4));
+    Assert.assertFalse(transactionalMap.containsKey("other"));
+  }
+
+  @Test
+  public void testChangeSubscription() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("removedKey", "value");
+
+    List<ChangeRecord<String, String>> changeRecords = new ArrayList<>();
+    ChangeSubscription subscription = transactionalMap.subscribeChanges(changeRecords::add, 16,
+        OverflowStrategy.DROP_CONSUMER, Runnable::run);
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.put("key", "value");
+    transactionalMap.remove("removedKey");
+    transactionalMap.commitTransaction();
+
+    transactionalMap.startTransaction(1);
+    transactionalMap.get("key");
+    transactionalMap.commitTransaction();
+
+    transactionalMap.startTransaction(2);
+    transactionalMap.clear();
+    transactionalMap.put("keyAfterClear", "value");
+    transactionalMap.commitTransaction();
+
+    Assert.assertEquals(2, changeRecords.size());
+    ChangeRecord<String, String> changeRecord = changeRecords.get(0);
+    Assert.assertFalse(changeRecord.isCleared());
+    Assert.assertEquals(Collections.singletonMap("key", "value"), changeRecord.getPuts());
+    Assert.assertEquals(Collections.singleton("removedKey"), changeRecord.getRemoves());
+
+    ChangeRecord<String, String> clearRecord = changeRecords.get(1);
+    Assert.assertTrue(clearRecord.isCleared());
+    Assert.assertEquals(changeRecord.getSequence() + 1, clearRecord.getSequence());
+    Assert.assertEquals(Collections.singleton("keyAfterClear"), clearRecord.getPuts().keySet());
+
+    subscription.close();
+    transactionalMap.startTransaction(3);
+    transactionalMap.put("keyAfterClose", "value");
+    transactionalMap.commitTransaction();
+    Assert.assertEquals(2, changeRecords.size());
+  }
+
   @Test
   public void testClear() {
     RememberManipulationCallsMap<String, String> wrapped = new RememberManipulationCallsMap<>();
@@ -156,6 +271,39 @@ public class ReadCommitedTransactionalMapTest {
     Assert.assertNull(callInfo);
   }
 
+  @Test
+  public void testClearByStoreSwap() {
+    Map<String, String> originalStore = new HashMap<>();
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(originalStore);
+    List<Map<String, String>> createdStores = new ArrayList<>();
+    transactionalMap.setClearStoreFactory(() -> {
+      Map<String, String> store = new HashMap<>();
+      createdStores.add(store);
+      return store;
+    });
+    transactionalMap.put("oldKey", "oldValue");
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.clear();
+    transactionalMap.put("newKey", "newValue");
+    transactionalMap.put("expiringKey", "value", 0, TimeUnit.NANOSECONDS);
+    Assert.assertEquals("oldValue", originalStore.get("oldKey"));
+    transactionalMap.commitTransaction();
+
+    Assert.assertEquals(1, createdStores.size());
+    Assert.assertEquals(Collections.singletonMap("oldKey", "oldValue"), originalStore);
+    Assert.assertFalse(transactionalMap.containsKey("oldKey"));
+    Assert.assertFalse(transactionalMap.containsKey("expiringKey"));
+    Assert.assertEquals("newValue", transactionalMap.get("newKey"));
+    Assert.assertEquals(1, transactionalMap.size());
+
+    transactionalMap.clear();
+    Assert.assertEquals(2, createdStores.size());
+    Assert.assertTrue(transactionalMap.isEmpty());
+    Assert.assertEquals("newValue", createdStores.get(0).get("newKey"));
+  }
+
   @Test
   public void testCommitWithoutAnyChange() {
     ReadCommitedTransactionalMap<String, String> transactionalMap =
@@ -167,6 +315,44 @@ public class ReadCommitedTransactionalMapTest {
     Assert.assertEquals(1, transactionalMap.size());
   }
 
+  @Test
+  public void testContainsValueWithValueCountIndex() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("key1", "value1");
+    transactionalMap.put("key2", "shared");
+    transactionalMap.enableValueCountIndex();
+    transactionalMap.put("key3", "shared");
+
+    Assert.assertTrue(transactionalMap.containsValue("value1"));
+    Assert.assertTrue(transactionalMap.containsValue("shared"));
+    Assert.assertFalse(transactionalMap.containsValue("value2"));
+
+    transactionalMap.startTransaction(0);
+    Assert.assertTrue(transactionalMap.containsValue("value1"));
+    transactionalMap.remove("key2");
+    Assert.assertTrue(transactionalMap.containsValue("shared"));
+    transactionalMap.put("key3", "value3");
+    Assert.assertFalse(transactionalMap.containsValue("shared"));
+    Assert.assertTrue(transactionalMap.containsValue("value3"));
+    transactionalMap.put("key1", "shared");
+    Assert.assertFalse(transactionalMap.containsValue("value1"));
+    Assert.assertTrue(transactionalMap.containsValue("shared"));
+    transactionalMap.commitTransaction();
+
+    Assert.assertFalse(transactionalMap.containsValue("value1"));
+    Assert.assertTrue(transactionalMap.containsValue("value3"));
+    transactionalMap.remove("key1");
+    Assert.assertFalse(transactionalMap.containsValue("shared"));
+
+    transactionalMap.startTransaction(1);
+    transactionalMap.clear();
+    Assert.assertFalse(transactionalMap.containsValue("value3"));
+    transactionalMap.rollbackTransaction();
+    transactionalMap.clear();
+    Assert.assertFalse(transactionalMap.containsValue("value3"));
+  }
+
   @Test
   public void testEntrySetKeySetSizeContainsXAndValues() {
     ReadCommitedTransactionalMap<String, String> map =
@@ -186,6 +372,52 @@ public class ReadCommitedTransactionalMapTest {
     assertEntrySetKeySetSizeContainsXAndValue(map);
   }
 
+  @Test
+  public void testGetAllLoadsMissingKeysInOneCall() {
+    List<Collection<? extends String>> bulkLoads = new ArrayList<>();
+    CacheLoader<String, String> cacheLoader = new CacheLoader<String, String>() {
+
+      @Override
+      public String load(final String key) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Map<String, String> loadAll(final Collection<? extends String> keys) {
+        bulkLoads.add(new ArrayList<>(keys));
+        Map<String, String> result = new HashMap<>();
+        for (String key : keys) {
+          if (!"missingKey".equals(key)) {
+            result.put(key, "loaded_" + key);
+          }
+        }
+        return result;
+      }
+    };
+    ReadCommitedTransactionalMap<String, String> map =
+        new ReadCommitedTransactionalMap<>(null, cacheLoader);
+    map.put("committedKey", "committedValue");
+
+    Map<String, String> result =
+        map.getAll(Arrays.asList("committedKey", "key1", "key2", "missingKey"));
+    Assert.assertEquals(3, result.size());
+    Assert.assertEquals("committedValue", result.get("committedKey"));
+    Assert.assertEquals("loaded_key1", result.get("key1"));
+    Assert.assertEquals("loaded_key2", result.get("key2"));
+    Assert.assertEquals(1, bulkLoads.size());
+    Assert.assertEquals(3, bulkLoads.get(0).size());
+
+    map.startTransaction(0);
+    map.remove("key1");
+    map.put("key3", "value3");
+    result = map.getAll(Arrays.asList("key1", "key2", "key3"));
+    Assert.assertEquals(2, result.size());
+    Assert.assertEquals("loaded_key2", result.get("key2"));
+    Assert.assertEquals("value3", result.get("key3"));
+    Assert.assertEquals(1, bulkLoads.size());
+    map.rollbackTransaction();
+  }
+
   @Test
   public void testIllegalCommitWithNoSuspendedTransaction() {
     callWithExpectedException(IllegalStateException.class,
@@ -249,6 +481,104 @@ public class ReadCommitedTransactionalMapTest {
         () -> new ReadCommitedTransactionalMap<>(null).suspendTransaction());
   }
 
+  @Test
+  public void testPostCommitHookFailures() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    List<String> delivered = new ArrayList<>();
+    List<RuntimeException> failures = new ArrayList<>();
+    Consumer<ChangeRecord<String, String>> hook = (changeRecord) -> {
+      if (changeRecord.getPuts().containsKey("failing")) {
+        throw new IllegalStateException("Hook failure");
+      }
+      delivered.addAll(changeRecord.getPuts().keySet());
+    };
+    ChangeSubscription keptSubscription = transactionalMap.addPostCommitHook(hook, Runnable::run,
+        (changeRecord, e) -> failures.add(e), false);
+
+    transactionalMap.put("failing", "value");
+    transactionalMap.put("key", "value");
+    Assert.assertEquals(1, failures.size());
+    Assert.assertEquals(Collections.singletonList("key"), delivered);
+    Assert.assertFalse(keptSubscription.isDropped());
+    keptSubscription.close();
+
+    ChangeSubscription droppedSubscription = transactionalMap.addPostCommitHook(hook,
+        (task) -> {
+          throw new RejectedExecutionException();
+        }, (changeRecord, e) -> failures.add(e), true);
+    transactionalMap.put("otherKey", "value");
+    Assert.assertEquals(2, failures.size());
+    Assert.assertTrue(failures.get(1) instanceof RejectedExecutionException);
+    Assert.assertTrue(droppedSubscription.isDropped());
+  }
+
+  @Test
+  public void testPreAndPostCommitHooks() throws Exception {
+    ReadCommitedTransactionalMap<String, Integer> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    PreCommitHook<String, Integer> noNegativeValues = (transaction, cleared, removes, puts) -> {
+      if (puts.values().stream().anyMatch((value) -> value < 0)) {
+        throw new IllegalArgumentException("Negative value in transaction " + transaction);
+      }
+    };
+    transactionalMap.addPreCommitHook(noNegativeValues);
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.put("a", -1);
+    callWithExpectedException(IllegalArgumentException.class,
+        transactionalMap::prepareTransaction);
+    callWithExpectedException(IllegalArgumentException.class,
+        transactionalMap::commitTransaction);
+    Assert.assertEquals(0, transactionalMap.getAssociatedTransaction());
+    transactionalMap.rollbackTransaction();
+    Assert.assertFalse(transactionalMap.containsKey("a"));
+
+    CountDownLatch hookBlocked = new CountDownLatch(1);
+    BlockingQueue<ChangeRecord<String, Integer>> records = new LinkedBlockingQueue<>();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ChangeSubscription subscription = transactionalMap.addPostCommitHook((changeRecord) -> {
+        try {
+          hookBlocked.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        records.add(changeRecord);
+      }, executor);
+
+      // The commits do not wait for the blocked hook
+      transactionalMap.startTransaction(1);
+      transactionalMap.put("a", 1);
+      transactionalMap.remove("b");
+      transactionalMap.prepareTransaction();
+      transactionalMap.commitTransaction();
+      transactionalMap.put("b", 2);
+      Assert.assertTrue(records.isEmpty());
+
+      hookBlocked.countDown();
+      ChangeRecord<String, Integer> first = records.poll(10, TimeUnit.SECONDS);
+      Assert.assertEquals(Collections.singletonMap("a", 1), first.getPuts());
+      // The removal of an absent key is not published
+      Assert.assertEquals(Collections.emptySet(), first.getRemoves());
+      ChangeRecord<String, Integer> second = records.poll(10, TimeUnit.SECONDS);
+      Assert.assertEquals(Collections.singletonMap("b", 2), second.getPuts());
+
+      subscription.close();
+      transactionalMap.removePreCommitHook(noNegativeValues);
+      transactionalMap.startTransaction(2);
+      transactionalMap.put("c", -3);
+      transactionalMap.commitTransaction();
+      Assert.assertEquals(Integer.valueOf(-3), transactionalMap.get("c"));
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertTrue(records.isEmpty());
+      Assert.assertFalse(subscription.isDropped());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testPutAll() {
     ReadCommitedTransactionalMap<String, String> transactionalMap =
@@ -270,6 +600,138 @@ public class ReadCommitedTransactionalMapTest {
     Assert.assertEquals(3, transactionalMap.size());
   }
 
+  @Test
+  public void testReadOnlyTransaction() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("key1", "committed1");
+    transactionalMap.put("key2", "committed2");
+
+    transactionalMap.startReadOnlyTransaction(0);
+    Assert.assertEquals("committed1", transactionalMap.get("key1"));
+    Assert.assertTrue(transactionalMap.containsKey("key2"));
+    Assert.assertEquals(2, transactionalMap.size());
+    Assert.assertEquals(2, transactionalMap.getAll(Arrays.asList("key1", "key2", "key3")).size());
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.put("key3", "value3"));
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.remove("key1"));
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.merge("key1", "value1", String::concat));
+    callWithExpectedException(IllegalStateException.class, transactionalMap::clear);
+    transactionalMap.suspendTransaction();
+
+    transactionalMap.put("key1", "committed3");
+    transactionalMap.resumeTransaction(0);
+    Assert.assertEquals("committed3", transactionalMap.get("key1"));
+    transactionalMap.commitTransaction();
+
+    // A transaction reads the committed state directly until its first change
+    transactionalMap.startTransaction(1);
+    Savepoint savepoint = transactionalMap.setSavepoint();
+    Assert.assertEquals("committed3", transactionalMap.get("key1"));
+    transactionalMap.remove("key1");
+    transactionalMap.put("key3", "value3");
+    Assert.assertNull(transactionalMap.get("key1"));
+    Assert.assertEquals(2, transactionalMap.size());
+    transactionalMap.rollbackToSavepoint(savepoint);
+    Assert.assertEquals("committed3", transactionalMap.get("key1"));
+    Assert.assertFalse(transactionalMap.containsKey("key3"));
+    Assert.assertEquals(2, transactionalMap.size());
+    transactionalMap.rollbackTransaction();
+  }
+
+  @Test
+  public void testReadThroughLoading() {
+    AtomicInteger loadCount = new AtomicInteger();
+    ReadCommitedTransactionalMap<String, String> map =
+        new ReadCommitedTransactionalMap<>(null, (key) -> {
+          loadCount.incrementAndGet();
+          return "missingKey".equals(key) ? null : "loaded_" + key;
+        });
+
+    Assert.assertEquals("loaded_key", map.get("key"));
+    Assert.assertEquals("loaded_key", map.get("key"));
+    Assert.assertEquals(1, loadCount.get());
+    Assert.assertTrue(map.containsKey("key"));
+
+    Assert.assertNull(map.get("missingKey"));
+    Assert.assertFalse(map.containsKey("missingKey"));
+
+    map.startTransaction(0);
+    Assert.assertEquals("loaded_keyInTransaction", map.get("keyInTransaction"));
+    map.remove("key");
+    Assert.assertNull(map.get("key"));
+    map.put("putKey", "value");
+    Assert.assertEquals("value", map.get("putKey"));
+    int loadCountInTransaction = loadCount.get();
+    map.rollbackTransaction();
+
+    Assert.assertEquals(3, loadCountInTransaction);
+    Assert.assertEquals("loaded_keyInTransaction", map.get("keyInTransaction"));
+    Assert.assertEquals("loaded_key", map.get("key"));
+    Assert.assertEquals(3, loadCount.get());
+  }
+
+  @Test
+  public void testReadThroughLoadingIsDoneOnceForConcurrentMisses() throws Exception {
+    AtomicInteger loadCount = new AtomicInteger();
+    CountDownLatch loadStarted = new CountDownLatch(1);
+    CountDownLatch finishLoad = new CountDownLatch(1);
+    ReadCommitedTransactionalMap<String, String> map =
+        new ReadCommitedTransactionalMap<>(null, (key) -> {
+          loadCount.incrementAndGet();
+          loadStarted.countDown();
+          try {
+            finishLoad.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return "value";
+        });
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> futures = new ArrayList<>();
+      futures.add(executor.submit(() -> map.get("key")));
+      loadStarted.await();
+      for (int i = 0; i < 3; i++) {
+        futures.add(executor.submit(() -> map.get("key")));
+      }
+      finishLoad.countDown();
+      for (Future<String> future : futures) {
+        Assert.assertEquals("value", future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(1, loadCount.get());
+  }
+
+  @Test
+  public void testRemoveAbsentKeyIsNotPublished() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("key", "value");
+    long sequence = transactionalMap.getCommitSequence();
+
+    List<ChangeRecord<String, String>> changeRecords = new ArrayList<>();
+    ChangeSubscription subscription = transactionalMap.subscribeChanges(changeRecords::add, 16,
+        OverflowStrategy.DROP_CONSUMER, Runnable::run);
+
+    Assert.assertNull(transactionalMap.remove("absentKey"));
+    transactionalMap.startTransaction(0);
+    transactionalMap.remove("absentKey");
+    transactionalMap.commitTransaction();
+    Assert.assertEquals(sequence, transactionalMap.getCommitSequence());
+    Assert.assertTrue(changeRecords.isEmpty());
+
+    Assert.assertEquals("value", transactionalMap.remove("key"));
+    Assert.assertEquals(sequence + 1, transactionalMap.getCommitSequence());
+    Assert.assertEquals(Collections.singleton("key"), changeRecords.get(0).getRemoves());
+    subscription.close();
+  }
+
   @Test
   public void testRemoveAndPutWithinTransaction() {
     ReadCommitedTransactionalMap<String, String> transactionalMap =
@@ -302,6 +764,217 @@ public class ReadCommitedTransactionalMapTest {
     Assert.assertFalse(transactionalMap.containsKey("insideTransactionKey"));
   }
 
+  @Test
+  public void testSavepoints() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("key1", "committed1");
+    transactionalMap.put("key2", "committed2");
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.put("key1", "value1");
+    Savepoint savepoint = transactionalMap.setSavepoint();
+    transactionalMap.remove("key1");
+    transactionalMap.put("key3", "value3");
+
+    Savepoint nestedSavepoint = transactionalMap.setSavepoint();
+    transactionalMap.clear();
+    transactionalMap.put("key4", "value4");
+    transactionalMap.rollbackToSavepoint(nestedSavepoint);
+    Assert.assertFalse(transactionalMap.containsKey("key1"));
+    Assert.assertEquals("committed2", transactionalMap.get("key2"));
+    Assert.assertEquals("value3", transactionalMap.get("key3"));
+    Assert.assertFalse(transactionalMap.containsKey("key4"));
+
+    transactionalMap.rollbackToSavepoint(savepoint);
+    Assert.assertEquals("value1", transactionalMap.get("key1"));
+    Assert.assertFalse(transactionalMap.containsKey("key3"));
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.rollbackToSavepoint(nestedSavepoint));
+
+    transactionalMap.put("key2", "value2");
+    transactionalMap.releaseSavepoint(savepoint);
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.rollbackToSavepoint(savepoint));
+    transactionalMap.commitTransaction();
+
+    Assert.assertEquals("value1", transactionalMap.get("key1"));
+    Assert.assertEquals("value2", transactionalMap.get("key2"));
+    Assert.assertEquals(2, transactionalMap.size());
+
+    transactionalMap.startTransaction(1);
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.releaseSavepoint(savepoint));
+    transactionalMap.rollbackTransaction();
+    callWithExpectedException(IllegalStateException.class, transactionalMap::setSavepoint);
+  }
+
+  @Test
+  public void testSecondaryIndex() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("apple", "red");
+    transactionalMap.put("cherry", "red");
+    SecondaryIndex<String, String, Integer> lengthIndex = transactionalMap.addIndex(String::length);
+    transactionalMap.put("banana", "yellow");
+
+    Assert.assertEquals(new HashSet<>(Arrays.asList("apple", "cherry")),
+        transactionalMap.getByIndex(lengthIndex, 3).keySet());
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.put("apple", "green");
+    transactionalMap.remove("cherry");
+    transactionalMap.put("strawberry", "red");
+    Assert.assertEquals(Collections.singletonMap("strawberry", "red"),
+        transactionalMap.getByIndex(lengthIndex, 3));
+    Assert.assertEquals(Collections.singletonMap("apple", "green"),
+        transactionalMap.getByIndex(lengthIndex, 5));
+
+    transactionalMap.suspendTransaction();
+    Assert.assertEquals(2, transactionalMap.getByIndex(lengthIndex, 3).size());
+    Assert.assertTrue(transactionalMap.getByIndex(lengthIndex, 5).isEmpty());
+    transactionalMap.resumeTransaction(0);
+    transactionalMap.commitTransaction();
+
+    Assert.assertEquals(Collections.singletonMap("strawberry", "red"),
+        transactionalMap.getByIndex(lengthIndex, 3));
+    Assert.assertEquals(Collections.singleton("banana"),
+        transactionalMap.getByIndex(lengthIndex, 6).keySet());
+
+    transactionalMap.startTransaction(1);
+    transactionalMap.clear();
+    transactionalMap.put("kiwi", "brown");
+    Assert.assertEquals(Collections.singletonMap("kiwi", "brown"),
+        transactionalMap.getByIndex(lengthIndex, 5));
+    transactionalMap.commitTransaction();
+    Assert.assertTrue(transactionalMap.getByIndex(lengthIndex, 3).isEmpty());
+
+    transactionalMap.removeIndex(lengthIndex);
+    callWithExpectedException(IllegalArgumentException.class,
+        () -> transactionalMap.getByIndex(lengthIndex, 5));
+  }
+
+  @Test
+  public void testSlowChangeConsumerIsDropped() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    List<Runnable> pendingTasks = new ArrayList<>();
+    List<ChangeRecord<String, String>> changeRecords = new ArrayList<>();
+    ChangeSubscription subscription = transactionalMap.subscribeChanges(changeRecords::add, 2,
+        OverflowStrategy.DROP_CONSUMER, pendingTasks::add);
+
+    for (int i = 0; i < 3; i++) {
+      transactionalMap.startTransaction(i);
+      transactionalMap.put("key" + i, "value");
+      transactionalMap.commitTransaction();
+    }
+
+    Assert.assertTrue(subscription.isDropped());
+    Assert.assertEquals(3, transactionalMap.size());
+    for (Runnable task : pendingTasks) {
+      task.run();
+    }
+    Assert.assertEquals(0, changeRecords.size());
+  }
+
+  @Test
+  public void testSnapshotExportAndImport() throws IOException {
+    ReadCommitedTransactionalMap<String, Integer> source =
+        new ReadCommitedTransactionalMap<>(null);
+    for (int i = 0; i < 1000; i++) {
+      source.put("key" + i, i);
+    }
+    source.startTransaction(0);
+    source.put("uncommitted", -1);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    long exportedSequence = source.exportSnapshot(Channels.newChannel(bytes),
+        SnapshotCodec.STRING, SnapshotCodec.INTEGER);
+    source.rollbackTransaction();
+    Assert.assertEquals(source.getCommitSequence(), exportedSequence);
+
+    ReadCommitedTransactionalMap<String, Integer> target =
+        new ReadCommitedTransactionalMap<>(null);
+    target.put("old", 0);
+    SecondaryIndex<String, Integer, Boolean> evenIndex =
+        target.addIndex((value) -> value % 2 == 0);
+    target.startTransaction(1);
+    target.put("pending", 1);
+    target.suspendTransaction();
+
+    long importedSequence = target.importSnapshot(
+        Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), SnapshotCodec.STRING,
+        SnapshotCodec.INTEGER);
+    Assert.assertEquals(exportedSequence, importedSequence);
+    Assert.assertEquals(1000, target.size());
+    Assert.assertEquals(Integer.valueOf(999), target.get("key999"));
+    Assert.assertFalse(target.containsKey("old"));
+    Assert.assertFalse(target.containsKey("uncommitted"));
+    Assert.assertEquals(500, target.getByIndex(evenIndex, true).size());
+
+    target.resumeTransaction(1);
+    target.commitTransaction();
+    Assert.assertEquals(1001, target.size());
+
+    try {
+      target.importSnapshot(Channels.newChannel(new ByteArrayInputStream(new byte[16])),
+          SnapshotCodec.STRING, SnapshotCodec.INTEGER);
+      Assert.fail("Import should fail on a channel without snapshot");
+    } catch (IOException e) {
+      Assert.assertEquals(1001, target.size());
+    }
+  }
+
+  @Test
+  public void testStampedLockStrategy() throws Exception {
+    ReadCommitedTransactionalMap<String, Integer> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null, null, LockStrategy.STAMPED);
+    transactionalMap.put("a", 0);
+    transactionalMap.put("b", 0);
+    transactionalMap.put("expiring", 0, 1, TimeUnit.MILLISECONDS);
+    int commitCount = 2000;
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Future<?> writer = executor.submit(() -> {
+        for (int i = 1; i <= commitCount; i++) {
+          transactionalMap.startTransaction(i);
+          transactionalMap.put("a", i);
+          transactionalMap.put("b", -i);
+          transactionalMap.commitTransaction();
+        }
+      });
+      List<Future<?>> readers = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        readers.add(executor.submit(() -> {
+          int lastSeen = 0;
+          while (lastSeen < commitCount) {
+            Integer value = transactionalMap.get("a");
+            Assert.assertTrue(value >= lastSeen);
+            Assert.assertTrue(transactionalMap.containsKey("b"));
+            lastSeen = value;
+          }
+        }));
+      }
+      writer.get();
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    Assert.assertEquals(Integer.valueOf(-commitCount), transactionalMap.get("b"));
+    Assert.assertNull(transactionalMap.get("expiring"));
+    Assert.assertFalse(transactionalMap.containsKey("expiring"));
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.remove("a");
+    Assert.assertFalse(transactionalMap.containsKey("a"));
+    transactionalMap.rollbackTransaction();
+    Assert.assertEquals(Integer.valueOf(commitCount), transactionalMap.get("a"));
+  }
+
   @Test
   public void testSuspendAndResume() {
     RememberManipulationCallsMap<String, String> wrapped = new RememberManipulationCallsMap<>();
@@ -351,4 +1024,166 @@ public class ReadCommitedTransactionalMapTest {
     Assert.assertEquals("value1", transactionalMap.get("keyWithinBothTransaction"));
 
   }
+
+  @Test
+  public void testTimeToLive() {
+    RememberManipulationCallsMap<String, String> wrapped = new RememberManipulationCallsMap<>();
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(wrapped);
+    AtomicLong nanos = new AtomicLong();
+    transactionalMap.setTicker(nanos::get);
+
+    transactionalMap.put("expiringKey", "value", 50, TimeUnit.MILLISECONDS);
+    transactionalMap.put("expiringKeyOverwrittenWithoutTimeToLive", "value", 50,
+        TimeUnit.MILLISECONDS);
+    transactionalMap.put("expiringKeyOverwrittenWithoutTimeToLive", "value");
+    transactionalMap.put("persistentKey", "value");
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.put("keyExpiringAfterCommit", "value", 50, TimeUnit.MILLISECONDS);
+    transactionalMap.put("keyRemovedInTransaction", "value", 50, TimeUnit.MILLISECONDS);
+    transactionalMap.remove("keyRemovedInTransaction");
+    transactionalMap.put("keyRemovedInTransaction", "value");
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    Assert.assertEquals("value", transactionalMap.get("keyExpiringAfterCommit"));
+    Assert.assertFalse(transactionalMap.containsKey("expiringKey"));
+    Assert.assertNull(transactionalMap.get("expiringKey"));
+    transactionalMap.commitTransaction();
+
+    Assert.assertEquals("value", transactionalMap.get("keyExpiringAfterCommit"));
+    Assert.assertEquals(4, transactionalMap.size());
+    Assert.assertFalse(wrapped.containsKey("expiringKey"));
+
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    Assert.assertNull(transactionalMap.get("keyExpiringAfterCommit"));
+    Assert.assertEquals(3, transactionalMap.size());
+    Assert.assertFalse(transactionalMap.keySet().contains("keyExpiringAfterCommit"));
+    Assert.assertEquals(3, transactionalMap.values().size());
+    Assert.assertNull(transactionalMap.remove("keyExpiringAfterCommit"));
+    Assert.assertEquals("value", transactionalMap.get("expiringKeyOverwrittenWithoutTimeToLive"));
+    Assert.assertEquals("value", transactionalMap.get("keyRemovedInTransaction"));
+    Assert.assertEquals("value", transactionalMap.get("persistentKey"));
+  }
+
+  @Test
+  public void testTimeToLiveSizeWithCommitListener() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    AtomicLong nanos = new AtomicLong();
+    transactionalMap.setTicker(nanos::get);
+    List<ChangeRecord<String, String>> changeRecords = new ArrayList<>();
+    transactionalMap.subscribeChanges(changeRecords::add, 16, OverflowStrategy.DROP_CONSUMER,
+        Runnable::run);
+
+    transactionalMap.put("expiringKey", "value", 50, TimeUnit.MILLISECONDS);
+    transactionalMap.put("persistentKey", "value");
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+
+    // The expired entry is not counted only after a write removed it
+    Assert.assertNull(transactionalMap.get("expiringKey"));
+    Assert.assertEquals(2, transactionalMap.size());
+    transactionalMap.put("otherKey", "value");
+    Assert.assertEquals(2, transactionalMap.size());
+    Assert.assertEquals(Collections.singleton("expiringKey"),
+        changeRecords.get(changeRecords.size() - 1).getRemoves());
+  }
+
+  @Test
+  public void testTwoPhaseCommit() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("key1", "committed1");
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.put("key1", "value1");
+    transactionalMap.prepareTransaction();
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.put("key2", "value2"));
+    transactionalMap.suspendTransaction();
+
+    Assert.assertEquals("committed1", transactionalMap.get("key1"));
+
+    transactionalMap.startTransaction(1);
+    transactionalMap.put("key1", "conflictingValue");
+    callWithExpectedException(IllegalStateException.class,
+        transactionalMap::prepareTransaction);
+    callWithExpectedException(IllegalStateException.class, transactionalMap::commitTransaction);
+    transactionalMap.rollbackTransaction();
+
+    transactionalMap.startTransaction(2);
+    transactionalMap.clear();
+    callWithExpectedException(IllegalStateException.class,
+        transactionalMap::prepareTransaction);
+    transactionalMap.rollbackTransaction();
+
+    transactionalMap.startTransaction(3);
+    transactionalMap.put("key2", "value2");
+    transactionalMap.prepareTransaction();
+    transactionalMap.commitTransaction();
+
+    transactionalMap.resumeTransaction(0);
+    transactionalMap.commitTransaction();
+    Assert.assertEquals("value1", transactionalMap.get("key1"));
+    Assert.assertEquals("value2", transactionalMap.get("key2"));
+
+    transactionalMap.startTransaction(4);
+    transactionalMap.put("key1", "rolledBackValue");
+    transactionalMap.prepareTransaction();
+    transactionalMap.rollbackTransaction();
+
+    transactionalMap.startTransaction(5);
+    transactionalMap.put("key1", "value5");
+    transactionalMap.commitTransaction();
+    Assert.assertEquals("value5", transactionalMap.get("key1"));
+  }
+
+  @Test
+  public void testTwoPhaseCommitWithWritesOutsideTransactions() {
+    ReadCommitedTransactionalMap<String, String> transactionalMap =
+        new ReadCommitedTransactionalMap<>(null);
+    transactionalMap.put("key1", "committed1");
+
+    transactionalMap.startTransaction(0);
+    transactionalMap.put("key1", "value1");
+    transactionalMap.prepareTransaction();
+    transactionalMap.suspendTransaction();
+
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.put("key1", "outsideValue"));
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.remove("key1"));
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.merge("key1", "outsideValue", String::concat));
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.put("key1", "outsideValue", 1, TimeUnit.SECONDS));
+    callWithExpectedException(IllegalStateException.class,
+        () -> transactionalMap.putAll(Collections.singletonMap("key1", "outsideValue")));
+    callWithExpectedException(IllegalStateException.class, transactionalMap::clear);
+    Assert.assertEquals("committed1", transactionalMap.get("key1"));
+
+    transactionalMap.put("key2", "value2");
+    Assert.assertEquals("value2", transactionalMap.get("key2"));
+
+    transactionalMap.resumeTransaction(0);
+    transactionalMap.commitTransaction();
+    Assert.assertEquals("value1", transactionalMap.get("key1"));
+
+    transactionalMap.put("key1", "outsideValue");
+    Assert.assertEquals("outsideValue", transactionalMap.get("key1"));
+  }
+
+  @Test
+  public void testViewsOutsideTransactionAreUnmodifiable() {
+    ReadCommitedTransactionalMap<String, String> map =
+        new ReadCommitedTransactionalMap<>(null);
+    map.put("key", "value");
+
+    callWithExpectedException(UnsupportedOperationException.class, map.entrySet()::clear);
+    callWithExpectedException(UnsupportedOperationException.class,
+        () -> map.keySet().remove("key"));
+    callWithExpectedException(UnsupportedOperationException.class,
+        () -> map.values().remove("value"));
+    Assert.assertEquals("value", map.get("key"));
+    Assert.assertEquals(1, map.getCommitSequence());
+  }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadCommitedTransactionalNavigableMapTest {
+
+  private ReadCommitedTransactionalNavigableMap<Integer, String> createMap() {
+    ReadCommitedTransactionalNavigableMap<Integer, String> map =
+        new ReadCommitedTransactionalNavigableMap<>();
+    for (int i = 0; i < 10; i += 2) {
+      map.put(i, "committed" + i);
+    }
+    return map;
+  }
+
+  @Test
+  public void testClearedTransactionHidesCommittedState() {
+    ReadCommitedTransactionalNavigableMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    map.clear();
+    map.put(5, "value5");
+    Assert.assertEquals(Arrays.asList(5), new ArrayList<>(map.keySet()));
+    Assert.assertEquals(Integer.valueOf(5), map.firstKey());
+    Assert.assertNull(map.lowerKey(5));
+    map.rollbackTransaction();
+    Assert.assertEquals(Integer.valueOf(0), map.firstKey());
+  }
+
+  @Test
+  public void testComparator() {
+    ReadCommitedTransactionalNavigableMap<Integer, String> map =
+        new ReadCommitedTransactionalNavigableMap<>(Comparator.reverseOrder());
+    map.put(1, "value1");
+    map.startTransaction(0);
+    map.put(2, "value2");
+    Assert.assertEquals(Arrays.asList(2, 1), new ArrayList<>(map.keySet()));
+    Assert.assertEquals(Arrays.asList(1, 2), new ArrayList<>(map.descendingKeySet()));
+    map.commitTransaction();
+    Assert.assertEquals(Integer.valueOf(2), map.firstKey());
+  }
+
+  @Test
+  public void testNavigationWithinTransaction() {
+    ReadCommitedTransactionalNavigableMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    map.put(3, "value3");
+    map.remove(4);
+    map.put(6, "value6");
+
+    Assert.assertEquals(Integer.valueOf(6), map.ceilingKey(4));
+    Assert.assertEquals(Integer.valueOf(3), map.floorKey(4));
+    Assert.assertEquals(Integer.valueOf(6), map.higherKey(3));
+    Assert.assertEquals(Integer.valueOf(2), map.lowerKey(3));
+    Assert.assertEquals("value6", map.ceilingEntry(5).getValue());
+    Assert.assertEquals(Integer.valueOf(0), map.firstKey());
+    Assert.assertEquals(Integer.valueOf(8), map.lastKey());
+    Assert.assertFalse(map.containsKey(4));
+
+    map.suspendTransaction();
+    Assert.assertEquals(Integer.valueOf(4), map.ceilingKey(3));
+    Assert.assertEquals("committed6", map.get(6));
+    map.resumeTransaction(0);
+
+    Assert.assertEquals(Arrays.asList(0, 2, 3, 6, 8), new ArrayList<>(map.keySet()));
+    Assert.assertEquals(5, map.size());
+    map.commitTransaction();
+    Assert.assertEquals(Arrays.asList(0, 2, 3, 6, 8), new ArrayList<>(map.keySet()));
+    Assert.assertEquals("value6", map.get(6));
+  }
+
+  @Test
+  public void testPollWithinTransaction() {
+    ReadCommitedTransactionalNavigableMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    Assert.assertEquals(5, map.size());
+    map.put(-1, "value-1");
+    Assert.assertEquals(Integer.valueOf(-1), map.pollFirstEntry().getKey());
+    Assert.assertEquals(Integer.valueOf(0), map.pollFirstEntry().getKey());
+    Assert.assertEquals(Integer.valueOf(8), map.pollLastEntry().getKey());
+    Assert.assertEquals(5, map.size() + 2);
+    map.commitTransaction();
+    Assert.assertEquals(Arrays.asList(2, 4, 6), new ArrayList<>(map.keySet()));
+  }
+
+  @Test
+  public void testRangeViewsReflectOverlay() {
+    ReadCommitedTransactionalNavigableMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    map.put(5, "value5");
+    map.remove(6);
+
+    NavigableMap<Integer, String> subMap = map.subMap(2, true, 8, false);
+    Assert.assertEquals(Arrays.asList(2, 4, 5), new ArrayList<>(subMap.keySet()));
+    Assert.assertEquals(Arrays.asList(5, 4, 2),
+        new ArrayList<>(subMap.descendingMap().keySet()));
+    Assert.assertEquals(Arrays.asList(4, 5), new ArrayList<>(subMap.tailMap(3, true).keySet()));
+    Assert.assertNull(subMap.get(8));
+    Assert.assertNull(subMap.get(6));
+    Assert.assertEquals(Integer.valueOf(2), subMap.ceilingKey(-10));
+    Assert.assertEquals(Integer.valueOf(5), subMap.floorKey(100));
+
+    map.put(7, "value7");
+    List<String> values = new ArrayList<>(subMap.values());
+    Assert.assertEquals(Arrays.asList("committed2", "committed4", "value5", "value7"), values);
+
+    Entry<Integer, String> entry = map.headMap(5, true).lastEntry();
+    Assert.assertEquals(Integer.valueOf(5), entry.getKey());
+    try {
+      subMap.subMap(0, 4);
+      Assert.fail("Out of range view should not be created");
+    } catch (IllegalArgumentException e) {
+      Assert.assertNotNull(e);
+    }
+    try {
+      subMap.put(3, "value3");
+      Assert.fail("Views should be read-only");
+    } catch (UnsupportedOperationException e) {
+      Assert.assertNotNull(e);
+    }
+    map.rollbackTransaction();
+    Assert.assertEquals(Arrays.asList(2, 4, 6),
+        new ArrayList<>(map.subMap(2, true, 8, false).keySet()));
+  }
+
+  @Test
+  public void testTimeToLiveSkipsExpiredEntries() {
+    ReadCommitedTransactionalNavigableMap<Integer, String> map = createMap();
+    AtomicLong nanos = new AtomicLong();
+    map.setTicker(nanos::get);
+    map.put(3, "expiring", 50, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(Integer.valueOf(3), map.higherKey(2));
+
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    Assert.assertEquals(Integer.valueOf(4), map.higherKey(2));
+    Assert.assertEquals(5, map.size());
+    Assert.assertFalse(map.containsKey(3));
+    map.startTransaction(0);
+    Assert.assertEquals(Arrays.asList(2, 4),
+        new ArrayList<>(map.subMap(2, true, 4, true).keySet()));
+    map.rollbackTransaction();
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplicationTest {
+
+  private void awaitSequence(final ReplicaMap<?, ?> replica, final long sequence)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (replica.getAppliedSequence() < sequence) {
+      if (System.currentTimeMillis() > deadline) {
+        Assert.fail("Replica did not reach sequence " + sequence);
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  private void commitChanges(final ReadCommitedTransactionalMap<String, String> primary) {
+    primary.startTransaction(0);
+    primary.put("keyInTransaction", "value");
+    primary.remove("initialKey");
+    primary.commitTransaction();
+
+    primary.put("keyOutsideTransaction", "value");
+
+    primary.startTransaction(1);
+    primary.get("keyInTransaction");
+    primary.commitTransaction();
+  }
+
+  @Test
+  public void testInProcessReplication() {
+    ReadCommitedTransactionalMap<String, String> primary =
+        new ReadCommitedTransactionalMap<>(null);
+    primary.put("initialKey", "value");
+    primary.put("otherInitialKey", "value");
+
+    ReplicaMap<String, String> replica = new ReplicaMap<>();
+    ChangeSubscription subscription = primary.addReplica(replica, 16, Runnable::run);
+    Assert.assertEquals(primary.getCommitSequence(), replica.getAppliedSequence());
+    Assert.assertEquals(2, replica.size());
+
+    commitChanges(primary);
+    Assert.assertEquals(primary.getCommitSequence(), replica.getAppliedSequence());
+    Assert.assertEquals(primary.keySet(), replica.keySet());
+
+    subscription.close();
+    primary.put("keyAfterClose", "value");
+    Assert.assertFalse(replica.containsKey("keyAfterClose"));
+  }
+
+  @Test
+  public void testOutOfOrderRecordsAreBuffered() {
+    ReadCommitedTransactionalMap<String, String> primary =
+        new ReadCommitedTransactionalMap<>(null);
+    List<ChangeRecord<String, String>> records = new ArrayList<>();
+    primary.subscribeChanges(records::add, 16,
+        ChangeSubscription.OverflowStrategy.DROP_CONSUMER, Runnable::run);
+
+    primary.clear();
+    primary.put("key1", "value");
+    primary.put("key2", "value");
+
+    ReplicaMap<String, String> replica = new ReplicaMap<>();
+    replica.apply(records.subList(2, 3));
+    Assert.assertEquals(-1, replica.getAppliedSequence());
+    replica.apply(records.subList(0, 1));
+    Assert.assertEquals(1, replica.getPendingRecordCount());
+    Assert.assertFalse(replica.containsKey("key2"));
+    replica.apply(records.subList(1, 2));
+    Assert.assertEquals(0, replica.getPendingRecordCount());
+    Assert.assertEquals(records.get(2).getSequence(), replica.getAppliedSequence());
+    Assert.assertEquals(2, replica.size());
+  }
+
+  @Test
+  public void testReplicationLagGrowsWhileRecordsArePending() throws InterruptedException {
+    ReadCommitedTransactionalMap<String, String> primary =
+        new ReadCommitedTransactionalMap<>(null);
+    List<ChangeRecord<String, String>> records = new ArrayList<>();
+    primary.subscribeChanges(records::add, 16,
+        ChangeSubscription.OverflowStrategy.DROP_CONSUMER, Runnable::run);
+
+    primary.clear();
+    Thread.sleep(20);
+    primary.put("key1", "value");
+    primary.put("key2", "value");
+
+    ReplicaMap<String, String> replica = new ReplicaMap<>();
+    replica.apply(records.subList(0, 1));
+    replica.apply(records.subList(2, 3));
+    Assert.assertEquals(1, replica.getPendingRecordCount());
+    Assert.assertTrue(replica.getReplicationLagMillis() >= 20);
+  }
+
+  @Test
+  public void testTcpReceiverClosesForeignStream() throws Exception {
+    ReplicaMap<String, String> replica = new ReplicaMap<>();
+    try (TcpReplicationReceiver<String, String> receiver = new TcpReplicationReceiver<>(replica,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SnapshotCodec.STRING,
+        SnapshotCodec.STRING);
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), receiver.getPort())) {
+      ByteArrayOutputStream serializedBatch = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(serializedBatch)) {
+        out.writeObject(new ArrayList<>());
+      }
+      socket.getOutputStream().write(serializedBatch.toByteArray());
+
+      socket.setSoTimeout(10000);
+      try {
+        Assert.assertEquals(-1, socket.getInputStream().read());
+      } catch (SocketException e) {
+        // The receiver reset the connection as it did not read the whole stream
+      }
+      Assert.assertEquals(-1, replica.getAppliedSequence());
+    }
+  }
+
+  @Test
+  public void testTcpReplication() throws Exception {
+    ReadCommitedTransactionalMap<String, String> primary =
+        new ReadCommitedTransactionalMap<>(null);
+    primary.put("initialKey", "value");
+
+    ReplicaMap<String, String> replica = new ReplicaMap<>();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (TcpReplicationReceiver<String, String> receiver = new TcpReplicationReceiver<>(replica,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SnapshotCodec.STRING,
+        SnapshotCodec.STRING);
+        TcpReplicationTransport<String, String> transport = new TcpReplicationTransport<>(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort()),
+            SnapshotCodec.STRING, SnapshotCodec.STRING)) {
+
+      primary.addReplica(transport, 16, executor);
+      commitChanges(primary);
+
+      awaitSequence(replica, primary.getCommitSequence());
+      Assert.assertEquals(primary.keySet(), replica.keySet());
+      Assert.assertTrue(replica.getReplicationLagMillis() >= 0);
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShardedReadCommitedTransactionalMapTest {
+
+  private static final int KEY_COUNT = 100;
+
+  private ShardedReadCommitedTransactionalMap<Integer, String> createMap() {
+    ShardedReadCommitedTransactionalMap<Integer, String> map =
+        new ShardedReadCommitedTransactionalMap<>(8);
+    for (int i = 0; i < KEY_COUNT; i++) {
+      map.put(i, "committed" + i);
+    }
+    return map;
+  }
+
+  @Test
+  public void testClearWithinTransaction() {
+    ShardedReadCommitedTransactionalMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    map.clear();
+    map.put(1, "new");
+    Assert.assertEquals(1, map.size());
+    Assert.assertEquals(1, map.entrySet().size());
+    map.suspendTransaction();
+    Assert.assertEquals(KEY_COUNT, map.size());
+
+    map.resumeTransaction(0);
+    map.commitTransaction();
+    Assert.assertEquals(1, map.size());
+    Assert.assertEquals("new", map.get(1));
+    Assert.assertFalse(map.containsValue("committed2"));
+  }
+
+  @Test
+  public void testCommitSpansSegments() {
+    ShardedReadCommitedTransactionalMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    for (int i = 0; i < KEY_COUNT; i += 2) {
+      map.put(i, "changed" + i);
+    }
+    map.remove(1);
+    map.put(KEY_COUNT, "added");
+    Assert.assertEquals("changed0", map.get(0));
+    Assert.assertFalse(map.containsKey(1));
+    Assert.assertEquals(KEY_COUNT, map.size());
+
+    map.suspendTransaction();
+    Assert.assertEquals("committed0", map.get(0));
+    Assert.assertTrue(map.containsKey(1));
+    Assert.assertNull(map.get(KEY_COUNT));
+
+    map.resumeTransaction(0);
+    map.commitTransaction();
+    Assert.assertEquals("changed0", map.get(0));
+    Assert.assertEquals("committed3", map.get(3));
+    Assert.assertFalse(map.containsKey(1));
+    Assert.assertEquals("added", map.get(KEY_COUNT));
+    Assert.assertEquals(KEY_COUNT, map.keySet().size());
+
+    map.startTransaction(1);
+    map.put(0, "rolledBack");
+    map.rollbackTransaction();
+    Assert.assertEquals("changed0", map.get(0));
+  }
+
+  @Test
+  public void testConcurrentCommitsOnDisjointKeys() throws Exception {
+    ShardedReadCommitedTransactionalMap<Integer, Integer> map =
+        new ShardedReadCommitedTransactionalMap<>(16);
+    int threadCount = 4;
+    int commitCount = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        int threadIndex = i;
+        futures.add(executor.submit(() -> {
+          for (int j = 0; j < commitCount; j++) {
+            map.startTransaction(threadIndex * commitCount + j);
+            map.merge(threadIndex, 1, Integer::sum);
+            map.put(threadCount + threadIndex * commitCount + j, j);
+            map.commitTransaction();
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    for (int i = 0; i < threadCount; i++) {
+      Assert.assertEquals(Integer.valueOf(commitCount), map.get(i));
+    }
+    Assert.assertEquals(threadCount + threadCount * commitCount, map.size());
+  }
+
+  @Test
+  public void testEntrySetWhileCommitting() throws Exception {
+    ShardedReadCommitedTransactionalMap<Integer, String> map = createMap();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    AtomicBoolean running = new AtomicBoolean(true);
+    try {
+      Future<?> writer = executor.submit(() -> {
+        for (int round = 0; running.get(); round++) {
+          map.startTransaction(round);
+          for (int i = KEY_COUNT; i < KEY_COUNT * 2; i++) {
+            if (round % 2 == 0) {
+              map.put(i, "added" + i);
+            } else {
+              map.remove(i);
+            }
+          }
+          map.commitTransaction();
+        }
+      });
+      for (int i = 0; i < 200; i++) {
+        for (Map.Entry<Integer, String> entry : map.entrySet()) {
+          Assert.assertNotNull(entry.getValue());
+        }
+        Assert.assertTrue(map.keySet().size() >= KEY_COUNT);
+        Assert.assertTrue(map.values().size() >= KEY_COUNT);
+      }
+      running.set(false);
+      writer.get(10, TimeUnit.SECONDS);
+    } finally {
+      running.set(false);
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedPrepareReleasesReservations() {
+    ShardedReadCommitedTransactionalMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    map.put(KEY_COUNT - 1, "first");
+    map.prepareTransaction();
+    map.suspendTransaction();
+
+    map.startTransaction(1);
+    for (int i = 0; i < KEY_COUNT; i++) {
+      map.put(i, "second");
+    }
+    try {
+      map.commitTransaction();
+      Assert.fail("Commit should fail on the reserved key");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(1, map.getAssociatedTransaction());
+    }
+    map.remove(KEY_COUNT - 1);
+    map.suspendTransaction();
+
+    map.resumeTransaction(0);
+    map.commitTransaction();
+    Assert.assertEquals("first", map.get(KEY_COUNT - 1));
+    Assert.assertEquals("committed0", map.get(0));
+
+    map.resumeTransaction(1);
+    map.commitTransaction();
+    Assert.assertEquals("second", map.get(0));
+    Assert.assertFalse(map.containsKey(KEY_COUNT - 1));
+  }
+
+  @Test
+  public void testGetAllAndPutAll() {
+    ShardedReadCommitedTransactionalMap<Integer, String> map = createMap();
+    map.startTransaction(0);
+    Map<Integer, String> entries = new HashMap<>();
+    entries.put(1, "changed1");
+    entries.put(KEY_COUNT, "added");
+    map.putAll(entries);
+    map.remove(2);
+
+    Map<Integer, String> result = map.getAll(Arrays.asList(0, 1, 2, KEY_COUNT, KEY_COUNT + 1));
+    Assert.assertEquals(3, result.size());
+    Assert.assertEquals("committed0", result.get(0));
+    Assert.assertEquals("changed1", result.get(1));
+    Assert.assertEquals("added", result.get(KEY_COUNT));
+    map.rollbackTransaction();
+
+    result = map.getAll(Arrays.asList(1, 2, KEY_COUNT));
+    Assert.assertEquals(2, result.size());
+    Assert.assertEquals("committed1", result.get(1));
+  }
+
+  @Test
+  public void testReadOnlyTransaction() {
+    ShardedReadCommitedTransactionalMap<Integer, String> map = createMap();
+    map.startReadOnlyTransaction(0);
+    Assert.assertEquals("committed1", map.get(1));
+    Assert.assertEquals(KEY_COUNT, map.size());
+    try {
+      map.put(1, "new");
+      Assert.fail("Read-only transaction should not be modifiable");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("Read-only transaction cannot be modified", e.getMessage());
+    }
+    map.commitTransaction();
+    Assert.assertEquals("committed1", map.get(1));
+  }
+}
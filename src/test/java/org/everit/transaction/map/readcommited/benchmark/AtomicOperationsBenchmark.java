@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.benchmark;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.transaction.map.readcommited.ReadCommitedTransactionalMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the native atomic operations of {@link ReadCommitedTransactionalMap} with the default
+ * {@link Map} implementations that combine separate get and put calls.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+@Warmup(iterations = 3)
+public class AtomicOperationsBenchmark {
+
+  /**
+   * Delegates only the basic operations so that the default methods of {@link Map} are used for
+   * the atomic functions.
+   */
+  private static class DefaultMethodsMap<K, V> extends AbstractMap<K, V> {
+
+    private final Map<K, V> delegate;
+
+    DefaultMethodsMap(final Map<K, V> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      return delegate.containsKey(key);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      return delegate.entrySet();
+    }
+
+    @Override
+    public V get(final Object key) {
+      return delegate.get(key);
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+      return delegate.put(key, value);
+    }
+
+    @Override
+    public V remove(final Object key) {
+      return delegate.remove(key);
+    }
+  }
+
+  @Param({ "16", "1024" })
+  public int keyCount;
+
+  private Map<Integer, Long> defaultMethodsMap;
+
+  private ReadCommitedTransactionalMap<Integer, Long> transactionalMap;
+
+  private int nextKey() {
+    return ThreadLocalRandom.current().nextInt(keyCount);
+  }
+
+  @Benchmark
+  public Long mergeDefault() {
+    return defaultMethodsMap.merge(nextKey(), 1L, Long::sum);
+  }
+
+  @Benchmark
+  public Long mergeNative() {
+    return transactionalMap.merge(nextKey(), 1L, Long::sum);
+  }
+
+  @Benchmark
+  public Long putIfAbsentDefault() {
+    return defaultMethodsMap.putIfAbsent(nextKey(), 1L);
+  }
+
+  @Benchmark
+  public Long putIfAbsentNative() {
+    return transactionalMap.putIfAbsent(nextKey(), 1L);
+  }
+
+  /**
+   * Creates the maps that are shared by the benchmark threads.
+   */
+  @Setup
+  public void setup() {
+    transactionalMap = new ReadCommitedTransactionalMap<>(null);
+    defaultMethodsMap = new DefaultMethodsMap<>(new ReadCommitedTransactionalMap<>(null));
+  }
+}
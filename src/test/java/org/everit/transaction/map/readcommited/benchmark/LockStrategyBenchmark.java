@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.transaction.map.readcommited.LockStrategy;
+import org.everit.transaction.map.readcommited.ReadCommitedTransactionalMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency distribution of the reads while a writer commits transactions
+ * continuously. The sample time mode reports the percentiles, so the p99 latency of the reads can
+ * be compared between the lock strategies.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Group)
+@Warmup(iterations = 3)
+public class LockStrategyBenchmark {
+
+  private static final int KEY_COUNT = 1024;
+
+  private static final int KEYS_PER_COMMIT = 64;
+
+  @Param({ "READ_WRITE", "STAMPED" })
+  public LockStrategy lockStrategy;
+
+  private ReadCommitedTransactionalMap<Integer, Integer> transactionalMap;
+
+  private final ThreadLocal<Long> transactionSequence = ThreadLocal.withInitial(() -> 0L);
+
+  /**
+   * Commits a transaction that changes several keys.
+   */
+  @Benchmark
+  @Group("readWhileCommitting")
+  @GroupThreads(1)
+  public void commit() {
+    long transaction = transactionSequence.get() + 1;
+    transactionSequence.set(transaction);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    transactionalMap.startTransaction(transaction);
+    for (int i = 0; i < KEYS_PER_COMMIT; i++) {
+      transactionalMap.put(random.nextInt(KEY_COUNT), random.nextInt());
+    }
+    transactionalMap.commitTransaction();
+  }
+
+  @Benchmark
+  @Group("readWhileCommitting")
+  @GroupThreads(3)
+  public Integer get() {
+    return transactionalMap.get(ThreadLocalRandom.current().nextInt(KEY_COUNT));
+  }
+
+  /**
+   * Creates the map with the lock strategy of the trial and fills it.
+   */
+  @Setup
+  public void setup() {
+    transactionalMap = new ReadCommitedTransactionalMap<>(null, null, lockStrategy);
+    for (int i = 0; i < KEY_COUNT; i++) {
+      transactionalMap.put(i, i);
+    }
+  }
+}
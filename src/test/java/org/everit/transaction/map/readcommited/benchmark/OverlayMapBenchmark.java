@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.transaction.map.readcommited.internal.OverlayMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link OverlayMap} with {@link HashMap} as the write set of a transaction: the map is
+ * created, filled, looked up and iterated once like during a transaction and its commit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3)
+public class OverlayMapBenchmark {
+
+  private Integer[] keys;
+
+  @Param({ "2", "8", "1024" })
+  public int writeSetSize;
+
+  private void fillAndRead(final Map<Integer, Integer> map, final Blackhole blackhole) {
+    for (Integer key : keys) {
+      map.put(key, key);
+    }
+    for (Integer key : keys) {
+      blackhole.consume(map.get(key));
+    }
+    for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+      blackhole.consume(entry.getValue());
+    }
+  }
+
+  @Benchmark
+  public void hashMap(final Blackhole blackhole) {
+    fillAndRead(new HashMap<>(), blackhole);
+  }
+
+  @Benchmark
+  public void overlayMap(final Blackhole blackhole) {
+    fillAndRead(new OverlayMap<>(), blackhole);
+  }
+
+  @Setup
+  public void setup() {
+    keys = new Integer[writeSetSize];
+    for (int i = 0; i < writeSetSize; i++) {
+      keys[i] = i * 31;
+    }
+  }
+}
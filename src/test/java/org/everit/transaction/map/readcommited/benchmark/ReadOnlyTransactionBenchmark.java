@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.transaction.map.readcommited.ReadCommitedTransactionalMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the reads of a transaction that did not change anything with non-transactional reads
+ * and with the reads of a transaction that has a change, which have to look into the overlay.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+public class ReadOnlyTransactionBenchmark {
+
+  /**
+   * The maps of one benchmark thread, each with its own kind of transaction.
+   */
+  @State(Scope.Thread)
+  public static class Transactions {
+
+    @Setup
+    public void setup(final ReadOnlyTransactionBenchmark benchmark) {
+      benchmark.readOnlyMap.startReadOnlyTransaction(this);
+      benchmark.writingMap.startTransaction(this);
+      benchmark.writingMap.put(-1, -1);
+    }
+
+    @TearDown
+    public void tearDown(final ReadOnlyTransactionBenchmark benchmark) {
+      benchmark.readOnlyMap.rollbackTransaction();
+      benchmark.writingMap.rollbackTransaction();
+    }
+  }
+
+  private static final int KEY_COUNT = 1024;
+
+  private ReadCommitedTransactionalMap<Integer, Integer> nonTransactionalMap;
+
+  private ReadCommitedTransactionalMap<Integer, Integer> readOnlyMap;
+
+  private ReadCommitedTransactionalMap<Integer, Integer> writingMap;
+
+  private static ReadCommitedTransactionalMap<Integer, Integer> createMap() {
+    ReadCommitedTransactionalMap<Integer, Integer> map = new ReadCommitedTransactionalMap<>(null);
+    for (int i = 0; i < KEY_COUNT; i++) {
+      map.put(i, i);
+    }
+    return map;
+  }
+
+  @Benchmark
+  public void nonTransactional(final Blackhole blackhole) {
+    readAll(nonTransactionalMap, blackhole);
+  }
+
+  private void readAll(final ReadCommitedTransactionalMap<Integer, Integer> map,
+      final Blackhole blackhole) {
+    for (int i = 0; i < KEY_COUNT; i++) {
+      blackhole.consume(map.get(i));
+    }
+  }
+
+  @Benchmark
+  public void readOnlyTransaction(final Transactions transactions, final Blackhole blackhole) {
+    readAll(readOnlyMap, blackhole);
+  }
+
+  @Setup
+  public void setup() {
+    nonTransactionalMap = createMap();
+    readOnlyMap = createMap();
+    writingMap = createMap();
+  }
+
+  @Benchmark
+  public void writingTransaction(final Transactions transactions, final Blackhole blackhole) {
+    readAll(writingMap, blackhole);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.transaction.map.readcommited.ShardedReadCommitedTransactionalMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the commit throughput of threads that work on disjoint keys. With one segment all
+ * commits compete for the same write lock; with more segments than threads the throughput should
+ * grow with the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+@Warmup(iterations = 3)
+public class ShardedMapBenchmark {
+
+  /**
+   * The keys and the transactions of one benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class ThreadState {
+
+    private static final AtomicInteger THREAD_SEQUENCE = new AtomicInteger();
+
+    private int firstKey;
+
+    private long transactionSequence;
+
+    @Setup
+    public void setup() {
+      firstKey = THREAD_SEQUENCE.getAndIncrement() * KEYS_PER_THREAD;
+    }
+  }
+
+  private static final int KEYS_PER_COMMIT = 4;
+
+  private static final int KEYS_PER_THREAD = 1 << 16;
+
+  @Param({ "1", "16", "64" })
+  public int segmentCount;
+
+  private ShardedReadCommitedTransactionalMap<Integer, Integer> transactionalMap;
+
+  /**
+   * Commits a transaction that changes some keys of the thread.
+   */
+  @Benchmark
+  public void commit(final ThreadState threadState) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    transactionalMap.startTransaction(
+        ((long) threadState.firstKey << 32) | threadState.transactionSequence++);
+    for (int i = 0; i < KEYS_PER_COMMIT; i++) {
+      transactionalMap.put(threadState.firstKey + random.nextInt(KEYS_PER_THREAD), i);
+    }
+    transactionalMap.commitTransaction();
+  }
+
+  @Setup
+  public void setup() {
+    transactionalMap = new ShardedReadCommitedTransactionalMap<>(segmentCount);
+  }
+}
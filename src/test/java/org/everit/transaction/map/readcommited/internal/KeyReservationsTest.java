@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyReservationsTest {
+
+  @Test
+  public void testCommitsReserveKeysOnlyWhileTransactionsArePrepared() {
+    KeyReservations keyReservations = new KeyReservations();
+    Assert.assertTrue(keyReservations.enterUnreservedCommit());
+    keyReservations.exitUnreservedCommit();
+    Assert.assertTrue(keyReservations.isEmpty());
+
+    Object preparedOwner = new Object();
+    keyReservations.reserve(preparedOwner, false, Collections.singleton("key"));
+    Assert.assertFalse(keyReservations.enterUnreservedCommit());
+    try {
+      keyReservations.reserveForCommit(new Object(), false, Collections.singleton("key"));
+      Assert.fail("Commit should fail on the reserved key");
+    } catch (IllegalStateException e) {
+      // Expected as the key is reserved by the prepared transaction
+    }
+
+    keyReservations.release(preparedOwner, false, Collections.singleton("key"));
+    Assert.assertTrue(keyReservations.enterUnreservedCommit());
+    keyReservations.exitUnreservedCommit();
+    Assert.assertTrue(keyReservations.isEmpty());
+  }
+
+  @Test
+  public void testPrepareWaitsForCommits() throws Exception {
+    KeyReservations keyReservations = new KeyReservations();
+    Assert.assertTrue(keyReservations.enterUnreservedCommit());
+
+    Object owner = new Object();
+    CompletableFuture<Void> prepare = CompletableFuture.runAsync(
+        () -> keyReservations.reserve(owner, false, Collections.singleton("key")));
+    Thread.sleep(50);
+    Assert.assertFalse(prepare.isDone());
+
+    // Commits that start while a transaction is being prepared reserve their keys
+    Assert.assertFalse(keyReservations.enterUnreservedCommit());
+    keyReservations.reserveForCommit(new Object(), false, Collections.singleton("key"));
+    keyReservations.exitUnreservedCommit();
+    Thread.sleep(50);
+    Assert.assertFalse(prepare.isDone());
+
+    keyReservations.releaseForCommit(false, Collections.singleton("key"));
+    prepare.get(10, TimeUnit.SECONDS);
+    keyReservations.release(owner, false, Collections.singleton("key"));
+    Assert.assertTrue(keyReservations.isEmpty());
+  }
+}
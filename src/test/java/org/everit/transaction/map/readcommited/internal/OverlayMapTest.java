@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.map.readcommited.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OverlayMapTest {
+
+  /**
+   * A key with a bad hash code so the probe sequences of the table collide.
+   */
+  private static class CollidingKey {
+
+    private final int id;
+
+    CollidingKey(final int id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return (obj instanceof CollidingKey) && ((CollidingKey) obj).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return id % 3;
+    }
+
+    @Override
+    public String toString() {
+      return "CollidingKey" + id;
+    }
+  }
+
+  private static void assertSameContent(final Map<?, ?> expected, final Map<?, ?> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    Assert.assertEquals(expected, actual);
+    Assert.assertEquals(actual, expected);
+    Assert.assertEquals(expected.hashCode(), actual.hashCode());
+    Assert.assertEquals(expected.keySet(), actual.keySet());
+    for (Map.Entry<?, ?> entry : expected.entrySet()) {
+      Assert.assertTrue(actual.containsKey(entry.getKey()));
+      Assert.assertEquals(entry.getValue(), actual.get(entry.getKey()));
+    }
+  }
+
+  private static void compareRandomOperations(final long seed, final int keyRange,
+      final boolean colliding) {
+    Random random = new Random(seed);
+    Map<Object, Integer> expected = new HashMap<>();
+    OverlayMap<Object, Integer> actual = new OverlayMap<>();
+    for (int i = 0; i < 20000; i++) {
+      int id = random.nextInt(keyRange);
+      Object key = (id == 0) ? null : (colliding ? new CollidingKey(id) : Integer.valueOf(id));
+      int operation = random.nextInt(10);
+      if (operation < 5) {
+        Integer value = (random.nextInt(8) == 0) ? null : i;
+        Assert.assertEquals(expected.put(key, value), actual.put(key, value));
+      } else if (operation < 8) {
+        Assert.assertEquals(expected.remove(key), actual.remove(key));
+      } else if (operation < 9) {
+        Assert.assertEquals(expected.containsKey(key), actual.containsKey(key));
+        Assert.assertEquals(expected.get(key), actual.get(key));
+      } else if (random.nextInt(100) == 0) {
+        expected.clear();
+        actual.clear();
+      }
+      Assert.assertEquals(expected.size(), actual.size());
+      if (i % 500 == 0) {
+        assertSameContent(expected, actual);
+      }
+    }
+    assertSameContent(expected, actual);
+  }
+
+  @Test
+  public void testNullKeyAndValue() {
+    OverlayMap<String, String> map = new OverlayMap<>();
+    Assert.assertFalse(map.containsKey(null));
+    Assert.assertNull(map.put(null, null));
+    Assert.assertTrue(map.containsKey(null));
+    Assert.assertNull(map.put(null, "1"));
+    Assert.assertEquals("1", map.get(null));
+    Assert.assertEquals(1, map.size());
+    Assert.assertTrue(map.keySet().contains(null));
+    Assert.assertEquals("1", map.remove(null));
+    Assert.assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testOverlaySet() {
+    OverlaySet<Integer> set = new OverlaySet<>();
+    Set<Integer> expected = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(set.add(i));
+      expected.add(i);
+    }
+    Assert.assertFalse(set.add(1));
+    Assert.assertTrue(set.remove(1));
+    Assert.assertFalse(set.remove(1));
+    expected.remove(1);
+    Assert.assertEquals(expected, set);
+    set.clear();
+    Assert.assertTrue(set.isEmpty());
+  }
+
+  @Test
+  public void testPutAllGrowsOnce() {
+    OverlayMap<Integer, Integer> map = new OverlayMap<>();
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 5; i++) {
+      map.put(i, i);
+      expected.put(i, i);
+    }
+    Map<Integer, Integer> puts = new HashMap<>();
+    for (int i = 3; i < 100; i++) {
+      puts.put(i, -i);
+    }
+    map.putAll(puts);
+    expected.putAll(puts);
+    assertSameContent(expected, map);
+    Assert.assertEquals(256, map.keys.length);
+
+    OverlayMap<Integer, Integer> smallMap = new OverlayMap<>();
+    smallMap.put(0, 0);
+    Map<Integer, Integer> smallPuts = new HashMap<>();
+    for (int i = 1; i < OverlayMap.LINEAR_LIMIT; i++) {
+      smallPuts.put(i, i);
+    }
+    smallMap.putAll(smallPuts);
+    smallPuts.put(0, 0);
+    assertSameContent(smallPuts, smallMap);
+    Assert.assertFalse(smallMap.hashed);
+    Assert.assertEquals(OverlayMap.LINEAR_LIMIT, smallMap.keys.length);
+  }
+
+  @Test
+  public void testRandomOperationsWithCollidingKeys() {
+    compareRandomOperations(1, 64, true);
+  }
+
+  @Test
+  public void testRandomOperationsWithFewKeys() {
+    compareRandomOperations(2, OverlayMap.LINEAR_LIMIT + 1, false);
+  }
+
+  @Test
+  public void testRandomOperationsWithManyKeys() {
+    compareRandomOperations(3, 2000, false);
+  }
+
+  @Test
+  public void testUpgradeKeepsEntries() {
+    OverlayMap<Integer, Integer> map = new OverlayMap<>();
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      map.put(i, -i);
+      expected.put(i, -i);
+      Assert.assertEquals(i > OverlayMap.LINEAR_LIMIT - 1, map.hashed);
+      assertSameContent(expected, map);
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      Assert.assertEquals(Integer.valueOf(-i), map.remove(i));
+      expected.remove(i);
+    }
+    assertSameContent(expected, map);
+  }
+}